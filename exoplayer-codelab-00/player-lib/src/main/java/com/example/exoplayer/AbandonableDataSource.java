@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.exoplayer;
+
+import android.net.Uri;
+
+import androidx.annotation.Nullable;
+
+import com.google.android.exoplayer2.upstream.BaseDataSource;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@link DataSource} reporting the transfers of an upstream source to a {@link
+ * DownloadAbandonmentEngine}, and failing a transfer with a {@link
+ * DownloadAbandonmentEngine.ChunkAbandonedException} once the engine abandoned it.
+ *
+ * <p>Meant for the chunk loads of a media source only. Its transfers are reported as network
+ * transfers, also to the listeners the player adds for bandwidth estimation.
+ */
+public final class AbandonableDataSource extends BaseDataSource {
+
+    /**
+     * Creates {@link AbandonableDataSource}s over the sources of an upstream factory.
+     */
+    public static final class Factory implements DataSource.Factory {
+
+        private final DataSource.Factory upstreamFactory;
+        private final DownloadAbandonmentEngine engine;
+
+        /**
+         * @param upstreamFactory Creates the sources the data is read from.
+         * @param engine          The engine deciding which transfers to abandon.
+         */
+        public Factory(DataSource.Factory upstreamFactory, DownloadAbandonmentEngine engine) {
+            this.upstreamFactory = upstreamFactory;
+            this.engine = engine;
+        }
+
+        @Override
+        public AbandonableDataSource createDataSource() {
+            return new AbandonableDataSource(upstreamFactory.createDataSource(), engine);
+        }
+    }
+
+    private final DataSource upstream;
+    private final DownloadAbandonmentEngine engine;
+    private boolean opened;
+
+    /**
+     * @param upstream The source the data is read from.
+     * @param engine   The engine deciding which transfers to abandon.
+     */
+    public AbandonableDataSource(DataSource upstream, DownloadAbandonmentEngine engine) {
+        super(/* isNetwork= */ true);
+        this.upstream = upstream;
+        this.engine = engine;
+        addTransferListener(engine);
+    }
+
+    @Override
+    public long open(DataSpec dataSpec) throws IOException {
+        transferInitializing(dataSpec);
+        long length = upstream.open(dataSpec);
+        opened = true;
+        transferStarted(dataSpec);
+        return length;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int readLength) throws IOException {
+        int bytesRead = upstream.read(buffer, offset, readLength);
+        if (bytesRead > 0) {
+            bytesTransferred(bytesRead);
+            if (engine.isAbandoned(this)) {
+                throw new DownloadAbandonmentEngine.ChunkAbandonedException();
+            }
+        }
+        return bytesRead;
+    }
+
+    @Override
+    @Nullable
+    public Uri getUri() {
+        return upstream.getUri();
+    }
+
+    @Override
+    public Map<String, List<String>> getResponseHeaders() {
+        return upstream.getResponseHeaders();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            upstream.close();
+        } finally {
+            if (opened) {
+                opened = false;
+                transferEnded();
+            }
+        }
+    }
+}
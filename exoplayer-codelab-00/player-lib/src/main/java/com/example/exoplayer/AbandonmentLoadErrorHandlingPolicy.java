@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.exoplayer;
+
+import com.google.android.exoplayer2.upstream.DefaultLoadErrorHandlingPolicy;
+
+/**
+ * A {@link DefaultLoadErrorHandlingPolicy} that cancels the chunks a {@link
+ * DownloadAbandonmentEngine} abandoned.
+ *
+ * <p>Blacklisting the abandoned chunk's track makes the chunk source drop the chunk instead of
+ * retrying it, after which the selection requests it again at the quality the engine picked. A
+ * chunk the player already read from cannot be dropped and is resumed at once instead.
+ */
+public final class AbandonmentLoadErrorHandlingPolicy extends DefaultLoadErrorHandlingPolicy {
+
+    /**
+     * The default time the track of an abandoned chunk stays blacklisted.
+     */
+    public static final long DEFAULT_BLACKLIST_DURATION_MS = 4000;
+
+    private final long blacklistDurationMs;
+
+    public AbandonmentLoadErrorHandlingPolicy() {
+        this(DEFAULT_BLACKLIST_DURATION_MS);
+    }
+
+    /**
+     * @param blacklistDurationMs The time the track of an abandoned chunk stays blacklisted.
+     */
+    public AbandonmentLoadErrorHandlingPolicy(long blacklistDurationMs) {
+        this.blacklistDurationMs = blacklistDurationMs;
+    }
+
+    @Override
+    public long getBlacklistDurationMsFor(LoadErrorInfo loadErrorInfo) {
+        if (loadErrorInfo.exception instanceof DownloadAbandonmentEngine.ChunkAbandonedException) {
+            return blacklistDurationMs;
+        }
+        return super.getBlacklistDurationMsFor(loadErrorInfo);
+    }
+
+    @Override
+    public long getRetryDelayMsFor(LoadErrorInfo loadErrorInfo) {
+        if (loadErrorInfo.exception instanceof DownloadAbandonmentEngine.ChunkAbandonedException) {
+            return 0;
+        }
+        return super.getRetryDelayMsFor(loadErrorInfo);
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.exoplayer;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.widget.TextView;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Carries the running QoE and bitrate totals from a track selection to the on-screen overlay.
+ *
+ * <p>The selection calls {@link #publish} from the playback thread, which stores two numbers and
+ * neither allocates nor touches a view. While started, the overlay samples the latest numbers every
+ * {@link #DEFAULT_UPDATE_INTERVAL_MS} from a single main thread {@link Handler} callback and only
+ * redraws when they changed, so any number of decisions between two samples cost one redraw.
+ *
+ * <p>There is a single publishing thread. Samples are consistent: a sample never pairs the QoE of
+ * one decision with the bitrate of another.
+ */
+public final class AbrMetricsPublisher {
+
+    /**
+     * The default interval between two overlay samples.
+     */
+    public static final long DEFAULT_UPDATE_INTERVAL_MS = 250;
+
+    private final Handler handler;
+    private final long updateIntervalMs;
+    private final Runnable updateRunnable;
+    // Rendering state, main thread only.
+    private final StringBuilder text;
+    @Nullable
+    private TextView view;
+    private String header;
+    private long renderedVersion;
+
+    // Odd while publish() writes the totals, so a sampler seeing the same even version before and
+    // after reading them has a consistent pair. The totals are volatile too, so their accesses
+    // cannot be reordered around the version's.
+    private volatile long version;
+    private volatile double totalQoe;
+    private volatile double totalBitrateKbps;
+
+    public AbrMetricsPublisher() {
+        this(DEFAULT_UPDATE_INTERVAL_MS);
+    }
+
+    /**
+     * @param updateIntervalMs The interval between two overlay samples.
+     */
+    public AbrMetricsPublisher(long updateIntervalMs) {
+        this.handler = new Handler(Looper.getMainLooper());
+        this.updateIntervalMs = updateIntervalMs;
+        this.text = new StringBuilder();
+        this.header = "";
+        this.renderedVersion = -1;
+        this.updateRunnable = new Runnable() {
+            @Override
+            public void run() {
+                update();
+            }
+        };
+    }
+
+    /**
+     * Publishes the totals after a decision. Called from the playback thread.
+     *
+     * @param totalQoe         The QoE accumulated so far.
+     * @param totalBitrateKbps The bitrate accumulated so far.
+     */
+    public void publish(double totalQoe, double totalBitrateKbps) {
+        long nextVersion = version + 1;
+        version = nextVersion;
+        this.totalQoe = totalQoe;
+        this.totalBitrateKbps = totalBitrateKbps;
+        version = nextVersion + 1;
+    }
+
+    /**
+     * Starts sampling the totals into a view, replacing any previous view. Must be called on the
+     * main thread.
+     *
+     * @param view   The view showing the overlay.
+     * @param header The text shown above the totals.
+     */
+    public void start(TextView view, String header) {
+        this.view = view;
+        this.header = header;
+        this.renderedVersion = -1;
+        handler.removeCallbacks(updateRunnable);
+        update();
+    }
+
+    /**
+     * Stops sampling. The view keeps its last text. Must be called on the main thread.
+     */
+    public void stop() {
+        handler.removeCallbacks(updateRunnable);
+        view = null;
+    }
+
+    private void update() {
+        if (view == null) {
+            return;
+        }
+        long startVersion;
+        double sampledQoe;
+        double sampledBitrateKbps;
+        do {
+            startVersion = version;
+            sampledQoe = totalQoe;
+            sampledBitrateKbps = totalBitrateKbps;
+        } while ((startVersion & 1) != 0 || startVersion != version);
+        if (startVersion != renderedVersion) {
+            renderedVersion = startVersion;
+            text.setLength(0);
+            text.append(header);
+            if (startVersion != 0) {
+                text.append("\nQoe: ").append(sampledQoe)
+                        .append("\nBitrate: ").append(sampledBitrateKbps);
+            }
+            view.setText(text);
+        }
+        handler.postDelayed(updateRunnable, updateIntervalMs);
+    }
+}
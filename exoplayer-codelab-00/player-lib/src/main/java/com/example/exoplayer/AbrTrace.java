@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.exoplayer;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Leveled trace points for the ABR code, recorded into a lock-free in-memory ring that is dumped on
+ * demand instead of printed.
+ *
+ * <p>An event is an event ID with a long argument and a double value, so recording one neither
+ * allocates nor formats a string. Trace points above {@link #COMPILED_LEVEL} are removed by the
+ * compiler. The others cost one comparison against the runtime level set by {@link #setLevel} when
+ * disabled. When the ring is full the oldest events are overwritten.
+ *
+ * <p>Events may be recorded from any thread. A dump taken while events are recorded skips the
+ * events being overwritten.
+ */
+public final class AbrTrace {
+
+    /**
+     * Trace levels, in increasing verbosity. {@link #LEVEL_OFF} disables all trace points.
+     */
+    public static final int LEVEL_OFF = 0;
+    public static final int LEVEL_WARN = 1;
+    public static final int LEVEL_INFO = 2;
+    public static final int LEVEL_DEBUG = 3;
+
+    /**
+     * The highest level compiled in. Lower it to remove the more verbose trace points from the
+     * build.
+     */
+    public static final int COMPILED_LEVEL = LEVEL_DEBUG;
+
+    /**
+     * The number of events retained.
+     */
+    public static final int CAPACITY = 4096;
+
+    // Event IDs, indexes into EVENT_NAMES.
+    public static final int EVENT_INITIAL_SELECTION = 0;
+    public static final int EVENT_CHUNK_DELAY_MS = 1;
+    public static final int EVENT_CURRENT_SELECTION = 2;
+    public static final int EVENT_SELECTED_INDEX = 3;
+    public static final int EVENT_SELECTED_QUALITY = 4;
+    public static final int EVENT_REBUFFER_S = 5;
+    public static final int EVENT_REWARD = 6;
+    public static final int EVENT_CHUNK_COUNT = 7;
+    public static final int EVENT_NEXT_CHUNK_SIZE = 8;
+    public static final int EVENT_INFERENCE_FALLBACK = 9;
+    public static final int EVENT_LOAD_STARTED = 10;
+    public static final int EVENT_LOAD_COMPLETED = 11;
+    public static final int EVENT_TRANSFER_TTFB_MS = 12;
+    public static final int EVENT_CHUNK_ABANDONED = 13;
+
+    private static final String[] EVENT_NAMES = {
+            "initialSelection",
+            "chunkDelayMs",
+            "currentSelection",
+            "selectedIndex",
+            "selectedQuality",
+            "rebufferS",
+            "reward",
+            "chunkCount",
+            "nextChunkSize",
+            "inferenceFallback",
+            "loadStarted",
+            "loadCompleted",
+            "transferTtfbMs",
+            "chunkAbandoned",
+    };
+    private static final String[] LEVEL_NAMES = {"OFF", "WARN", "INFO", "DEBUG"};
+
+    private static final int MASK = CAPACITY - 1;
+    private static final long IN_PROGRESS = -1;
+
+    private static final AtomicLong cursor = new AtomicLong();
+    // The sequence number of the event held by each slot, or IN_PROGRESS while it is written.
+    private static final AtomicLongArray stamps = new AtomicLongArray(CAPACITY);
+    private static final long[] timesNs = new long[CAPACITY];
+    private static final int[] levels = new int[CAPACITY];
+    private static final int[] events = new int[CAPACITY];
+    private static final long[] args = new long[CAPACITY];
+    private static final double[] values = new double[CAPACITY];
+
+    // Deliberately not volatile: a level change may take a moment to reach other threads, in
+    // exchange for a plain load at every trace point.
+    private static int level = LEVEL_INFO;
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            stamps.set(i, IN_PROGRESS);
+        }
+    }
+
+    private AbrTrace() {
+    }
+
+    /**
+     * Sets the runtime level. Trace points above it are skipped.
+     */
+    public static void setLevel(int newLevel) {
+        level = newLevel;
+    }
+
+    /**
+     * Returns the runtime level.
+     */
+    public static int getLevel() {
+        return level;
+    }
+
+    /**
+     * Returns whether trace points of a level are recorded, for callers that compute arguments
+     * only for tracing.
+     */
+    public static boolean isEnabled(int eventLevel) {
+        return eventLevel <= COMPILED_LEVEL && eventLevel <= level;
+    }
+
+    /**
+     * Records an event at {@link #LEVEL_WARN}.
+     *
+     * @param event One of the {@code EVENT_*} IDs.
+     * @param arg   The event's argument, such as an index or a duration.
+     * @param value The event's value, or 0 if it has none.
+     */
+    public static void warn(int event, long arg, double value) {
+        if (LEVEL_WARN <= COMPILED_LEVEL && LEVEL_WARN <= level) {
+            record(LEVEL_WARN, event, arg, value);
+        }
+    }
+
+    /**
+     * Records an event at {@link #LEVEL_INFO}.
+     *
+     * @param event One of the {@code EVENT_*} IDs.
+     * @param arg   The event's argument, such as an index or a duration.
+     * @param value The event's value, or 0 if it has none.
+     */
+    public static void info(int event, long arg, double value) {
+        if (LEVEL_INFO <= COMPILED_LEVEL && LEVEL_INFO <= level) {
+            record(LEVEL_INFO, event, arg, value);
+        }
+    }
+
+    /**
+     * Records an event at {@link #LEVEL_DEBUG}.
+     *
+     * @param event One of the {@code EVENT_*} IDs.
+     * @param arg   The event's argument, such as an index or a duration.
+     * @param value The event's value, or 0 if it has none.
+     */
+    public static void debug(int event, long arg, double value) {
+        if (LEVEL_DEBUG <= COMPILED_LEVEL && LEVEL_DEBUG <= level) {
+            record(LEVEL_DEBUG, event, arg, value);
+        }
+    }
+
+    /**
+     * Returns the number of events recorded since the process started, including overwritten ones.
+     */
+    public static long getEventCount() {
+        return cursor.get();
+    }
+
+    /**
+     * Writes the retained events, oldest first, one per line: the time in milliseconds, the level,
+     * the event name, the argument and the value, separated by tabs.
+     *
+     * @param writer Receives the events. Not closed.
+     * @return The number of events written.
+     * @throws IOException If writing fails.
+     */
+    public static int dump(Writer writer) throws IOException {
+        long end = cursor.get();
+        long start = Math.max(0, end - CAPACITY);
+        int written = 0;
+        for (long sequence = start; sequence < end; sequence++) {
+            int slot = (int) (sequence & MASK);
+            if (stamps.get(slot) != sequence) {
+                continue;
+            }
+            long timeNs = timesNs[slot];
+            int eventLevel = levels[slot];
+            int event = events[slot];
+            long arg = args[slot];
+            double value = values[slot];
+            if (stamps.get(slot) != sequence) {
+                // Overwritten while it was read.
+                continue;
+            }
+            writer.write((timeNs / 1000000) + "\t" + LEVEL_NAMES[eventLevel] + "\t"
+                    + EVENT_NAMES[event] + "\t" + arg + "\t" + value + "\n");
+            written++;
+        }
+        return written;
+    }
+
+    private static void record(int eventLevel, int event, long arg, double value) {
+        long sequence = cursor.getAndIncrement();
+        int slot = (int) (sequence & MASK);
+        stamps.set(slot, IN_PROGRESS);
+        timesNs[slot] = System.nanoTime();
+        levels[slot] = eventLevel;
+        events[slot] = event;
+        args[slot] = arg;
+        values[slot] = value;
+        stamps.lazySet(slot, sequence);
+    }
+}
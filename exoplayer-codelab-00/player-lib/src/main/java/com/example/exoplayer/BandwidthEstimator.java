@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.exoplayer;
+
+/**
+ * Estimates the available bandwidth from the throughput of completed transfers.
+ *
+ * <p>Implementations keep their state in primitives and update it in constant or logarithmic time
+ * per sample, so they can be fed from a transfer callback. They are not thread safe; {@link
+ * ThroughputSampler} feeds and queries its estimator under its own lock.
+ */
+public interface BandwidthEstimator {
+
+    /**
+     * Returned by {@link #getBitrateEstimate()} before the first sample.
+     */
+    long NO_ESTIMATE = -1;
+
+    /**
+     * Adds the throughput of a completed transfer.
+     *
+     * @param bytes      The number of bytes transferred.
+     * @param durationUs The duration of the transfer. Samples with no duration are ignored.
+     */
+    void addSample(long bytes, long durationUs);
+
+    /**
+     * Returns the estimated bandwidth in bits per second, or {@link #NO_ESTIMATE}.
+     */
+    long getBitrateEstimate();
+
+    /**
+     * Forgets every sample.
+     */
+    void reset();
+}
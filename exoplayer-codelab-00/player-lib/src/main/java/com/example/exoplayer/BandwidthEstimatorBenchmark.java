@@ -0,0 +1,286 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.exoplayer;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Replays network traces through each {@link BandwidthEstimator} and reports how well it predicts
+ * the throughput of the next chunk.
+ *
+ * <p>A trace is a throughput timeline in the format of the Pensieve traces: one line per
+ * measurement, holding the time in seconds and the throughput in Mbps from then on. Chunks of a
+ * fixed size are downloaded back to back over the timeline. Before each download every estimator
+ * predicts its throughput; afterwards it is fed the measured one. The error of a prediction is its
+ * absolute difference from the measured throughput, relative to the measured throughput.
+ *
+ * <p>Usage: {@code BandwidthEstimatorBenchmark [--chunk-bytes <n>] [trace...]}. Without traces a
+ * synthetic random-walk trace is used.
+ */
+public final class BandwidthEstimatorBenchmark {
+
+    /**
+     * The default size of a chunk, 4 seconds at 1.2 Mbps.
+     */
+    public static final long DEFAULT_CHUNK_BYTES = 600000;
+
+    private static final int SYNTHETIC_TRACE_LENGTH_S = 2000;
+    private static final long SYNTHETIC_TRACE_SEED = 42;
+
+    /**
+     * The prediction error of one estimator.
+     */
+    public static final class Result {
+
+        /**
+         * The name of the estimator.
+         */
+        public final String estimator;
+        /**
+         * The number of predictions, excluding those made before the first sample.
+         */
+        public final int predictions;
+        /**
+         * The mean, median and 90th percentile relative error.
+         */
+        public final double meanError;
+        public final double p50Error;
+        public final double p90Error;
+        /**
+         * The fraction of predictions above the measured throughput, which risk rebuffering.
+         */
+        public final double overestimateFraction;
+
+        private Result(
+                String estimator,
+                int predictions,
+                double meanError,
+                double p50Error,
+                double p90Error,
+                double overestimateFraction) {
+            this.estimator = estimator;
+            this.predictions = predictions;
+            this.meanError = meanError;
+            this.p50Error = p50Error;
+            this.p90Error = p90Error;
+            this.overestimateFraction = overestimateFraction;
+        }
+
+        @Override
+        public String toString() {
+            return estimator + ": n=" + predictions
+                    + " mean=" + String.format("%.3f", meanError)
+                    + " p50=" + String.format("%.3f", p50Error)
+                    + " p90=" + String.format("%.3f", p90Error)
+                    + " over=" + String.format("%.3f", overestimateFraction);
+        }
+    }
+
+    private BandwidthEstimatorBenchmark() {
+    }
+
+    /**
+     * Returns one estimator of each built-in kind, with default parameters.
+     */
+    public static BandwidthEstimator[] getDefaultEstimators() {
+        return new BandwidthEstimator[]{
+                new EwmaBandwidthEstimator(),
+                new HarmonicMeanBandwidthEstimator(),
+                new SlidingPercentileBandwidthEstimator(),
+        };
+    }
+
+    /**
+     * Replays traces through estimators.
+     *
+     * @param traces     The traces, each an array of {time in s, throughput in Mbps} pairs sorted by
+     *                   time.
+     * @param estimators The estimators, reset before each trace.
+     * @param chunkBytes The size of a chunk.
+     * @return One {@link Result} per estimator, in the order given.
+     */
+    public static Result[] run(List<double[][]> traces, BandwidthEstimator[] estimators, long chunkBytes) {
+        int chunkCount = 0;
+        double[][] errors = new double[estimators.length][];
+        int[] predictions = new int[estimators.length];
+        int[] overestimates = new int[estimators.length];
+        for (double[][] trace : traces) {
+            chunkCount += countChunks(trace, chunkBytes);
+        }
+        for (int e = 0; e < estimators.length; e++) {
+            errors[e] = new double[chunkCount];
+        }
+        for (double[][] trace : traces) {
+            for (BandwidthEstimator estimator : estimators) {
+                estimator.reset();
+            }
+            double timeS = trace[0][0];
+            double endS = trace[trace.length - 1][0];
+            while (true) {
+                double durationS = downloadDurationS(trace, timeS, chunkBytes);
+                if (timeS + durationS > endS) {
+                    break;
+                }
+                double measuredBitsPerS = chunkBytes * 8 / durationS;
+                for (int e = 0; e < estimators.length; e++) {
+                    long predicted = estimators[e].getBitrateEstimate();
+                    if (predicted != BandwidthEstimator.NO_ESTIMATE) {
+                        errors[e][predictions[e]++] =
+                                Math.abs(predicted - measuredBitsPerS) / measuredBitsPerS;
+                        if (predicted > measuredBitsPerS) {
+                            overestimates[e]++;
+                        }
+                    }
+                    estimators[e].addSample(chunkBytes, (long) (durationS * 1000000));
+                }
+                timeS += durationS;
+            }
+        }
+        Result[] results = new Result[estimators.length];
+        for (int e = 0; e < estimators.length; e++) {
+            double[] sorted = Arrays.copyOf(errors[e], predictions[e]);
+            Arrays.sort(sorted);
+            double sum = 0;
+            for (double error : sorted) {
+                sum += error;
+            }
+            int n = sorted.length;
+            results[e] = new Result(
+                    estimators[e].toString(),
+                    n,
+                    n == 0 ? 0 : sum / n,
+                    n == 0 ? 0 : sorted[(n - 1) / 2],
+                    n == 0 ? 0 : sorted[(int) Math.ceil(0.9 * n) - 1],
+                    n == 0 ? 0 : (double) overestimates[e] / n);
+        }
+        return results;
+    }
+
+    /**
+     * Reads a trace.
+     *
+     * @param reader The trace. Not closed.
+     * @return The {time in s, throughput in Mbps} pairs.
+     * @throws IOException If the trace could not be read or holds a malformed line.
+     */
+    public static double[][] readTrace(Reader reader) throws IOException {
+        BufferedReader lines = new BufferedReader(reader);
+        List<double[]> points = new ArrayList<>();
+        String line;
+        while ((line = lines.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            String[] fields = line.split("\\s+");
+            if (fields.length < 2) {
+                throw new IOException("Malformed trace line " + (points.size() + 1));
+            }
+            try {
+                points.add(new double[]{Double.parseDouble(fields[0]), Double.parseDouble(fields[1])});
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed trace line " + (points.size() + 1), e);
+            }
+        }
+        if (points.size() < 2) {
+            throw new IOException("Trace too short");
+        }
+        return points.toArray(new double[0][]);
+    }
+
+    /**
+     * Returns a random-walk trace, one point per second, with occasional drops as on a mobile link.
+     *
+     * @param lengthS The length of the trace in seconds.
+     * @param seed    The seed of the walk.
+     */
+    public static double[][] syntheticTrace(int lengthS, long seed) {
+        Random random = new Random(seed);
+        double[][] trace = new double[lengthS + 1][];
+        double mbps = 3;
+        for (int i = 0; i <= lengthS; i++) {
+            mbps = Math.max(0.2, Math.min(20, mbps * Math.exp(random.nextGaussian() * 0.15)));
+            double drop = random.nextDouble() < 0.02 ? 0.2 : 1;
+            trace[i] = new double[]{i, mbps * drop};
+        }
+        return trace;
+    }
+
+    // Time to download chunkBytes from startS, the trace repeating its last throughput beyond its end
+    private static double downloadDurationS(double[][] trace, double startS, long chunkBytes) {
+        double remainingBits = chunkBytes * 8.0;
+        double timeS = startS;
+        int i = 0;
+        while (i + 1 < trace.length && trace[i + 1][0] <= timeS) {
+            i++;
+        }
+        while (true) {
+            double bitsPerS = Math.max(trace[i][1], 0.001) * 1000000;
+            double segmentEndS = i + 1 < trace.length ? trace[i + 1][0] : Double.POSITIVE_INFINITY;
+            double segmentBits = (segmentEndS - timeS) * bitsPerS;
+            if (segmentBits >= remainingBits) {
+                return timeS + remainingBits / bitsPerS - startS;
+            }
+            remainingBits -= segmentBits;
+            timeS = segmentEndS;
+            i++;
+        }
+    }
+
+    private static int countChunks(double[][] trace, long chunkBytes) {
+        int count = 0;
+        double timeS = trace[0][0];
+        double endS = trace[trace.length - 1][0];
+        while (true) {
+            double durationS = downloadDurationS(trace, timeS, chunkBytes);
+            if (timeS + durationS > endS) {
+                return count;
+            }
+            timeS += durationS;
+            count++;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        long chunkBytes = DEFAULT_CHUNK_BYTES;
+        List<double[][]> traces = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--chunk-bytes") && i + 1 < args.length) {
+                chunkBytes = Long.parseLong(args[++i]);
+                continue;
+            }
+            Reader reader = new FileReader(args[i]);
+            try {
+                traces.add(readTrace(reader));
+            } finally {
+                reader.close();
+            }
+        }
+        if (traces.isEmpty()) {
+            traces.add(syntheticTrace(SYNTHETIC_TRACE_LENGTH_S, SYNTHETIC_TRACE_SEED));
+        }
+        for (Result result : run(traces, getDefaultEstimators(), chunkBytes)) {
+            System.out.println(result);
+        }
+    }
+}
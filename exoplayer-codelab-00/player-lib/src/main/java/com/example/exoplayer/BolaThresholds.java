@@ -0,0 +1,393 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.exoplayer;
+
+import java.util.Arrays;
+
+/**
+ * The buffer levels at which the BOLA decision of {@link BolaTrackSelection} changes quality,
+ * precomputed once per bitrate ladder so that a decision is a binary search.
+ *
+ * <p>BOLA scores quality {@code i} at buffer level {@code b} as {@code (vp * (U[i] + gp) - b) /
+ * R[i]}, where {@code U} are the utilities and {@code R} the bitrates, and picks the last quality
+ * with the highest score. Below the stable buffer level {@code gp} and {@code vp} are constant, so
+ * each score is a line in {@code b} and the best quality changes only where two lines cross. Above
+ * it {@code vp} grows with {@code b} such that every score is {@code b - MINIMUM_BUFFER_S} times a
+ * constant, so the best quality no longer changes.
+ *
+ * <p>A decision looks up the segment holding the buffer level and compares the exact scores of its
+ * quality and the qualities of the neighbouring segments, so that buffer levels rounding onto
+ * either side of a threshold get the same quality as the full scoring loop. Run {@link #main} to
+ * check this against the loop on the catalog ladders.
+ *
+ * <p>A ladder resolved from a manifest without bitrates has non-positive entries, whose scores are
+ * not lines; such a ladder is scored in full on every decision.
+ */
+public final class BolaThresholds {
+
+    private final double[] bitrates;
+    private final double[] utilities;
+    private final double minimumBufferS;
+    // Buffer level up to which gp and vp are constant
+    private final double stableBufferS;
+    private final int highestUtilityIndex;
+    // Whether every decision scores all qualities, for a ladder with a non-positive bitrate
+    private final boolean exhaustive;
+    // Buffer levels at which the best quality changes, ascending; segment j lies between
+    // thresholds[j - 1] and thresholds[j]
+    private final double[] thresholds;
+    // Best quality of each segment, one more than thresholds
+    private final int[] segmentQualities;
+    // Best quality above stableBufferS
+    private final int stableQuality;
+
+    /**
+     * @param bitrates               The bitrate of each quality, lowest first. Must be positive.
+     * @param utilities              The utility of each quality.
+     * @param minimumBufferS         The BOLA minimum buffer.
+     * @param minimumBufferPerLevelS The buffer added to the stable buffer level per quality.
+     */
+    public BolaThresholds(
+            double[] bitrates, double[] utilities, double minimumBufferS, double minimumBufferPerLevelS) {
+        this.bitrates = bitrates.clone();
+        this.utilities = utilities.clone();
+        this.minimumBufferS = minimumBufferS;
+        this.stableBufferS = minimumBufferS + minimumBufferPerLevelS * bitrates.length;
+        int highest = 0;
+        for (int i = 0; i < utilities.length; i++) {
+            highest = utilities[i] > utilities[highest] ? i : highest;
+        }
+        this.highestUtilityIndex = highest;
+        boolean positive = true;
+        for (double bitrate : bitrates) {
+            positive &= bitrate > 0;
+        }
+        this.exhaustive = !positive;
+        if (!hasDecision() || exhaustive) {
+            thresholds = new double[0];
+            segmentQualities = new int[]{0};
+            stableQuality = 0;
+            return;
+        }
+        // Every crossing of two score lines within [0, stableBufferS] is a candidate threshold.
+        double gp = getGp(0);
+        double vp = getVp(0);
+        int n = bitrates.length;
+        double[] crossings = new double[n * (n - 1) / 2 + 2];
+        int crossingCount = 0;
+        crossings[crossingCount++] = 0;
+        crossings[crossingCount++] = stableBufferS;
+        for (int i = 0; i < n; i++) {
+            for (int j = i + 1; j < n; j++) {
+                double slopeDifference = 1 / bitrates[i] - 1 / bitrates[j];
+                if (slopeDifference == 0) {
+                    continue;
+                }
+                double crossing = (vp * (utilities[i] + gp) / bitrates[i]
+                        - vp * (utilities[j] + gp) / bitrates[j]) / slopeDifference;
+                if (crossing > 0 && crossing < stableBufferS) {
+                    crossings[crossingCount++] = crossing;
+                }
+            }
+        }
+        Arrays.sort(crossings, 0, crossingCount);
+        // The best quality in the middle of each interval, merging equal neighbours.
+        double[] segmentThresholds = new double[crossingCount];
+        int[] qualities = new int[crossingCount];
+        int segmentCount = 0;
+        qualities[segmentCount++] = scoreAll(0);
+        for (int k = 0; k + 1 < crossingCount; k++) {
+            if (crossings[k + 1] == crossings[k]) {
+                continue;
+            }
+            int quality = scoreAll((crossings[k] + crossings[k + 1]) / 2);
+            if (quality != qualities[segmentCount - 1]) {
+                segmentThresholds[segmentCount - 1] = crossings[k];
+                qualities[segmentCount++] = quality;
+            }
+        }
+        this.thresholds = Arrays.copyOf(segmentThresholds, segmentCount - 1);
+        this.segmentQualities = Arrays.copyOf(qualities, segmentCount);
+        this.stableQuality = scoreAll(stableBufferS + minimumBufferS);
+    }
+
+    /**
+     * Returns whether BOLA decides at all: it keeps the current quality when the first quality has
+     * the highest utility.
+     */
+    public boolean hasDecision() {
+        return highestUtilityIndex != 0;
+    }
+
+    /**
+     * Returns the BOLA {@code gp} parameter at a buffer level.
+     */
+    public double getGp(double bufferLevelS) {
+        double bufferTime = Math.max(bufferLevelS, stableBufferS);
+        return (utilities[highestUtilityIndex] - 1) / (bufferTime / minimumBufferS - 1);
+    }
+
+    /**
+     * Returns the BOLA {@code vp} parameter at a buffer level.
+     */
+    public double getVp(double bufferLevelS) {
+        return minimumBufferS / getGp(bufferLevelS);
+    }
+
+    /**
+     * Returns the score of a quality at a buffer level.
+     */
+    public double getScore(int quality, double bufferLevelS) {
+        double gp = getGp(bufferLevelS);
+        double vp = minimumBufferS / gp;
+        return (vp * (utilities[quality] + gp) - bufferLevelS) / bitrates[quality];
+    }
+
+    /**
+     * Writes the score of every quality at a buffer level, for the decision trace.
+     *
+     * @param bufferLevelS The buffer level.
+     * @param scores       Receives one score per quality.
+     */
+    public void getScores(double bufferLevelS, double[] scores) {
+        double gp = getGp(bufferLevelS);
+        double vp = minimumBufferS / gp;
+        for (int i = 0; i < bitrates.length; i++) {
+            scores[i] = (vp * (utilities[i] + gp) - bufferLevelS) / bitrates[i];
+        }
+    }
+
+    /**
+     * Returns the quality BOLA picks at a buffer level, which must be non-negative. Only valid if
+     * {@link #hasDecision()}.
+     */
+    public int selectQuality(double bufferLevelS) {
+        if (exhaustive) {
+            return scoreAll(bufferLevelS);
+        }
+        if (bufferLevelS > stableBufferS) {
+            return best(stableQuality, segmentQualities[segmentQualities.length - 1], stableQuality,
+                    bufferLevelS);
+        }
+        int segment = upperBound(bufferLevelS);
+        return best(
+                segmentQualities[Math.max(segment - 1, 0)],
+                segmentQualities[segment],
+                segmentQualities[Math.min(segment + 1, segmentQualities.length - 1)],
+                bufferLevelS);
+    }
+
+    /**
+     * Returns the quality BOLA picks at a buffer level when each quality is scored by the bitrate of
+     * its next segment instead of its ladder bitrate, and writes the scores. The utilities, and so
+     * {@code gp} and {@code vp}, remain those of the ladder. Segment bitrates vary from segment to
+     * segment, so this scores every quality.
+     *
+     * @param bufferLevelS    The buffer level.
+     * @param segmentBitrates The bitrate of the next segment of each quality, in the unit of the
+     *                        ladder. Must be positive.
+     * @param scores          Receives one score per quality.
+     * @return The last quality with the highest score.
+     */
+    public int selectQuality(double bufferLevelS, double[] segmentBitrates, double[] scores) {
+        double gp = getGp(bufferLevelS);
+        double vp = minimumBufferS / gp;
+        int quality = 0;
+        for (int i = 0; i < bitrates.length; i++) {
+            scores[i] = (vp * (utilities[i] + gp) - bufferLevelS) / segmentBitrates[i];
+            if (scores[i] >= scores[quality]) {
+                quality = i;
+            }
+        }
+        return quality;
+    }
+
+    /**
+     * Returns the lowest buffer level at which BOLA picks a quality at least as high as the given
+     * one, or 0 if the ladder is scored in full.
+     */
+    public double getMinimumBufferLevel(int quality) {
+        if (exhaustive) {
+            return 0;
+        }
+        if (segmentQualities[0] >= quality) {
+            return 0;
+        }
+        for (int j = 1; j < segmentQualities.length; j++) {
+            if (segmentQualities[j] >= quality) {
+                // The scores at a crossing round either way; step to where the quality wins.
+                double level = thresholds[j - 1];
+                for (int step = 0; step < 64 && selectQuality(level) < quality; step++) {
+                    level = Math.nextUp(level);
+                }
+                return level;
+            }
+        }
+        return stableBufferS;
+    }
+
+    /**
+     * Returns the buffer level above which BOLA picks a higher quality than the given one, or
+     * {@link Double#POSITIVE_INFINITY} if it never does or the ladder is scored in full.
+     */
+    public double getMaximumBufferLevel(int quality) {
+        if (exhaustive) {
+            return Double.POSITIVE_INFINITY;
+        }
+        for (int j = 0; j < segmentQualities.length; j++) {
+            if (segmentQualities[j] > quality) {
+                return j == 0 ? 0 : thresholds[j - 1];
+            }
+        }
+        return stableQuality > quality ? stableBufferS : Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Returns the buffer levels at which the quality changes below the stable buffer level,
+     * ascending.
+     */
+    public double[] getThresholds() {
+        return thresholds.clone();
+    }
+
+    // The last of the given qualities with the highest score, as the scoring loop breaks ties.
+    private int best(int a, int b, int c, double bufferLevelS) {
+        int low = Math.min(a, Math.min(b, c));
+        int high = Math.max(a, Math.max(b, c));
+        int middle = a + b + c - low - high;
+        double gp = getGp(bufferLevelS);
+        double vp = minimumBufferS / gp;
+        int quality = low;
+        double score = (vp * (utilities[low] + gp) - bufferLevelS) / bitrates[low];
+        double middleScore = (vp * (utilities[middle] + gp) - bufferLevelS) / bitrates[middle];
+        if (middleScore >= score) {
+            quality = middle;
+            score = middleScore;
+        }
+        double highScore = (vp * (utilities[high] + gp) - bufferLevelS) / bitrates[high];
+        if (highScore >= score) {
+            quality = high;
+        }
+        return quality;
+    }
+
+    // The full scoring loop, used to build the segments and as the reference.
+    private int scoreAll(double bufferLevelS) {
+        return selectQualityByScoring(bitrates, utilities, minimumBufferS,
+                (stableBufferS - minimumBufferS) / bitrates.length, bufferLevelS);
+    }
+
+    // Index of the segment holding bufferLevelS: the number of thresholds at or below it.
+    private int upperBound(double bufferLevelS) {
+        int low = 0;
+        int high = thresholds.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (thresholds[middle] <= bufferLevelS) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Returns the quality the BOLA scoring loop picks, scoring every quality. The reference {@link
+     * #selectQuality} is checked against.
+     */
+    public static int selectQualityByScoring(
+            double[] bitrates,
+            double[] utilities,
+            double minimumBufferS,
+            double minimumBufferPerLevelS,
+            double bufferLevelS) {
+        double bufferTime = Math.max(bufferLevelS, minimumBufferS + minimumBufferPerLevelS * bitrates.length);
+        int highestUtilityIndex = 0;
+        for (int i = 0; i < utilities.length; i++) {
+            highestUtilityIndex = utilities[i] > utilities[highestUtilityIndex] ? i : highestUtilityIndex;
+        }
+        double gp = (utilities[highestUtilityIndex] - 1) / (bufferTime / minimumBufferS - 1);
+        double vp = minimumBufferS / gp;
+        int quality = -1;
+        double score = Double.NaN;
+        for (int i = 0; i < bitrates.length; i++) {
+            double s = (vp * (utilities[i] + gp) - bufferLevelS) / bitrates[i];
+            if (Double.isNaN(score) || s >= score) {
+                quality = i;
+                score = s;
+            }
+        }
+        return quality;
+    }
+
+    /**
+     * Checks {@link #selectQuality} against {@link #selectQualityByScoring} on a fine grid of
+     * buffer levels and around every threshold, for the ladders of a catalog descriptor.
+     *
+     * <p>Usage: {@code BolaThresholds <video_catalog.txt>}.
+     */
+    public static void main(String[] args) throws java.io.IOException {
+        if (args.length < 1) {
+            System.out.println("Usage: BolaThresholds <video_catalog.txt>");
+            return;
+        }
+        java.io.Reader reader = new java.io.FileReader(args[0]);
+        VideoCatalog catalog;
+        try {
+            catalog = VideoCatalog.parse(reader);
+        } finally {
+            reader.close();
+        }
+        long checked = 0;
+        long mismatches = 0;
+        for (String contentId : catalog.getContentIds()) {
+            double[] bitrates = catalog.get(contentId).bitrateLadderKbps;
+            double[] utilities = new double[bitrates.length];
+            for (int i = 0; i < bitrates.length; i++) {
+                utilities[i] = Math.log(bitrates[i]);
+            }
+            BolaThresholds bolaThresholds = new BolaThresholds(bitrates, utilities, 10, 2);
+            if (!bolaThresholds.hasDecision()) {
+                continue;
+            }
+            double[] levels = new double[600001 + 64 * bolaThresholds.thresholds.length];
+            int levelCount = 0;
+            for (int i = 0; i <= 600000; i++) {
+                levels[levelCount++] = i / 10000.0;
+            }
+            for (double threshold : bolaThresholds.thresholds) {
+                double level = threshold;
+                for (int k = 0; k < 32; k++) {
+                    level = Math.nextDown(level);
+                }
+                for (int k = 0; k < 64; k++) {
+                    levels[levelCount++] = level;
+                    level = Math.nextUp(level);
+                }
+            }
+            for (int i = 0; i < levelCount; i++) {
+                int expected = selectQualityByScoring(bitrates, utilities, 10, 2, levels[i]);
+                if (bolaThresholds.selectQuality(levels[i]) != expected) {
+                    mismatches++;
+                }
+                checked++;
+            }
+            System.out.println(contentId + ": thresholds " + Arrays.toString(bolaThresholds.thresholds));
+        }
+        System.out.println("Checked " + checked + " buffer levels, " + mismatches + " mismatches");
+    }
+}
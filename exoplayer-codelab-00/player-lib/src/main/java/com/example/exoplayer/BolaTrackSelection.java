@@ -16,8 +16,6 @@
 package com.example.exoplayer;
 
 import android.content.Context;
-import android.widget.TextView;
-import android.widget.TextView;
 
 import androidx.annotation.Nullable;
 
@@ -38,19 +36,26 @@ import com.google.android.exoplayer2.util.Util;
 import org.checkerframework.checker.nullness.compatqual.NullableType;
 import org.w3c.dom.Text;
 
-import java.io.IOException;
-import java.io.OutputStreamWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.stream.Collector;
 
-import static java.lang.Math.abs;
 import static java.lang.Math.max;
 
 /**
  * A bandwidth based adaptive {@link TrackSelection}, whose selected track is updated to be the one
  * of highest quality given the current network conditions and the state of the buffer.
+ *
+ * <p>In {@link #MODE_BOLA} the quality follows the buffer level only. In {@link #MODE_DYNAMIC} a
+ * throughput rule decides while the buffer is low, at startup and after seeks, and BOLA decides
+ * once the buffer is stable, counting a placeholder buffer on top of the real one so that the
+ * handover keeps the quality the throughput rule reached (BOLA-E).
+ *
+ * <p>A segment size aware selection scores each quality by the bitrate of its next segment rather
+ * than its average ladder bitrate, so that BOLA sees the oversized segments of VBR content. Sizes
+ * come from the byte ranges the stream announces, or else from the video's {@link ChunkSizeIndex};
+ * a decision for which a size is unknown falls back to the ladder bitrates.
  */
 public class BolaTrackSelection extends BaseTrackSelection {
 
@@ -61,31 +66,46 @@ public class BolaTrackSelection extends BaseTrackSelection {
     public static final float DEFAULT_BUFFERED_FRACTION_TO_LIVE_EDGE_FOR_QUALITY_INCREASE = 0.75f;
     public static final long DEFAULT_MIN_TIME_BETWEEN_BUFFER_REEVALUTATION_MS = 2000;
 
+    /**
+     * Selects by buffer level only, starting at the lowest quality.
+     */
+    public static final int MODE_BOLA = 0;
+    /**
+     * Selects by throughput while the buffer is below the stable buffer time and by BOLA with a
+     * placeholder buffer above it, like the DYNAMIC rule of dash.js.
+     */
+    public static final int MODE_DYNAMIC = 1;
+
 
-    private Double[] VIDEO_BIT_RATE;
-    private Double[] UTILITIES;
+    private double[] VIDEO_BIT_RATE;
+    private double[] UTILITIES;
+    // Quality changes of the ladder, so that a decision does not score every quality
+    private final BolaThresholds thresholds;
+    // Score of each quality in the latest decision, kept for the trace
+    private final double[] scores;
     private String video_name;
-    private final TextView infoText;
-    private final String initialText;
+    private final AbrMetricsPublisher metricsPublisher;
     private long previousSelectTimeMs;
-    private long previousBufferedDuration;
+    // Sequence number of the latest chunk load a decision was made for
+    private long processedLoadSequence;
+    // Session rebuffering time at the previous decision
+    private long previousRebufferMs;
     private int previousBitrate;
-    private final int qoeType = QOE_LINEAR;
-
-    private double totalQoe = 0;
+    private final QoeAccumulator qoe;
     private double totalBitrate = 0;
-    private ArrayList<Double> qoe;
 
     private static final double MINIMUM_BUFFER_S = 10.0;
     private static final double MINIMUM_BUFFER_PER_BITRATE_LEVEL_S = 2.0;
     private static final double DEFAULT_STABLE_BUFFER_TIME = 12.0;
-    private static final double M_IN_K = 1000.0;
-    private static final double REBUF_PENALTY = 4.3;
-    private static final double SMOOTH_PENALTY = 1.0;
-    public static final int QOE_UNKNOWN = 0;
-    public static final int QOE_LINEAR = 1;
-    public static final int QOE_LOG = 2;
-    public static final int QOE_HD = 3;
+    // MODE_DYNAMIC hands over to BOLA at the stable buffer time and back below half of it.
+    private static final double BOLA_SWITCH_ON_BUFFER_S = DEFAULT_STABLE_BUFFER_TIME;
+    private static final double BOLA_SWITCH_OFF_BUFFER_S = DEFAULT_STABLE_BUFFER_TIME / 2;
+    // Segment size aware selections only score the next segment.
+    private static final int SEGMENT_SIZE_LOOKAHEAD = 1;
+    public static final int QOE_UNKNOWN = QoeAccumulator.QOE_UNKNOWN;
+    public static final int QOE_LINEAR = QoeAccumulator.QOE_LINEAR;
+    public static final int QOE_LOG = QoeAccumulator.QOE_LOG;
+    public static final int QOE_HD = QoeAccumulator.QOE_HD;
     private final BandwidthProvider bandwidthProvider;
     private final long minDurationForQualityIncreaseUs;
     private final long maxDurationForQualityDecreaseUs;
@@ -97,27 +117,45 @@ public class BolaTrackSelection extends BaseTrackSelection {
     private float playbackSpeed;
     private int selectedIndex;
     private long lastBufferEvaluationMs;
-    private OutputStreamWriter outputStreamWriter;
+    @Nullable
+    private DecisionTraceRecorder traceRecorder;
     private Listener listener;
     private int chunkProcessedCount;
+    private final int mode;
+    // MODE_DYNAMIC: whether BOLA decides rather than the throughput rule
+    private boolean useBola;
+    // MODE_DYNAMIC: buffer BOLA counts on top of the real buffer, in seconds
+    private double placeholderBufferS;
+    // Whether decisions score the size of the next segment rather than the ladder bitrate
+    private final boolean segmentSizeAware;
+    @Nullable
+    private final ChunkSizeIndex chunkSizeIndex;
+    private final int totalChunks;
+    @Nullable
+    private final SegmentSizeProvider segmentSizes;
+    // Bitrate of the next segment of each quality in kbps, lowest first
+    private final double[] nextSegmentBitrates;
 
 
     /**
+     * @param catalog        Provides the bitrate ladder of the video.
      * @param group          The {@link TrackGroup}.
      * @param tracks         The indices of the selected tracks within the {@link TrackGroup}. Must not be
      *                       empty. May be in any order.
      * @param bandwidthMeter Provides an estimate of the currently available bandwidth.
      */
-    public BolaTrackSelection(String video_name, TextView infoText,
-                              OutputStreamWriter outputStreamWriter,
+    public BolaTrackSelection(String video_name, AbrMetricsPublisher metricsPublisher,
+                              DecisionTraceRecorder traceRecorder,
                               Listener listener,
+                              VideoCatalog catalog,
                               TrackGroup group, int[] tracks,
                               BandwidthMeter bandwidthMeter) {
         this(
                 video_name,
-                infoText,
-                outputStreamWriter,
+                metricsPublisher,
+                traceRecorder,
                 listener,
+                catalog,
                 group,
                 tracks,
                 bandwidthMeter,
@@ -132,6 +170,7 @@ public class BolaTrackSelection extends BaseTrackSelection {
     }
 
     /**
+     * @param catalog                                      Provides the bitrate ladder of the video.
      * @param group                                        The {@link TrackGroup}.
      * @param tracks                                       The indices of the selected tracks within the {@link TrackGroup}. Must not be
      *                                                     empty. May be in any order.
@@ -162,9 +201,10 @@ public class BolaTrackSelection extends BaseTrackSelection {
      */
     public BolaTrackSelection(
             String video_name,
-            TextView infoText,
-            OutputStreamWriter outputStreamWriter,
+            AbrMetricsPublisher metricsPublisher,
+            DecisionTraceRecorder traceRecorder,
             Listener listener,
+            VideoCatalog catalog,
             TrackGroup group,
             int[] tracks,
             BandwidthMeter bandwidthMeter,
@@ -178,9 +218,10 @@ public class BolaTrackSelection extends BaseTrackSelection {
             Clock clock) {
         this(
                 video_name,
-                infoText,
-                outputStreamWriter,
+                metricsPublisher,
+                traceRecorder,
                 listener,
+                catalog,
                 group,
                 tracks,
                 new DefaultBandwidthProvider(bandwidthMeter, bandwidthFraction, reservedBandwidth),
@@ -189,14 +230,18 @@ public class BolaTrackSelection extends BaseTrackSelection {
                 minDurationToRetainAfterDiscardMs,
                 bufferedFractionToLiveEdgeForQualityIncrease,
                 minTimeBetweenBufferReevaluationMs,
-                clock);
+                clock,
+                MODE_BOLA,
+                /* metadata= */ null,
+                /* segmentSizeAware= */ false);
     }
 
     private BolaTrackSelection(
             String video_name,
-            TextView infoText,
-            OutputStreamWriter outputStreamWriter,
+            AbrMetricsPublisher metricsPublisher,
+            @Nullable DecisionTraceRecorder traceRecorder,
             Listener listener,
+            VideoCatalog catalog,
             TrackGroup group,
             int[] tracks,
             BandwidthProvider bandwidthProvider,
@@ -205,13 +250,15 @@ public class BolaTrackSelection extends BaseTrackSelection {
             long minDurationToRetainAfterDiscardMs,
             float bufferedFractionToLiveEdgeForQualityIncrease,
             long minTimeBetweenBufferReevaluationMs,
-            Clock clock) {
+            Clock clock,
+            int mode,
+            @Nullable VideoMetadata metadata,
+            boolean segmentSizeAware) {
         super(group, tracks);
         this.video_name = video_name;
-        this.infoText = infoText;
-        this.outputStreamWriter = outputStreamWriter;
+        this.metricsPublisher = metricsPublisher;
+        this.traceRecorder = traceRecorder;
         this.listener = listener;
-        this.initialText = infoText.getText().toString();
         this.bandwidthProvider = bandwidthProvider;
         this.minDurationForQualityIncreaseUs = minDurationForQualityIncreaseMs * 1000L;
         this.maxDurationForQualityDecreaseUs = maxDurationForQualityDecreaseMs * 1000L;
@@ -223,37 +270,27 @@ public class BolaTrackSelection extends BaseTrackSelection {
         playbackSpeed = 1f;
         reason = C.SELECTION_REASON_UNKNOWN;
         lastBufferEvaluationMs = C.TIME_UNSET;
-        switch (video_name){
-            case "envivio":
-                this.VIDEO_BIT_RATE = new Double[]{300.0, 750.0, 1200.0, 1850.0, 2850.0, 4300.0};
-                break;
-            case "tears_of_steel":
-                this.VIDEO_BIT_RATE = new Double[]{686.685,686.685,1116.150,1929.169,2362.822,2470.094};
-                break;
-            case "redbull_2sec":
-                this.VIDEO_BIT_RATE = new Double[]{300.795,700.051,1179.845,1993.730,2995.671,3992.758};
-                break;
-            case "bbb_30fps":
-                this.VIDEO_BIT_RATE = new Double[]{507.246,1013.310,1254.758,1883.700,3134.488,4952.892};
-                break;
-            case "elephants_dream":
-//                this.totalChunks = 653;
-                this.VIDEO_BIT_RATE = new Double[]{344.976, 808.384, 1273.596, 2186.563, 3127.680, 4516.590};
-                break;
-            case "forest":
-//                this.totalChunks = 454;
-                this.VIDEO_BIT_RATE = new Double[]{279.652, 836.887, 1282.108, 1779.588, 2568.145, 3894.863};
-                break;
-        }
-        this.UTILITIES = new Double[this.VIDEO_BIT_RATE.length];
+        this.VIDEO_BIT_RATE = catalog.getBitrateLadderKbps(video_name, this);
+        this.UTILITIES = new double[this.VIDEO_BIT_RATE.length];
+        this.scores = new double[this.VIDEO_BIT_RATE.length];
         for(int i=0;i<this.VIDEO_BIT_RATE.length;i++){
             this.UTILITIES[i] = Math.log(this.VIDEO_BIT_RATE[i]);
         }
-        this.previousBufferedDuration = 0;
+        this.thresholds = new BolaThresholds(this.VIDEO_BIT_RATE, this.UTILITIES,
+                MINIMUM_BUFFER_S, MINIMUM_BUFFER_PER_BITRATE_LEVEL_S);
+        this.processedLoadSequence = listener.getLastChunkLoad().sequence;
+        this.previousRebufferMs = listener.getRebufferTracker().getTotalRebufferMs(clock.elapsedRealtime());
         this.previousSelectTimeMs = clock.elapsedRealtime();
         this.previousBitrate = 0;
-        this.qoe = new ArrayList<>();
+        this.qoe = new QoeAccumulator(QOE_LINEAR, this.VIDEO_BIT_RATE);
         this.chunkProcessedCount=0;
+        this.mode = mode;
+        this.segmentSizeAware = segmentSizeAware;
+        this.chunkSizeIndex = metadata == null ? null : metadata.chunkSizes;
+        this.totalChunks = metadata == null ? 0 : metadata.chunkCount;
+        this.segmentSizes = segmentSizeAware ? new SegmentSizeProvider(tracks.length) : null;
+        this.nextSegmentBitrates = new double[this.VIDEO_BIT_RATE.length];
+        listener.getAbandonmentEngine().setTracks(this);
     }
 
     /**
@@ -373,13 +410,16 @@ public class BolaTrackSelection extends BaseTrackSelection {
 
     /**
      * Sets checkpoints to determine the allocation bandwidth based on the total bandwidth.
+     * Has no effect on a selection whose bandwidth comes from a {@link BandwidthEstimator}.
      *
      * @param allocationCheckpoints List of checkpoints. Each element must be a long[2], with [0]
      *                              being the total bandwidth and [1] being the allocated bandwidth.
      */
     public void experimental_setBandwidthAllocationCheckpoints(long[][] allocationCheckpoints) {
-        ((DefaultBandwidthProvider) bandwidthProvider)
-                .experimental_setBandwidthAllocationCheckpoints(allocationCheckpoints);
+        if (bandwidthProvider instanceof DefaultBandwidthProvider) {
+            ((DefaultBandwidthProvider) bandwidthProvider)
+                    .experimental_setBandwidthAllocationCheckpoints(allocationCheckpoints);
+        }
     }
 
     @Override
@@ -399,80 +439,119 @@ public class BolaTrackSelection extends BaseTrackSelection {
             long availableDurationUs,
             List<? extends MediaChunk> queue,
             MediaChunkIterator[] mediaChunkIterators) {
+        DownloadAbandonmentEngine abandonmentEngine = this.listener.getAbandonmentEngine();
+        abandonmentEngine.onChunkRequested(bufferedDurationUs);
         if(reason == C.SELECTION_REASON_UNKNOWN){
             reason = C.SELECTION_REASON_INITIAL;
-            selectedIndex = VIDEO_BIT_RATE.length - 1;
+            selectedIndex = mode == MODE_DYNAMIC
+                    ? determineIdealSelectedIndex(clock.elapsedRealtime())
+                    : VIDEO_BIT_RATE.length - 1;
+            return;
+        }
+        // A chunk abandoned mid-download is requested again at the quality the engine picked.
+        int abandonedTrackIndex = abandonmentEngine.pollAbandonedTrack();
+        if(abandonedTrackIndex != C.INDEX_UNSET && abandonedTrackIndex > selectedIndex){
+            AbrTrace.info(AbrTrace.EVENT_SELECTED_INDEX, abandonedTrackIndex, 0);
+            selectedIndex = abandonedTrackIndex;
+            reason = C.SELECTION_REASON_ADAPTIVE;
+            return;
+        }
+        if(mode == MODE_DYNAMIC && queue.isEmpty()){
+            // Nothing buffered ahead of the position: a join or a seek starts over from throughput.
+            useBola = false;
+            placeholderBufferS = 0;
+            selectedIndex = determineIdealSelectedIndex(clock.elapsedRealtime());
             return;
         }
-        if(this.listener.getDataType() != C.DATA_TYPE_MEDIA){
+        // One decision per completed chunk
+        ChunkLoadRecord chunkLoad = this.listener.getLastChunkLoad();
+        if(!chunkLoad.isNewerThan(this.processedLoadSequence)){
             return;
         }
-        long delay = this.listener.getChunkLoadDuration();
+        this.processedLoadSequence = chunkLoad.sequence;
+        boolean segmentBitratesKnown = segmentSizeAware && updateNextSegmentBitrates(queue, mediaChunkIterators);
         int currentSelectedIndex = this.length -selectedIndex - 1;
-        double bufferTime = max(bufferedDurationUs/1000000.0,MINIMUM_BUFFER_S+MINIMUM_BUFFER_PER_BITRATE_LEVEL_S*VIDEO_BIT_RATE.length);
         double bufferLevel = bufferedDurationUs/1000000.0;
-        int highestUtilityIndex = 0;
-        for(int i=0;i<UTILITIES.length;i++){
-            highestUtilityIndex = UTILITIES[i]>UTILITIES[highestUtilityIndex]? i: highestUtilityIndex;
-        }
-        if(highestUtilityIndex == 0){
+        if(!thresholds.hasDecision()){
             return;
         }
-        double gp = (UTILITIES[highestUtilityIndex]-1)/(bufferTime/MINIMUM_BUFFER_S-1);
-        double vp = MINIMUM_BUFFER_S/gp;
-        try {
-            this.outputStreamWriter.write("-----Chunk: "+this.chunkProcessedCount+"-----\n");
-            this.outputStreamWriter.write("Buffered duration: "+bufferedDurationUs/1000000.0);
-            this.outputStreamWriter.write(" gp: "+gp+" vp: "+vp+"\nScores: ");
-
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        int quality = -1;
-        Double score = Double.NaN;
-        for(int i=0;i<VIDEO_BIT_RATE.length;i++){
-            double s = (vp*(UTILITIES[i]+gp)-bufferLevel) / VIDEO_BIT_RATE[i];
-            try {
-                this.outputStreamWriter.write(s+" ");
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-            if(score.isNaN() || s>=score){
-                quality = i;
-                score = s;
+        double bolaBufferLevel = bufferLevel;
+        // Whether the scores of this decision are already in scores
+        boolean segmentScored = false;
+        int quality;
+        if(mode == MODE_DYNAMIC){
+            long nowMs = clock.elapsedRealtime();
+            int throughputQuality = this.length - 1 - determineIdealSelectedIndex(nowMs);
+            boolean wasUsingBola = useBola;
+            useBola = useBola ? bufferLevel > BOLA_SWITCH_OFF_BUFFER_S : bufferLevel >= BOLA_SWITCH_ON_BUFFER_S;
+            if(!useBola){
+                placeholderBufferS = 0;
+                quality = throughputQuality;
+            } else {
+                if(!wasUsingBola){
+                    // Start BOLA where it would pick the quality the throughput rule reached.
+                    placeholderBufferS = max(0, thresholds.getMinimumBufferLevel(throughputQuality) - bufferLevel);
+                } else {
+                    // Time the loader idled since the last chunk is buffer BOLA did not have to fill.
+                    placeholderBufferS += max(0, (nowMs - chunkLoad.endTimeMs) / 1000.0);
+                }
+                bolaBufferLevel = bufferLevel + placeholderBufferS;
+                quality = selectBolaQuality(bolaBufferLevel, segmentBitratesKnown);
+                segmentScored = segmentBitratesKnown;
+                // Do not step up past the throughput, which would oscillate around it (BOLA-O).
+                if(quality > currentSelectedIndex && quality > throughputQuality){
+                    quality = Math.max(throughputQuality, currentSelectedIndex);
+                }
+                // Drop the placeholder buffer the chosen quality does not need.
+                double excessBufferS = bolaBufferLevel - thresholds.getMaximumBufferLevel(quality);
+                if(excessBufferS > 0){
+                    placeholderBufferS = max(0, placeholderBufferS - excessBufferS);
+                }
             }
+        } else {
+            quality = selectBolaQuality(bufferLevel, segmentBitratesKnown);
+            segmentScored = segmentBitratesKnown;
         }
-        System.out.println("Selected quality "+quality);
+        AbrTrace.info(AbrTrace.EVENT_SELECTED_QUALITY, quality, 0);
 
         if(selectedIndex != VIDEO_BIT_RATE.length - 1 - quality){
             selectedIndex = VIDEO_BIT_RATE.length-1-quality;
             reason = C.SELECTION_REASON_ADAPTIVE;
         }
-        double rebuf = max(delay - (double)this.previousBufferedDuration/1000, 0.0) / 1000.0;
-        if(this.qoeType == QOE_LINEAR){
-            double reward = (double) VIDEO_BIT_RATE[currentSelectedIndex] / M_IN_K -
-                    REBUF_PENALTY * rebuf -
-                    SMOOTH_PENALTY * abs(VIDEO_BIT_RATE[currentSelectedIndex] - VIDEO_BIT_RATE[previousBitrate])/M_IN_K;
-            System.out.println("reward: "+reward);
-            qoe.add(reward);
-            totalQoe += reward;
+        long rebufferMs = this.listener.getRebufferTracker().getTotalRebufferMs(clock.elapsedRealtime());
+        double rebuf = (rebufferMs - this.previousRebufferMs) / 1000.0;
+        this.previousRebufferMs = rebufferMs;
+        double reward;
+        synchronized (qoe) {
+            reward = qoe.add(currentSelectedIndex, previousBitrate, rebuf);
         }
+        AbrTrace.info(AbrTrace.EVENT_REWARD, this.chunkProcessedCount, reward);
 
         this.totalBitrate += this.VIDEO_BIT_RATE[quality];
-        String info_text = this.initialText + "\n" + "Qoe: "+totalQoe + "\n" + "Bitrate: "+this.totalBitrate;
-        this.infoText.setText(info_text);
+        this.metricsPublisher.publish(qoe.getTotal(), this.totalBitrate);
         this.previousBitrate = currentSelectedIndex;
-        this.previousBufferedDuration = bufferedDurationUs;
-        try {
-            this.outputStreamWriter.write("\n Selected quality: "+quality+" Value: "+VIDEO_BIT_RATE[quality]+"\n");
-            this.outputStreamWriter.write("Total Qoe: "+totalQoe+"\n");
-            this.outputStreamWriter.write("Total Bitrate: "+totalBitrate+"\n");
-        } catch (IOException e) {
-            e.printStackTrace();
+        if(this.traceRecorder != null && this.traceRecorder.isEnabled()){
+            // Ladder scores are only needed for the trace.
+            if(!segmentScored){
+                thresholds.getScores(bolaBufferLevel, this.scores);
+            }
+            this.traceRecorder.recordBola(this.chunkProcessedCount, bufferLevel,
+                    thresholds.getGp(bolaBufferLevel), thresholds.getVp(bolaBufferLevel),
+                    this.scores, VIDEO_BIT_RATE.length, quality, VIDEO_BIT_RATE[quality],
+                    qoe.getTotal(), totalBitrate);
         }
         this.chunkProcessedCount++;
     }
 
+    /**
+     * Returns the QoE statistics of the decisions made so far. May be called from any thread.
+     */
+    public QoeAccumulator.Snapshot getQoeSnapshot() {
+        synchronized (qoe) {
+            return qoe.snapshot();
+        }
+    }
+
     @Override
     public int getSelectedIndex() {
         return selectedIndex;
@@ -601,6 +680,58 @@ public class BolaTrackSelection extends BaseTrackSelection {
                 : minDurationForQualityIncreaseUs;
     }
 
+    /**
+     * Returns the quality BOLA picks at a buffer level. Scoring the next segments also writes the
+     * scores of the qualities.
+     *
+     * @param bufferLevelS         The buffer level BOLA decides for.
+     * @param segmentBitratesKnown Whether to score {@code nextSegmentBitrates} rather than the
+     *                             ladder.
+     */
+    private int selectBolaQuality(double bufferLevelS, boolean segmentBitratesKnown) {
+        if (segmentBitratesKnown) {
+            return thresholds.selectQuality(bufferLevelS, nextSegmentBitrates, this.scores);
+        }
+        return thresholds.selectQuality(bufferLevelS);
+    }
+
+    /**
+     * Computes the bitrate of the segment following the last queued chunk for every quality, from
+     * its size and the duration of the last queued chunk.
+     *
+     * @param queue               The queue of already buffered chunks.
+     * @param mediaChunkIterators The iterators over the upcoming chunks of each track.
+     * @return Whether the size of every quality's next segment is known.
+     */
+    private boolean updateNextSegmentBitrates(
+            List<? extends MediaChunk> queue, MediaChunkIterator[] mediaChunkIterators) {
+        if (queue.isEmpty()) {
+            return false;
+        }
+        MediaChunk lastChunk = queue.get(queue.size() - 1);
+        long durationUs = lastChunk.endTimeUs - lastChunk.startTimeUs;
+        if (lastChunk.chunkIndex == C.INDEX_UNSET || durationUs <= 0) {
+            return false;
+        }
+        long nextChunkIndex = lastChunk.chunkIndex + 1;
+        this.segmentSizes.update(mediaChunkIterators, nextChunkIndex, SEGMENT_SIZE_LOOKAHEAD);
+        // The index counts chunks from the first one decided, as the Pensieve selection does.
+        int nextChunk = this.chunkProcessedCount + 1;
+        for (int quality = 0; quality < VIDEO_BIT_RATE.length; quality++) {
+            int size = this.segmentSizes.getSize(this.length - quality - 1, nextChunkIndex);
+            if (size == C.LENGTH_UNSET && this.chunkSizeIndex != null && nextChunk < this.totalChunks
+                    && quality < this.chunkSizeIndex.getQualityCount()) {
+                size = this.chunkSizeIndex.getChunkSize(quality, nextChunk);
+            }
+            if (size <= 0) {
+                return false;
+            }
+            // Bytes to kilobits, over the segment duration in seconds
+            this.nextSegmentBitrates[quality] = size * 8 / 1000.0 / (durationUs / 1000000.0);
+        }
+        return true;
+    }
+
     /**
      * Calculate total number of chunks in video
      *
@@ -618,17 +749,6 @@ public class BolaTrackSelection extends BaseTrackSelection {
         return chunkCount;
     }
 
-    /**
-     * Provides the allocated bandwidth.
-     */
-    private interface BandwidthProvider {
-
-        /**
-         * Returns the allocated bitrate.
-         */
-        long getAllocatedBandwidth();
-    }
-
     /**
      * Factory for {@link BolaTrackSelection} instances.
      */
@@ -638,9 +758,10 @@ public class BolaTrackSelection extends BaseTrackSelection {
         private final BandwidthMeter bandwidthMeter;
 //        private final Context context;
         private String video_name;
-        private TextView infoText;
-        private  OutputStreamWriter outputStreamWriter;
+        private AbrMetricsPublisher metricsPublisher;
+        private  DecisionTraceRecorder traceRecorder;
         private Listener listener;
+        private final VideoCatalog catalog;
         private final int minDurationForQualityIncreaseMs;
         private final int maxDurationForQualityDecreaseMs;
         private final int minDurationToRetainAfterDiscardMs;
@@ -648,18 +769,24 @@ public class BolaTrackSelection extends BaseTrackSelection {
         private final float bufferedFractionToLiveEdgeForQualityIncrease;
         private final long minTimeBetweenBufferReevaluationMs;
         private final Clock clock;
+        private final int mode;
+        @Nullable
+        private final VideoMetadata metadata;
+        private final boolean segmentSizeAware;
+        @Nullable
+        private final BandwidthEstimator bandwidthEstimator;
 
         /**
          * Creates an adaptive track selection factory with default parameters.
          */
-        public Factory(String video_name, TextView infoText,
-                       OutputStreamWriter outputStreamWriter,
+        public Factory(String video_name, AbrMetricsPublisher metricsPublisher,
+                       DecisionTraceRecorder traceRecorder,
                        Listener listener
         ) {
             this(
                     video_name,
-                    infoText,
-                    outputStreamWriter,
+                    metricsPublisher,
+                    traceRecorder,
                     listener,
                     DEFAULT_MIN_DURATION_FOR_QUALITY_INCREASE_MS,
                     DEFAULT_MAX_DURATION_FOR_QUALITY_DECREASE_MS,
@@ -670,20 +797,102 @@ public class BolaTrackSelection extends BaseTrackSelection {
                     Clock.DEFAULT);
         }
 
+        /**
+         * Creates an adaptive track selection factory with default parameters that takes bitrate
+         * ladders from the app's {@link VideoCatalog}. Selections made by factories created
+         * otherwise use the ladder announced by the manifest.
+         */
+        public Factory(Context context, String video_name, AbrMetricsPublisher metricsPublisher,
+                       DecisionTraceRecorder traceRecorder,
+                       Listener listener) {
+            this(context, video_name, metricsPublisher, traceRecorder, listener, MODE_BOLA);
+        }
+
+        /**
+         * Creates an adaptive track selection factory with default parameters that takes bitrate
+         * ladders from the app's {@link VideoCatalog} and selects with the given rule.
+         *
+         * @param mode The selection rule, {@link #MODE_BOLA} or {@link #MODE_DYNAMIC}.
+         */
+        public Factory(Context context, String video_name, AbrMetricsPublisher metricsPublisher,
+                       DecisionTraceRecorder traceRecorder,
+                       Listener listener,
+                       int mode) {
+            this(context, video_name, metricsPublisher, traceRecorder, listener, mode,
+                    /* segmentSizeAware= */ false);
+        }
+
+        /**
+         * Creates an adaptive track selection factory with default parameters that takes bitrate
+         * ladders from the app's {@link VideoCatalog} and selects with the given rule.
+         *
+         * @param mode             The selection rule, {@link #MODE_BOLA} or {@link #MODE_DYNAMIC}.
+         * @param segmentSizeAware Whether BOLA scores the size of each quality's next segment, taken
+         *                         from the stream or the {@link VideoMetadataCache}, rather than the
+         *                         ladder bitrate.
+         */
+        public Factory(Context context, String video_name, AbrMetricsPublisher metricsPublisher,
+                       DecisionTraceRecorder traceRecorder,
+                       Listener listener,
+                       int mode,
+                       boolean segmentSizeAware) {
+            this(context, video_name, metricsPublisher, traceRecorder, listener, mode,
+                    segmentSizeAware, /* bandwidthEstimator= */ null);
+        }
+
+        /**
+         * Creates an adaptive track selection factory with default parameters that takes bitrate
+         * ladders from the app's {@link VideoCatalog}, selects with the given rule and estimates
+         * the bandwidth with the given estimator.
+         *
+         * @param mode               The selection rule, {@link #MODE_BOLA} or {@link #MODE_DYNAMIC}.
+         * @param segmentSizeAware   Whether BOLA scores the size of each quality's next segment,
+         *                           taken from the stream or the {@link VideoMetadataCache}, rather
+         *                           than the ladder bitrate.
+         * @param bandwidthEstimator The estimator fed by the listener's {@link ThroughputSampler},
+         *                           replacing the player's bandwidth meter once it has a sample, or
+         *                           null to use the bandwidth meter only.
+         */
+        public Factory(Context context, String video_name, AbrMetricsPublisher metricsPublisher,
+                       DecisionTraceRecorder traceRecorder,
+                       Listener listener,
+                       int mode,
+                       boolean segmentSizeAware,
+                       @Nullable BandwidthEstimator bandwidthEstimator) {
+            this(
+                    video_name,
+                    metricsPublisher,
+                    traceRecorder,
+                    listener,
+                    /* bandwidthMeter= */ null,
+                    DEFAULT_MIN_DURATION_FOR_QUALITY_INCREASE_MS,
+                    DEFAULT_MAX_DURATION_FOR_QUALITY_DECREASE_MS,
+                    DEFAULT_MIN_DURATION_TO_RETAIN_AFTER_DISCARD_MS,
+                    DEFAULT_BANDWIDTH_FRACTION,
+                    DEFAULT_BUFFERED_FRACTION_TO_LIVE_EDGE_FOR_QUALITY_INCREASE,
+                    DEFAULT_MIN_TIME_BETWEEN_BUFFER_REEVALUTATION_MS,
+                    Clock.DEFAULT,
+                    VideoCatalog.getDefault(context),
+                    mode,
+                    segmentSizeAware ? VideoMetadataCache.getDefault().get(context, video_name) : null,
+                    segmentSizeAware,
+                    bandwidthEstimator);
+        }
+
         /**
          * @deprecated Use Factory() instead. Custom bandwidth meter should be directly passed
          * to the player in {@link SimpleExoPlayer.Builder}.
          */
         @Deprecated
         @SuppressWarnings("deprecation")
-        public Factory(String video_name, TextView infoText,
-                       OutputStreamWriter outputStreamWriter,
+        public Factory(String video_name, AbrMetricsPublisher metricsPublisher,
+                       DecisionTraceRecorder traceRecorder,
                        Listener listener,
                        BandwidthMeter bandwidthMeter) {
             this(
                     video_name,
-                    infoText,
-                    outputStreamWriter,
+                    metricsPublisher,
+                    traceRecorder,
                     listener,
                     bandwidthMeter,
                     DEFAULT_MIN_DURATION_FOR_QUALITY_INCREASE_MS,
@@ -712,8 +921,8 @@ public class BolaTrackSelection extends BaseTrackSelection {
          */
         public Factory(
                 String video_name,
-                TextView infoText,
-                OutputStreamWriter outputStreamWriter,
+                AbrMetricsPublisher metricsPublisher,
+                DecisionTraceRecorder traceRecorder,
                 Listener listener,
                 int minDurationForQualityIncreaseMs,
                 int maxDurationForQualityDecreaseMs,
@@ -721,8 +930,8 @@ public class BolaTrackSelection extends BaseTrackSelection {
                 float bandwidthFraction) {
             this(
                     video_name,
-                    infoText,
-                    outputStreamWriter,
+                    metricsPublisher,
+                    traceRecorder,
                     listener,
                     minDurationForQualityIncreaseMs,
                     maxDurationForQualityDecreaseMs,
@@ -741,8 +950,8 @@ public class BolaTrackSelection extends BaseTrackSelection {
         @SuppressWarnings("deprecation")
         public Factory(
                 String video_name,
-                TextView infoText,
-                OutputStreamWriter outputStreamWriter,
+                AbrMetricsPublisher metricsPublisher,
+                DecisionTraceRecorder traceRecorder,
                 Listener listener,
                 BandwidthMeter bandwidthMeter,
                 int minDurationForQualityIncreaseMs,
@@ -751,8 +960,8 @@ public class BolaTrackSelection extends BaseTrackSelection {
                 float bandwidthFraction) {
             this(
                     video_name,
-                    infoText,
-                    outputStreamWriter,
+                    metricsPublisher,
+                    traceRecorder,
                     listener,
                     bandwidthMeter,
                     minDurationForQualityIncreaseMs,
@@ -793,8 +1002,8 @@ public class BolaTrackSelection extends BaseTrackSelection {
         @SuppressWarnings("deprecation")
         public Factory(
                 String video_name,
-                TextView infoText,
-                OutputStreamWriter outputStreamWriter,
+                AbrMetricsPublisher metricsPublisher,
+                DecisionTraceRecorder traceRecorder,
                 Listener listener,
                 int minDurationForQualityIncreaseMs,
                 int maxDurationForQualityDecreaseMs,
@@ -805,8 +1014,8 @@ public class BolaTrackSelection extends BaseTrackSelection {
                 Clock clock) {
             this(
                     video_name,
-                    infoText,
-                    outputStreamWriter,
+                    metricsPublisher,
+                    traceRecorder,
                     listener,
                     /* bandwidthMeter= */ null,
                     minDurationForQualityIncreaseMs,
@@ -826,8 +1035,8 @@ public class BolaTrackSelection extends BaseTrackSelection {
         @Deprecated
         public Factory(
                 String video_name,
-                TextView infoText,
-                OutputStreamWriter outputStreamWriter,
+                AbrMetricsPublisher metricsPublisher,
+                DecisionTraceRecorder traceRecorder,
                 Listener listener,
                 @Nullable BandwidthMeter bandwidthMeter,
                 int minDurationForQualityIncreaseMs,
@@ -837,10 +1046,52 @@ public class BolaTrackSelection extends BaseTrackSelection {
                 float bufferedFractionToLiveEdgeForQualityIncrease,
                 long minTimeBetweenBufferReevaluationMs,
                 Clock clock) {
+            this(
+                    video_name,
+                    metricsPublisher,
+                    traceRecorder,
+                    listener,
+                    bandwidthMeter,
+                    minDurationForQualityIncreaseMs,
+                    maxDurationForQualityDecreaseMs,
+                    minDurationToRetainAfterDiscardMs,
+                    bandwidthFraction,
+                    bufferedFractionToLiveEdgeForQualityIncrease,
+                    minTimeBetweenBufferReevaluationMs,
+                    clock,
+                    VideoCatalog.EMPTY,
+                    MODE_BOLA,
+                    /* metadata= */ null,
+                    /* segmentSizeAware= */ false,
+                    /* bandwidthEstimator= */ null);
+        }
+
+        private Factory(
+                String video_name,
+                AbrMetricsPublisher metricsPublisher,
+                DecisionTraceRecorder traceRecorder,
+                Listener listener,
+                @Nullable BandwidthMeter bandwidthMeter,
+                int minDurationForQualityIncreaseMs,
+                int maxDurationForQualityDecreaseMs,
+                int minDurationToRetainAfterDiscardMs,
+                float bandwidthFraction,
+                float bufferedFractionToLiveEdgeForQualityIncrease,
+                long minTimeBetweenBufferReevaluationMs,
+                Clock clock,
+                VideoCatalog catalog,
+                int mode,
+                @Nullable VideoMetadata metadata,
+                boolean segmentSizeAware,
+                @Nullable BandwidthEstimator bandwidthEstimator) {
+            if (mode != MODE_BOLA && mode != MODE_DYNAMIC) {
+                throw new IllegalArgumentException("Unsupported mode: " + mode);
+            }
             this.video_name = video_name;
-            this.infoText = infoText;
-            this.outputStreamWriter = outputStreamWriter;
+            this.metricsPublisher = metricsPublisher;
+            this.traceRecorder = traceRecorder;
             this.listener = listener;
+            this.catalog = catalog;
             this.bandwidthMeter = bandwidthMeter;
             this.minDurationForQualityIncreaseMs = minDurationForQualityIncreaseMs;
             this.maxDurationForQualityDecreaseMs = maxDurationForQualityDecreaseMs;
@@ -850,6 +1101,14 @@ public class BolaTrackSelection extends BaseTrackSelection {
                     bufferedFractionToLiveEdgeForQualityIncrease;
             this.minTimeBetweenBufferReevaluationMs = minTimeBetweenBufferReevaluationMs;
             this.clock = clock;
+            this.mode = mode;
+            this.metadata = metadata;
+            this.segmentSizeAware = segmentSizeAware;
+            this.bandwidthEstimator = bandwidthEstimator;
+            if (bandwidthEstimator != null) {
+                bandwidthEstimator.reset();
+                listener.getThroughputSampler().setEstimator(bandwidthEstimator);
+            }
         }
 
         @Override
@@ -880,9 +1139,10 @@ public class BolaTrackSelection extends BaseTrackSelection {
                     BolaTrackSelection adaptiveSelection =
                             createAdaptiveTrackSelection(
                                     this.video_name,
-                                    this.infoText,
-                                    this.outputStreamWriter,
+                                    this.metricsPublisher,
+                                    this.traceRecorder,
                                     this.listener,
+                                    this.catalog,
                                     definition.group,
                                     bandwidthMeter,
                                     definition.tracks,
@@ -914,6 +1174,7 @@ public class BolaTrackSelection extends BaseTrackSelection {
         /**
          * Creates a single adaptive selection for the given group, bandwidth meter and tracks.
          *
+         * @param catalog                  The {@link VideoCatalog} providing bitrate ladders.
          * @param group                    The {@link TrackGroup}.
          * @param bandwidthMeter           A {@link BandwidthMeter} which can be used to select tracks.
          * @param tracks                   The indices of the selected tracks in the track group.
@@ -923,27 +1184,36 @@ public class BolaTrackSelection extends BaseTrackSelection {
          */
         protected BolaTrackSelection createAdaptiveTrackSelection(
                 String video_name,
-                TextView infoText,
-                OutputStreamWriter outputStreamWriter,
+                AbrMetricsPublisher metricsPublisher,
+                DecisionTraceRecorder traceRecorder,
                 Listener listener,
+                VideoCatalog catalog,
                 TrackGroup group,
                 BandwidthMeter bandwidthMeter,
                 int[] tracks,
                 int totalFixedTrackBandwidth) {
+            BandwidthProvider bandwidthProvider = bandwidthEstimator == null
+                    ? new DefaultBandwidthProvider(bandwidthMeter, bandwidthFraction, totalFixedTrackBandwidth)
+                    : new EstimatorBandwidthProvider(listener.getThroughputSampler(), bandwidthMeter,
+                            bandwidthFraction, totalFixedTrackBandwidth);
             return new BolaTrackSelection(
                     video_name,
-                    infoText,
-                    outputStreamWriter,
+                    metricsPublisher,
+                    traceRecorder,
                     listener,
+                    catalog,
                     group,
                     tracks,
-                    new DefaultBandwidthProvider(bandwidthMeter, bandwidthFraction, totalFixedTrackBandwidth),
+                    bandwidthProvider,
                     minDurationForQualityIncreaseMs,
                     maxDurationForQualityDecreaseMs,
                     minDurationToRetainAfterDiscardMs,
                     bufferedFractionToLiveEdgeForQualityIncrease,
                     minTimeBetweenBufferReevaluationMs,
-                    clock);
+                    clock,
+                    mode,
+                    metadata,
+                    segmentSizeAware);
         }
     }
 
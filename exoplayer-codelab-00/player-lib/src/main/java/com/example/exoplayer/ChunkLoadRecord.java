@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.exoplayer;
+
+import com.google.android.exoplayer2.C;
+
+/**
+ * A completed media chunk load, as reported to the media source's event listener.
+ *
+ * <p>Immutable, so publishing a new record through a volatile field hands all of its values to the
+ * playback thread at once. The sequence number tells a reader whether it has already processed the
+ * record.
+ */
+public final class ChunkLoadRecord {
+
+    /**
+     * The record before any chunk completed, with sequence number 0.
+     */
+    public static final ChunkLoadRecord NONE =
+            new ChunkLoadRecord(0, C.TIME_UNSET, C.TIME_UNSET, 0, 0, C.TIME_UNSET, 0, 0);
+
+    /**
+     * The number of media chunk loads completed up to and including this one.
+     */
+    public final long sequence;
+    /**
+     * The {@link android.os.SystemClock#elapsedRealtime()} at which the load started, or {@link
+     * C#TIME_UNSET} if its start was not seen.
+     */
+    public final long startTimeMs;
+    /**
+     * The {@link android.os.SystemClock#elapsedRealtime()} at which the load completed.
+     */
+    public final long endTimeMs;
+    /**
+     * The duration of the load, as measured by the loader.
+     */
+    public final long loadDurationMs;
+    /**
+     * The number of bytes loaded.
+     */
+    public final long bytesLoaded;
+    /**
+     * The start time of the loaded media, or {@link C#TIME_UNSET}.
+     */
+    public final long mediaStartTimeMs;
+    /**
+     * The throughput of the network transfer that loaded the chunk, from its first byte, in bytes
+     * per second, or 0 if that transfer was not sampled.
+     */
+    public final double throughputBytesPerS;
+    /**
+     * The time to first byte of the network transfer that loaded the chunk, in milliseconds, or 0
+     * if that transfer was not sampled.
+     */
+    public final double ttfbMs;
+
+    public ChunkLoadRecord(
+            long sequence,
+            long startTimeMs,
+            long endTimeMs,
+            long loadDurationMs,
+            long bytesLoaded,
+            long mediaStartTimeMs,
+            double throughputBytesPerS,
+            double ttfbMs) {
+        this.sequence = sequence;
+        this.startTimeMs = startTimeMs;
+        this.endTimeMs = endTimeMs;
+        this.loadDurationMs = loadDurationMs;
+        this.bytesLoaded = bytesLoaded;
+        this.mediaStartTimeMs = mediaStartTimeMs;
+        this.throughputBytesPerS = throughputBytesPerS;
+        this.ttfbMs = ttfbMs;
+    }
+
+    /**
+     * Returns whether this record completed after the record with the given sequence number.
+     */
+    public boolean isNewerThan(long processedSequence) {
+        return sequence > processedSequence;
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.exoplayer;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * The size of every chunk of every quality of a video, read from the binary {@code
+ * <video>/chunk_sizes.bin} asset written by {@code tools/build_chunk_size_index.py}.
+ *
+ * <p>The asset is a 16 byte header followed by one little-endian int32 column per quality. It is
+ * stored uncompressed in the APK and memory-mapped, so opening an index does no parsing and a size
+ * is read straight from its offset. If the asset was compressed after all, it is read into memory
+ * once instead.
+ */
+public final class ChunkSizeIndex {
+
+    /**
+     * The name of the index asset within a video's asset directory.
+     */
+    public static final String ASSET_NAME = "chunk_sizes.bin";
+
+    private static final int MAGIC = 0x4B4E4843;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 16;
+
+    private final ByteBuffer data;
+    private final int qualityCount;
+    private final int chunkCount;
+
+    /**
+     * Opens the index of a video.
+     *
+     * @param context   A context used to open the app assets.
+     * @param videoName The name of the video's asset directory.
+     * @return The index.
+     * @throws IOException If the index asset is missing or malformed.
+     */
+    public static ChunkSizeIndex open(Context context, String videoName) throws IOException {
+        String assetName = videoName + "/" + ASSET_NAME;
+        ByteBuffer data;
+        try {
+            AssetFileDescriptor descriptor = context.getAssets().openFd(assetName);
+            try {
+                FileInputStream inputStream = descriptor.createInputStream();
+                try {
+                    data = inputStream.getChannel().map(
+                            FileChannel.MapMode.READ_ONLY,
+                            descriptor.getStartOffset(),
+                            descriptor.getDeclaredLength());
+                } finally {
+                    inputStream.close();
+                }
+            } finally {
+                descriptor.close();
+            }
+        } catch (FileNotFoundException e) {
+            // openFd fails for compressed assets.
+            data = readFully(context.getAssets().open(assetName));
+        }
+        return new ChunkSizeIndex(assetName, data.order(ByteOrder.LITTLE_ENDIAN));
+    }
+
+    private ChunkSizeIndex(String assetName, ByteBuffer data) throws IOException {
+        if (data.capacity() < HEADER_BYTES || data.getInt(0) != MAGIC || data.getInt(4) != VERSION) {
+            throw new IOException("Not a chunk size index: " + assetName);
+        }
+        this.data = data;
+        this.qualityCount = data.getInt(8);
+        this.chunkCount = data.getInt(12);
+        if (qualityCount < 0 || chunkCount < 0
+                || data.capacity() < HEADER_BYTES + 4L * qualityCount * chunkCount) {
+            throw new IOException("Truncated chunk size index: " + assetName);
+        }
+    }
+
+    /**
+     * Returns the number of qualities.
+     */
+    public int getQualityCount() {
+        return qualityCount;
+    }
+
+    /**
+     * Returns the number of chunks of each quality.
+     */
+    public int getChunkCount() {
+        return chunkCount;
+    }
+
+    /**
+     * Returns the number of bytes the index occupies, mapped or in memory.
+     */
+    public int getSizeInBytes() {
+        return data.capacity();
+    }
+
+    /**
+     * Returns the size of a chunk.
+     *
+     * @param quality The quality index, 0 being the lowest bitrate.
+     * @param chunk   The chunk index.
+     * @return The size in bytes, or 0 if the index has no such quality or chunk.
+     */
+    public int getChunkSize(int quality, int chunk) {
+        if (quality < 0 || quality >= qualityCount || chunk < 0 || chunk >= chunkCount) {
+            return 0;
+        }
+        return data.getInt(HEADER_BYTES + 4 * (quality * chunkCount + chunk));
+    }
+
+    private static ByteBuffer readFully(InputStream inputStream) throws IOException {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] chunk = new byte[16 * 1024];
+            int read;
+            while ((read = inputStream.read(chunk)) != -1) {
+                bytes.write(chunk, 0, read);
+            }
+            return ByteBuffer.wrap(bytes.toByteArray());
+        } finally {
+            inputStream.close();
+        }
+    }
+}
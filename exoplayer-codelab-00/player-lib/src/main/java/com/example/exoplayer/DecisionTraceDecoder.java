@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.exoplayer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static com.example.exoplayer.DecisionTraceRecorder.HEADER_BYTES;
+import static com.example.exoplayer.DecisionTraceRecorder.KIND_BOLA;
+import static com.example.exoplayer.DecisionTraceRecorder.KIND_PENSIEVE;
+import static com.example.exoplayer.DecisionTraceRecorder.MAGIC;
+import static com.example.exoplayer.DecisionTraceRecorder.OFFSET_BITRATE;
+import static com.example.exoplayer.DecisionTraceRecorder.OFFSET_BUFFER;
+import static com.example.exoplayer.DecisionTraceRecorder.OFFSET_CHUNK_INDEX;
+import static com.example.exoplayer.DecisionTraceRecorder.OFFSET_GP;
+import static com.example.exoplayer.DecisionTraceRecorder.OFFSET_KIND;
+import static com.example.exoplayer.DecisionTraceRecorder.OFFSET_QUALITY;
+import static com.example.exoplayer.DecisionTraceRecorder.OFFSET_REBUFFER;
+import static com.example.exoplayer.DecisionTraceRecorder.OFFSET_SCORES;
+import static com.example.exoplayer.DecisionTraceRecorder.OFFSET_SCORE_COUNT;
+import static com.example.exoplayer.DecisionTraceRecorder.OFFSET_STATE;
+import static com.example.exoplayer.DecisionTraceRecorder.OFFSET_TOTAL_BITRATE;
+import static com.example.exoplayer.DecisionTraceRecorder.OFFSET_TOTAL_QOE;
+import static com.example.exoplayer.DecisionTraceRecorder.OFFSET_VP;
+import static com.example.exoplayer.DecisionTraceRecorder.RECORD_BYTES;
+import static com.example.exoplayer.DecisionTraceRecorder.VERSION;
+
+/**
+ * Decodes a trace written by {@link DecisionTraceRecorder} into the text layout the selections used
+ * to write directly, which {@link PensieveModelVerifier#readTraceStates} and the analysis scripts
+ * read.
+ *
+ * <p>Usage: {@code DecisionTraceDecoder <trace> [output.txt]}. Without an output file the text is
+ * written to standard output.
+ */
+public final class DecisionTraceDecoder {
+
+    private static final int S_INFO = 6;
+    private static final int S_LEN = 8;
+
+    private DecisionTraceDecoder() {
+    }
+
+    /**
+     * Decodes a trace.
+     *
+     * @param inputStream The trace. Not closed.
+     * @param writer      Receives the text. Not closed.
+     * @return The number of records decoded.
+     * @throws IOException If the trace could not be read or is not a decision trace.
+     */
+    public static int decode(InputStream inputStream, Writer writer) throws IOException {
+        DataInputStream input = new DataInputStream(inputStream);
+        byte[] headerBytes = new byte[HEADER_BYTES];
+        input.readFully(headerBytes);
+        ByteBuffer header = ByteBuffer.wrap(headerBytes).order(ByteOrder.LITTLE_ENDIAN);
+        if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+            throw new IOException("Not a decision trace");
+        }
+        int recordBytes = header.getInt();
+        if (recordBytes < RECORD_BYTES) {
+            throw new IOException("Unsupported record size: " + recordBytes);
+        }
+        byte[] recordArray = new byte[recordBytes];
+        ByteBuffer record = ByteBuffer.wrap(recordArray).order(ByteOrder.LITTLE_ENDIAN);
+        int count = 0;
+        while (true) {
+            try {
+                input.readFully(recordArray);
+            } catch (EOFException e) {
+                // A record cut short by the process being killed is ignored.
+                return count;
+            }
+            switch (record.getInt(OFFSET_KIND)) {
+                case KIND_PENSIEVE:
+                    writePensieve(record, writer);
+                    break;
+                case KIND_BOLA:
+                    writeBola(record, writer);
+                    break;
+                default:
+                    throw new IOException("Unknown record kind in record " + count);
+            }
+            count++;
+        }
+    }
+
+    private static void writePensieve(ByteBuffer record, Writer writer) throws IOException {
+        writer.write("-----Chunk number: " + record.getInt(OFFSET_CHUNK_INDEX) + "-----\nState:\n");
+        for (int i = 0; i < S_INFO; i++) {
+            for (int j = 0; j < S_LEN; j++) {
+                writer.write("" + record.getFloat(OFFSET_STATE + 4 * (i * S_LEN + j)) + "\t");
+            }
+            writer.write("\n");
+        }
+        writer.write("Predicted bitrate index: " + record.getInt(OFFSET_QUALITY)
+                + " value: " + record.getDouble(OFFSET_BITRATE) + "\n");
+        writer.write("Rebuffering time: " + record.getDouble(OFFSET_REBUFFER) + "\n");
+        writer.write("Total QOE: " + record.getDouble(OFFSET_TOTAL_QOE) + "\n");
+        writer.write("Total Bitrate: " + record.getDouble(OFFSET_TOTAL_BITRATE) + "\n");
+    }
+
+    private static void writeBola(ByteBuffer record, Writer writer) throws IOException {
+        writer.write("-----Chunk: " + record.getInt(OFFSET_CHUNK_INDEX) + "-----\n");
+        writer.write("Buffered duration: " + record.getDouble(OFFSET_BUFFER));
+        writer.write(" gp: " + record.getDouble(OFFSET_GP)
+                + " vp: " + record.getDouble(OFFSET_VP) + "\nScores: ");
+        int scoreCount = record.getInt(OFFSET_SCORE_COUNT);
+        for (int i = 0; i < scoreCount; i++) {
+            writer.write(record.getDouble(OFFSET_SCORES + 8 * i) + " ");
+        }
+        writer.write("\n Selected quality: " + record.getInt(OFFSET_QUALITY)
+                + " Value: " + record.getDouble(OFFSET_BITRATE) + "\n");
+        writer.write("Total Qoe: " + record.getDouble(OFFSET_TOTAL_QOE) + "\n");
+        writer.write("Total Bitrate: " + record.getDouble(OFFSET_TOTAL_BITRATE) + "\n");
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("Usage: DecisionTraceDecoder <trace> [output.txt]");
+            return;
+        }
+        InputStream inputStream = new BufferedInputStream(new FileInputStream(args[0]));
+        Writer writer = new BufferedWriter(new OutputStreamWriter(
+                args.length > 1 ? new FileOutputStream(args[1]) : System.out, "UTF-8"));
+        try {
+            int count = decode(inputStream, writer);
+            System.err.println("Decoded " + count + " records");
+        } finally {
+            inputStream.close();
+            writer.close();
+        }
+    }
+}
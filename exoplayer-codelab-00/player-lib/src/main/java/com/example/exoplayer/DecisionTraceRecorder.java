@@ -0,0 +1,342 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.exoplayer;
+
+import android.content.Context;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Records one fixed-size binary record per ABR decision into a preallocated ring, which a
+ * background thread appends to a file in batches.
+ *
+ * <p>Recording copies a few numbers into the ring and never touches the file, so the playback
+ * thread neither allocates nor blocks on I/O. If the writer falls a whole ring behind, further
+ * records are dropped and counted rather than waited for. {@link DecisionTraceDecoder} turns a
+ * trace back into the text layout the selections used to write.
+ *
+ * <p>Records are produced by a single thread, the playback thread, and consumed by the writer.
+ */
+public final class DecisionTraceRecorder {
+
+    /**
+     * A {@link PensieveTrackSelection} decision.
+     */
+    public static final int KIND_PENSIEVE = 1;
+    /**
+     * A {@link BolaTrackSelection} decision.
+     */
+    public static final int KIND_BOLA = 2;
+
+    /**
+     * The number of state values a record holds, the Pensieve {@code [S_INFO][S_LEN]} state.
+     */
+    public static final int MAX_STATE_VALUES = 48;
+    /**
+     * The number of scores a record holds, one per quality.
+     */
+    public static final int MAX_SCORES = 8;
+
+    /**
+     * The default number of records the ring holds.
+     */
+    public static final int DEFAULT_CAPACITY = 256;
+    /**
+     * The default interval between two batches written by the background thread.
+     */
+    public static final long DEFAULT_FLUSH_INTERVAL_MS = 1000;
+
+    /* package */ static final int MAGIC = 0x54524241; // 'ABRT'
+    /* package */ static final int VERSION = 1;
+    /* package */ static final int HEADER_BYTES = 12;
+
+    // Record layout, little-endian.
+    /* package */ static final int OFFSET_KIND = 0;
+    /* package */ static final int OFFSET_CHUNK_INDEX = 4;
+    /* package */ static final int OFFSET_QUALITY = 8;
+    /* package */ static final int OFFSET_SCORE_COUNT = 12;
+    /* package */ static final int OFFSET_BITRATE = 16;
+    /* package */ static final int OFFSET_REBUFFER = 24;
+    /* package */ static final int OFFSET_TOTAL_QOE = 32;
+    /* package */ static final int OFFSET_TOTAL_BITRATE = 40;
+    /* package */ static final int OFFSET_BUFFER = 48;
+    /* package */ static final int OFFSET_GP = 56;
+    /* package */ static final int OFFSET_VP = 64;
+    /* package */ static final int OFFSET_STATE = 72;
+    /* package */ static final int OFFSET_SCORES = OFFSET_STATE + 4 * MAX_STATE_VALUES;
+    /* package */ static final int RECORD_BYTES = OFFSET_SCORES + 8 * MAX_SCORES;
+
+    private final FileOutputStream outputStream;
+    private final FileChannel channel;
+    private final int capacity;
+    private final long flushIntervalNs;
+    // Written by the producer only.
+    private final ByteBuffer ring;
+    // Read by the writer only, through its own view of the ring.
+    private final ByteBuffer writerView;
+    private final Thread writerThread;
+
+    // Records published by the producer, and records written to the file.
+    private volatile long writeSequence;
+    private volatile long readSequence;
+    private volatile long droppedCount;
+    private volatile boolean closed;
+
+    /**
+     * Creates a recorder writing to a file of the app's private storage, with {@link
+     * #DEFAULT_CAPACITY} and {@link #DEFAULT_FLUSH_INTERVAL_MS}.
+     *
+     * @param context  A context used to open the file.
+     * @param fileName The name of the file, replaced if it exists.
+     * @return The recorder.
+     * @throws IOException If the file could not be opened.
+     */
+    public static DecisionTraceRecorder open(Context context, String fileName) throws IOException {
+        return new DecisionTraceRecorder(
+                context.openFileOutput(fileName, Context.MODE_PRIVATE),
+                DEFAULT_CAPACITY,
+                DEFAULT_FLUSH_INTERVAL_MS);
+    }
+
+    /**
+     * @param outputStream    The stream the trace is written to. Closed by {@link #close()}.
+     * @param capacity        The number of records the ring holds.
+     * @param flushIntervalMs The interval between two batches written by the background thread.
+     * @throws IOException If the trace header could not be written.
+     */
+    public DecisionTraceRecorder(FileOutputStream outputStream, int capacity, long flushIntervalMs)
+            throws IOException {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        }
+        this.outputStream = outputStream;
+        this.channel = outputStream.getChannel();
+        this.capacity = capacity;
+        this.flushIntervalNs = TimeUnit.MILLISECONDS.toNanos(flushIntervalMs);
+        this.ring = ByteBuffer.allocateDirect(capacity * RECORD_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        this.writerView = ring.duplicate();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putInt(RECORD_BYTES).flip();
+        writeFully(header);
+        this.writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runWriter();
+            }
+        }, "DecisionTraceRecorder");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    /**
+     * Records a Pensieve decision.
+     *
+     * @param chunkIndex         The index of the decided chunk.
+     * @param state              The model input, read with absolute gets.
+     * @param stateValueCount    The number of state values, at most {@link #MAX_STATE_VALUES}.
+     * @param quality            The chosen quality.
+     * @param bitrateKbps        The bitrate of the chosen quality.
+     * @param rebufferS          The rebuffering time of the previous chunk.
+     * @param totalQoe           The QoE accumulated so far.
+     * @param totalBitrateKbps   The bitrate accumulated so far.
+     * @return Whether the record was kept; false if the recorder is closed or the ring is full.
+     */
+    public boolean recordPensieve(
+            int chunkIndex,
+            FloatBuffer state,
+            int stateValueCount,
+            int quality,
+            double bitrateKbps,
+            double rebufferS,
+            double totalQoe,
+            double totalBitrateKbps) {
+        int offset = beginRecord(KIND_PENSIEVE, chunkIndex, quality, 0);
+        if (offset < 0) {
+            return false;
+        }
+        ring.putDouble(offset + OFFSET_BITRATE, bitrateKbps);
+        ring.putDouble(offset + OFFSET_REBUFFER, rebufferS);
+        ring.putDouble(offset + OFFSET_TOTAL_QOE, totalQoe);
+        ring.putDouble(offset + OFFSET_TOTAL_BITRATE, totalBitrateKbps);
+        int count = Math.min(stateValueCount, MAX_STATE_VALUES);
+        for (int i = 0; i < count; i++) {
+            ring.putFloat(offset + OFFSET_STATE + 4 * i, state.get(i));
+        }
+        endRecord();
+        return true;
+    }
+
+    /**
+     * Records a BOLA decision.
+     *
+     * @param chunkIndex       The index of the decided chunk.
+     * @param bufferS          The buffer level.
+     * @param gp               The BOLA {@code gp} parameter.
+     * @param vp               The BOLA {@code vp} parameter.
+     * @param scores           The score of each quality.
+     * @param scoreCount       The number of scores, at most {@link #MAX_SCORES}.
+     * @param quality          The chosen quality.
+     * @param bitrateKbps      The bitrate of the chosen quality.
+     * @param totalQoe         The QoE accumulated so far.
+     * @param totalBitrateKbps The bitrate accumulated so far.
+     * @return Whether the record was kept; false if the recorder is closed or the ring is full.
+     */
+    public boolean recordBola(
+            int chunkIndex,
+            double bufferS,
+            double gp,
+            double vp,
+            double[] scores,
+            int scoreCount,
+            int quality,
+            double bitrateKbps,
+            double totalQoe,
+            double totalBitrateKbps) {
+        int count = Math.min(scoreCount, MAX_SCORES);
+        int offset = beginRecord(KIND_BOLA, chunkIndex, quality, count);
+        if (offset < 0) {
+            return false;
+        }
+        ring.putDouble(offset + OFFSET_BITRATE, bitrateKbps);
+        ring.putDouble(offset + OFFSET_TOTAL_QOE, totalQoe);
+        ring.putDouble(offset + OFFSET_TOTAL_BITRATE, totalBitrateKbps);
+        ring.putDouble(offset + OFFSET_BUFFER, bufferS);
+        ring.putDouble(offset + OFFSET_GP, gp);
+        ring.putDouble(offset + OFFSET_VP, vp);
+        for (int i = 0; i < count; i++) {
+            ring.putDouble(offset + OFFSET_SCORES + 8 * i, scores[i]);
+        }
+        endRecord();
+        return true;
+    }
+
+    /**
+     * Returns whether records are still kept, so that callers can skip gathering them otherwise.
+     */
+    public boolean isEnabled() {
+        return !closed;
+    }
+
+    /**
+     * Returns the number of records dropped because the ring was full.
+     */
+    public long getDroppedCount() {
+        return droppedCount;
+    }
+
+    /**
+     * Returns the number of records written to the file.
+     */
+    public long getWrittenCount() {
+        return readSequence;
+    }
+
+    /**
+     * Writes the pending records and closes the file. Records made afterwards are dropped. May be
+     * called more than once.
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        LockSupport.unpark(writerThread);
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            outputStream.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private int beginRecord(int kind, int chunkIndex, int quality, int scoreCount) {
+        if (closed) {
+            return -1;
+        }
+        long sequence = writeSequence;
+        if (sequence - readSequence >= capacity) {
+            droppedCount++;
+            return -1;
+        }
+        int offset = (int) (sequence % capacity) * RECORD_BYTES;
+        for (int i = 0; i < RECORD_BYTES; i += 8) {
+            ring.putLong(offset + i, 0L);
+        }
+        ring.putInt(offset + OFFSET_KIND, kind);
+        ring.putInt(offset + OFFSET_CHUNK_INDEX, chunkIndex);
+        ring.putInt(offset + OFFSET_QUALITY, quality);
+        ring.putInt(offset + OFFSET_SCORE_COUNT, scoreCount);
+        return offset;
+    }
+
+    private void endRecord() {
+        long sequence = writeSequence + 1;
+        // The volatile write publishes the record to the writer.
+        writeSequence = sequence;
+        if (sequence - readSequence == capacity / 2) {
+            LockSupport.unpark(writerThread);
+        }
+    }
+
+    private void runWriter() {
+        while (true) {
+            boolean stopping = closed;
+            try {
+                writePending();
+            } catch (IOException e) {
+                System.out.println("Could not write decision trace");
+                e.printStackTrace();
+                closed = true;
+                return;
+            }
+            if (stopping) {
+                return;
+            }
+            LockSupport.parkNanos(this, flushIntervalNs);
+        }
+    }
+
+    private void writePending() throws IOException {
+        long start = readSequence;
+        long end = writeSequence;
+        while (start < end) {
+            int slot = (int) (start % capacity);
+            // Up to the end of the ring in one write, then wrap.
+            int records = (int) Math.min(end - start, capacity - slot);
+            writerView.limit((slot + records) * RECORD_BYTES).position(slot * RECORD_BYTES);
+            writeFully(writerView);
+            start += records;
+            readSequence = start;
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
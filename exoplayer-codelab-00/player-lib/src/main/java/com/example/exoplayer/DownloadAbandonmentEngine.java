@@ -0,0 +1,339 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.exoplayer;
+
+import androidx.annotation.Nullable;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.Format;
+import com.google.android.exoplayer2.trackselection.TrackSelection;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.TransferListener;
+
+import java.io.IOException;
+
+/**
+ * Watches the media chunk being downloaded and abandons it when it would not complete before the
+ * buffer runs out, so that the segment is requested again at a quality that does.
+ *
+ * <p>The engine receives the transfers of an {@link AbandonableDataSource} through its {@link
+ * TransferListener} callbacks and matches them to the media load reported by the media source, by
+ * the {@link DataSpec} both carry. On every read of a matched transfer it predicts the time the rest
+ * of the chunk takes at the rate measured so far, and compares it with the buffer left, which it
+ * derives from the buffer at the time the selection picked the chunk. When the chunk would complete
+ * after the buffer runs out, it picks the highest lower quality whose whole segment, scaled from
+ * the size of the current one by the track bitrates, would complete in time, or else the lowest
+ * quality if that is still less than what remains of the current one. The data source then fails
+ * the load with a {@link ChunkAbandonedException}, which {@link
+ * AbandonmentLoadErrorHandlingPolicy} turns into a cancellation, and the selection switches to the
+ * picked quality on its next update.
+ *
+ * <p>A chunk is only abandoned while enough buffer is left that the player cannot be reading from
+ * it yet, as a chunk the player has read from cannot be cancelled. Playback is assumed to progress
+ * while the chunk loads.
+ *
+ * <p>The selection and the media source listener call the engine from the playback thread and the
+ * data source from the loader threads; all take the engine's monitor for a few array accesses.
+ */
+public final class DownloadAbandonmentEngine implements TransferListener {
+
+    /**
+     * Thrown by an {@link AbandonableDataSource} reading a chunk the engine abandoned.
+     */
+    public static final class ChunkAbandonedException extends IOException {
+
+        public ChunkAbandonedException() {
+            super("Chunk abandoned");
+        }
+    }
+
+    /**
+     * The default time a transfer runs before its rate is trusted.
+     */
+    public static final long DEFAULT_MIN_ELAPSED_MS = 500;
+    /**
+     * The default buffer below which a chunk is no longer abandoned.
+     */
+    public static final long DEFAULT_MIN_BUFFER_MS = 1000;
+    /**
+     * The number of transfers that can be watched at once. Further concurrent transfers are ignored.
+     */
+    public static final int MAX_ACTIVE_TRANSFERS = 4;
+
+    private final long minElapsedMs;
+    private final long minBufferMs;
+
+    // Transfers in progress, keyed by source identity; a null source marks a free slot.
+    private final DataSource[] activeSources;
+    private final DataSpec[] activeDataSpecs;
+    private final long[] activeStartNs;
+    private final long[] activeBytes;
+    private final boolean[] activeAbandoned;
+
+    // Format of each track of the watched selection, in selection order.
+    @Nullable
+    private Format[] trackFormats;
+    // Buffer when the selection last picked a chunk, and when that was.
+    private long requestBufferMs;
+    private long requestNs;
+    // The media load in progress, or null.
+    @Nullable
+    private DataSpec mediaDataSpec;
+    private long mediaExpectedBytes;
+    private int mediaTrackIndex;
+    // Track the selection is to switch to, or C.INDEX_UNSET.
+    private int pendingTrackIndex;
+    private int abandonedCount;
+
+    public DownloadAbandonmentEngine() {
+        this(DEFAULT_MIN_ELAPSED_MS, DEFAULT_MIN_BUFFER_MS);
+    }
+
+    /**
+     * @param minElapsedMs The time a transfer runs before its rate is trusted.
+     * @param minBufferMs  The buffer below which a chunk is no longer abandoned.
+     */
+    public DownloadAbandonmentEngine(long minElapsedMs, long minBufferMs) {
+        this.minElapsedMs = minElapsedMs;
+        this.minBufferMs = minBufferMs;
+        this.activeSources = new DataSource[MAX_ACTIVE_TRANSFERS];
+        this.activeDataSpecs = new DataSpec[MAX_ACTIVE_TRANSFERS];
+        this.activeStartNs = new long[MAX_ACTIVE_TRANSFERS];
+        this.activeBytes = new long[MAX_ACTIVE_TRANSFERS];
+        this.activeAbandoned = new boolean[MAX_ACTIVE_TRANSFERS];
+        reset();
+    }
+
+    /**
+     * Forgets the watched selection and loads, for a new playback session.
+     */
+    public synchronized void reset() {
+        for (int i = 0; i < MAX_ACTIVE_TRANSFERS; i++) {
+            activeSources[i] = null;
+            activeDataSpecs[i] = null;
+        }
+        trackFormats = null;
+        requestBufferMs = 0;
+        requestNs = 0;
+        mediaDataSpec = null;
+        pendingTrackIndex = C.INDEX_UNSET;
+        abandonedCount = 0;
+    }
+
+    /**
+     * Sets the selection whose chunks are watched, replacing any previous one. Called by the
+     * selection when it is created.
+     */
+    public synchronized void setTracks(TrackSelection selection) {
+        Format[] formats = new Format[selection.length()];
+        for (int i = 0; i < formats.length; i++) {
+            formats[i] = selection.getFormat(i);
+        }
+        this.trackFormats = formats;
+        this.mediaDataSpec = null;
+        this.pendingTrackIndex = C.INDEX_UNSET;
+    }
+
+    /**
+     * Records the buffer at the time the selection picks the next chunk. Called by the selection on
+     * every update.
+     *
+     * @param bufferedDurationUs The buffered duration passed to the update.
+     */
+    public synchronized void onChunkRequested(long bufferedDurationUs) {
+        this.requestBufferMs = bufferedDurationUs / 1000;
+        this.requestNs = System.nanoTime();
+    }
+
+    /**
+     * Returns the track the selection is to switch to because a chunk was abandoned, and clears it.
+     *
+     * @return The index of the track in the selection, or {@link C#INDEX_UNSET} if no chunk was
+     * abandoned since the previous call.
+     */
+    public synchronized int pollAbandonedTrack() {
+        int trackIndex = pendingTrackIndex;
+        pendingTrackIndex = C.INDEX_UNSET;
+        return trackIndex;
+    }
+
+    /**
+     * Returns the number of chunks abandoned.
+     */
+    public synchronized int getAbandonedCount() {
+        return abandonedCount;
+    }
+
+    /**
+     * Called when the media source starts loading a media chunk.
+     *
+     * @param dataSpec         The data spec of the chunk.
+     * @param trackFormat      The format of the chunk's track.
+     * @param mediaStartTimeMs The start time of the chunk's media.
+     * @param mediaEndTimeMs   The end time of the chunk's media.
+     */
+    public synchronized void onMediaLoadStarted(
+            DataSpec dataSpec, @Nullable Format trackFormat, long mediaStartTimeMs, long mediaEndTimeMs) {
+        mediaDataSpec = null;
+        int trackIndex = indexOf(trackFormat);
+        if (trackIndex == C.INDEX_UNSET) {
+            return;
+        }
+        long expectedBytes = dataSpec.length;
+        if (expectedBytes == C.LENGTH_UNSET) {
+            if (trackFormat.bitrate <= 0 || mediaStartTimeMs == C.TIME_UNSET
+                    || mediaEndTimeMs == C.TIME_UNSET || mediaEndTimeMs <= mediaStartTimeMs) {
+                return;
+            }
+            expectedBytes = (long) trackFormat.bitrate * (mediaEndTimeMs - mediaStartTimeMs) / 8000;
+        }
+        mediaDataSpec = dataSpec;
+        mediaExpectedBytes = expectedBytes;
+        mediaTrackIndex = trackIndex;
+    }
+
+    /**
+     * Called when the media source stops loading a media chunk, whether it completed, was cancelled
+     * or failed.
+     */
+    public synchronized void onMediaLoadEnded(DataSpec dataSpec) {
+        if (mediaDataSpec != null && matches(mediaDataSpec, dataSpec)) {
+            mediaDataSpec = null;
+        }
+    }
+
+    /**
+     * Returns whether the engine abandoned the transfer of a source. Called by the source after each
+     * read.
+     */
+    public synchronized boolean isAbandoned(DataSource source) {
+        int slot = findSlot(source);
+        return slot != C.INDEX_UNSET && activeAbandoned[slot];
+    }
+
+    @Override
+    public void onTransferInitializing(DataSource source, DataSpec dataSpec, boolean isNetwork) {
+        // Timed from the start of the transfer, so that the request latency does not count.
+    }
+
+    @Override
+    public synchronized void onTransferStart(DataSource source, DataSpec dataSpec, boolean isNetwork) {
+        int slot = findSlot(source);
+        if (slot == C.INDEX_UNSET) {
+            slot = findSlot(null);
+            if (slot == C.INDEX_UNSET) {
+                return;
+            }
+            activeSources[slot] = source;
+        }
+        activeDataSpecs[slot] = dataSpec;
+        activeStartNs[slot] = System.nanoTime();
+        activeBytes[slot] = 0;
+        activeAbandoned[slot] = false;
+    }
+
+    @Override
+    public synchronized void onBytesTransferred(
+            DataSource source, DataSpec dataSpec, boolean isNetwork, int bytesTransferred) {
+        int slot = findSlot(source);
+        if (slot == C.INDEX_UNSET) {
+            return;
+        }
+        activeBytes[slot] += bytesTransferred;
+        if (!activeAbandoned[slot] && mediaDataSpec != null
+                && matches(mediaDataSpec, activeDataSpecs[slot])) {
+            evaluate(slot);
+        }
+    }
+
+    @Override
+    public synchronized void onTransferEnd(DataSource source, DataSpec dataSpec, boolean isNetwork) {
+        int slot = findSlot(source);
+        if (slot != C.INDEX_UNSET) {
+            activeSources[slot] = null;
+            activeDataSpecs[slot] = null;
+        }
+    }
+
+    private void evaluate(int slot) {
+        Format[] formats = trackFormats;
+        long nowNs = System.nanoTime();
+        double elapsedMs = (nowNs - activeStartNs[slot]) / 1000000.0;
+        long bytes = activeBytes[slot];
+        long remainingBytes = mediaExpectedBytes - bytes;
+        if (formats == null || elapsedMs < minElapsedMs || bytes == 0 || remainingBytes <= 0) {
+            return;
+        }
+        double bytesPerMs = bytes / elapsedMs;
+        double bufferMs = requestBufferMs - (nowNs - requestNs) / 1000000.0;
+        if (bufferMs < minBufferMs || remainingBytes / bytesPerMs <= bufferMs) {
+            return;
+        }
+        // A stall is predicted: find the highest lower quality that completes in time.
+        int currentBitrate = formats[mediaTrackIndex].bitrate;
+        if (currentBitrate <= 0) {
+            return;
+        }
+        int trackIndex = C.INDEX_UNSET;
+        for (int i = mediaTrackIndex + 1; i < formats.length; i++) {
+            if (formats[i].bitrate <= 0) {
+                return;
+            }
+            double candidateBytes = (double) mediaExpectedBytes * formats[i].bitrate / currentBitrate;
+            if (candidateBytes >= remainingBytes) {
+                continue;
+            }
+            trackIndex = i;
+            if (candidateBytes / bytesPerMs <= bufferMs) {
+                break;
+            }
+        }
+        if (trackIndex == C.INDEX_UNSET) {
+            return;
+        }
+        activeAbandoned[slot] = true;
+        pendingTrackIndex = trackIndex;
+        abandonedCount++;
+        AbrTrace.info(AbrTrace.EVENT_CHUNK_ABANDONED, trackIndex, bufferMs);
+    }
+
+    private int indexOf(@Nullable Format format) {
+        Format[] formats = trackFormats;
+        if (format == null || formats == null) {
+            return C.INDEX_UNSET;
+        }
+        for (int i = 0; i < formats.length; i++) {
+            if (formats[i] == format || formats[i].equals(format)) {
+                return i;
+            }
+        }
+        return C.INDEX_UNSET;
+    }
+
+    private static boolean matches(DataSpec a, @Nullable DataSpec b) {
+        return b != null && a.position == b.position && a.uri.equals(b.uri);
+    }
+
+    private int findSlot(@Nullable DataSource source) {
+        for (int i = 0; i < MAX_ACTIVE_TRANSFERS; i++) {
+            if (activeSources[i] == source) {
+                return i;
+            }
+        }
+        return C.INDEX_UNSET;
+    }
+}
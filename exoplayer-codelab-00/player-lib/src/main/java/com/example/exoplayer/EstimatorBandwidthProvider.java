@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.exoplayer;
+
+import com.google.android.exoplayer2.upstream.BandwidthMeter;
+
+/**
+ * A {@link BandwidthProvider} allocating a fraction of the estimate of the {@link
+ * BandwidthEstimator} set on a {@link ThroughputSampler}, falling back to a {@link BandwidthMeter}
+ * until the estimator has a sample.
+ */
+public final class EstimatorBandwidthProvider implements BandwidthProvider {
+
+    private final ThroughputSampler throughputSampler;
+    private final BandwidthMeter fallbackBandwidthMeter;
+    private final float bandwidthFraction;
+    private final long reservedBandwidth;
+
+    /**
+     * @param throughputSampler      The sampler feeding the estimator.
+     * @param fallbackBandwidthMeter The meter used while the estimator has no estimate.
+     * @param bandwidthFraction      The fraction of the estimate considered available.
+     * @param reservedBandwidth      The bandwidth taken by other tracks, subtracted from the estimate.
+     */
+    public EstimatorBandwidthProvider(
+            ThroughputSampler throughputSampler,
+            BandwidthMeter fallbackBandwidthMeter,
+            float bandwidthFraction,
+            long reservedBandwidth) {
+        this.throughputSampler = throughputSampler;
+        this.fallbackBandwidthMeter = fallbackBandwidthMeter;
+        this.bandwidthFraction = bandwidthFraction;
+        this.reservedBandwidth = reservedBandwidth;
+    }
+
+    @Override
+    public long getAllocatedBandwidth() {
+        long estimate = throughputSampler.getBitrateEstimate();
+        if (estimate == BandwidthEstimator.NO_ESTIMATE) {
+            estimate = fallbackBandwidthMeter.getBitrateEstimate();
+        }
+        return Math.max(0L, (long) (estimate * bandwidthFraction) - reservedBandwidth);
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.exoplayer;
+
+/**
+ * Estimates the bandwidth with two exponentially weighted moving averages of the throughput, a
+ * fast one following changes and a slow one smoothing spikes, and returns the lower of the two.
+ *
+ * <p>Samples are weighted by their duration, so the half-lives are in seconds of transfer rather
+ * than in samples, and the averages are corrected for their zero start as in Shaka Player.
+ */
+public final class EwmaBandwidthEstimator implements BandwidthEstimator {
+
+    /**
+     * The default half-life of the fast average.
+     */
+    public static final double DEFAULT_FAST_HALF_LIFE_S = 2;
+    /**
+     * The default half-life of the slow average.
+     */
+    public static final double DEFAULT_SLOW_HALF_LIFE_S = 5;
+
+    private final double fastAlphaPerS;
+    private final double slowAlphaPerS;
+
+    private double fastEstimate;
+    private double fastWeight;
+    private double slowEstimate;
+    private double slowWeight;
+
+    public EwmaBandwidthEstimator() {
+        this(DEFAULT_FAST_HALF_LIFE_S, DEFAULT_SLOW_HALF_LIFE_S);
+    }
+
+    /**
+     * @param fastHalfLifeS The half-life of the fast average, in seconds of transfer.
+     * @param slowHalfLifeS The half-life of the slow average, in seconds of transfer.
+     */
+    public EwmaBandwidthEstimator(double fastHalfLifeS, double slowHalfLifeS) {
+        if (!(fastHalfLifeS > 0) || !(slowHalfLifeS > 0)) {
+            throw new IllegalArgumentException("Invalid half-life");
+        }
+        this.fastAlphaPerS = Math.pow(0.5, 1 / fastHalfLifeS);
+        this.slowAlphaPerS = Math.pow(0.5, 1 / slowHalfLifeS);
+    }
+
+    @Override
+    public void addSample(long bytes, long durationUs) {
+        if (durationUs <= 0) {
+            return;
+        }
+        double durationS = durationUs / 1000000.0;
+        double bitsPerS = bytes * 8 / durationS;
+        double fastAlpha = Math.pow(fastAlphaPerS, durationS);
+        double slowAlpha = Math.pow(slowAlphaPerS, durationS);
+        fastEstimate = fastAlpha * fastEstimate + (1 - fastAlpha) * bitsPerS;
+        fastWeight = fastAlpha * fastWeight + (1 - fastAlpha);
+        slowEstimate = slowAlpha * slowEstimate + (1 - slowAlpha) * bitsPerS;
+        slowWeight = slowAlpha * slowWeight + (1 - slowAlpha);
+    }
+
+    @Override
+    public long getBitrateEstimate() {
+        if (fastWeight == 0) {
+            return NO_ESTIMATE;
+        }
+        return (long) Math.min(fastEstimate / fastWeight, slowEstimate / slowWeight);
+    }
+
+    @Override
+    public void reset() {
+        fastEstimate = 0;
+        fastWeight = 0;
+        slowEstimate = 0;
+        slowWeight = 0;
+    }
+
+    @Override
+    public String toString() {
+        return "EWMA";
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.exoplayer;
+
+/**
+ * Estimates the bandwidth as the harmonic mean of the throughput of the latest transfers, as MPC
+ * does, which discounts short throughput spikes more than an arithmetic mean.
+ *
+ * <p>The sum of the reciprocals is kept up to date as samples enter and leave the window, and
+ * recomputed once per window to stop rounding errors from accumulating.
+ */
+public final class HarmonicMeanBandwidthEstimator implements BandwidthEstimator {
+
+    /**
+     * The default number of transfers averaged.
+     */
+    public static final int DEFAULT_WINDOW_SIZE = 5;
+
+    // Seconds per bit of each sample in the window
+    private final double[] reciprocals;
+    private int next;
+    private int count;
+    private double reciprocalSum;
+
+    public HarmonicMeanBandwidthEstimator() {
+        this(DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * @param windowSize The number of transfers averaged.
+     */
+    public HarmonicMeanBandwidthEstimator(int windowSize) {
+        if (windowSize <= 0) {
+            throw new IllegalArgumentException("Invalid window size: " + windowSize);
+        }
+        this.reciprocals = new double[windowSize];
+    }
+
+    @Override
+    public void addSample(long bytes, long durationUs) {
+        if (durationUs <= 0 || bytes <= 0) {
+            return;
+        }
+        double reciprocal = durationUs / 1000000.0 / (bytes * 8);
+        if (count == reciprocals.length) {
+            reciprocalSum -= reciprocals[next];
+        } else {
+            count++;
+        }
+        reciprocals[next] = reciprocal;
+        reciprocalSum += reciprocal;
+        next = next + 1 == reciprocals.length ? 0 : next + 1;
+        if (next == 0) {
+            reciprocalSum = 0;
+            for (int i = 0; i < count; i++) {
+                reciprocalSum += reciprocals[i];
+            }
+        }
+    }
+
+    @Override
+    public long getBitrateEstimate() {
+        return count == 0 ? NO_ESTIMATE : (long) (count / reciprocalSum);
+    }
+
+    @Override
+    public void reset() {
+        next = 0;
+        count = 0;
+        reciprocalSum = 0;
+    }
+
+    @Override
+    public String toString() {
+        return "Harmonic(" + reciprocals.length + ")";
+    }
+}
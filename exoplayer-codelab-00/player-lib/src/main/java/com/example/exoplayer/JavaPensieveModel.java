@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.exoplayer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A pure Java forward pass of the Pensieve actor network, usable wherever the TFLite runtime is
+ * not, such as a plain JVM running simulations or benchmarks.
+ *
+ * <p>The network has six branches over the {@code [S_INFO][S_LEN]} state: dense layers over the
+ * newest cell of rows 0 (last bitrate), 1 (buffer level) and 4 (next chunk sizes), and conv_1d
+ * layers over rows 2 (throughput), 3 (delay) and the first {@code A_DIM} cells of row 4. The last
+ * dense branch reads row 4 at offset {@code 5 * S_LEN - 1}, not row 5 (chunks remaining), because
+ * the trained network does: its sixth branch is {@code inputs[:, 4:5, -1]}. Row 5 is never read.
+ * Because tflearn's conv_1d sees each row as a single position with the row values as channels,
+ * those layers reduce to dense layers over the row.
+ * The 768 branch outputs feed a 128 unit hidden layer and a softmax over the bitrates.
+ *
+ * <p>Weights are read from the compact binary written by {@code tools/export_pensieve_weights.py},
+ * either as float32 or as dynamic-range int8 with one scale per output. Int8 weights are kept
+ * quantized, taking a quarter of the memory, and each output's dot product is rescaled once; the
+ * activations stay float. All scratch space is allocated at load time, so {@link #run(float[],
+ * float[])} does not allocate.
+ */
+public final class JavaPensieveModel implements PensieveModel {
+
+    private static final int MAGIC = 0x56534E50;
+    private static final int VERSION_FLOAT = 1;
+    private static final int VERSION_INT8 = 2;
+
+    private static final int S_INFO = 6;
+    private static final int S_LEN = 8;
+    private static final int A_DIM = 6;
+
+    // Offset into the flattened state, and number of inputs, of each branch layer. The last branch
+    // reads the newest cell of row 4, as the trained network does.
+    private static final int[] BRANCH_INPUT_OFFSETS = {
+            S_LEN - 1, S_LEN + S_LEN - 1, 2 * S_LEN, 3 * S_LEN, 4 * S_LEN, 4 * S_LEN + S_LEN - 1};
+    private static final int[] BRANCH_INPUT_COUNTS = {1, 1, S_LEN, S_LEN, A_DIM, 1};
+    private static final int HIDDEN_LAYER = BRANCH_INPUT_OFFSETS.length;
+    private static final int OUTPUT_LAYER = HIDDEN_LAYER + 1;
+    private static final int LAYER_COUNT = OUTPUT_LAYER + 1;
+
+    private final String assetName;
+    private final int[] outputCounts;
+    private final int[] inputCounts;
+    private final boolean quantized;
+    // Exactly one of weights and quantizedWeights is set, depending on quantized.
+    private final float[][] weights;
+    private final byte[][] quantizedWeights;
+    private final float[][] scales;
+    private final float[][] biases;
+
+    private final float[] state;
+    private final float[] merged;
+    private final float[] hidden;
+    private final float[] scores;
+
+    /**
+     * Reads a model from the compact weights binary.
+     *
+     * @param assetName   The name the model was loaded from.
+     * @param inputStream The weights binary. Read to the end but not closed.
+     * @return The model.
+     * @throws IOException If the stream could not be read or does not hold Pensieve actor weights.
+     */
+    public static JavaPensieveModel load(String assetName, InputStream inputStream)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] chunk = new byte[16 * 1024];
+        int read;
+        while ((read = inputStream.read(chunk)) != -1) {
+            bytes.write(chunk, 0, read);
+        }
+        return new JavaPensieveModel(
+                assetName, ByteBuffer.wrap(bytes.toByteArray()).order(ByteOrder.LITTLE_ENDIAN));
+    }
+
+    private JavaPensieveModel(String assetName, ByteBuffer data) throws IOException {
+        this.assetName = assetName;
+        if (data.remaining() < 12 || data.getInt() != MAGIC) {
+            throw new IOException("Not a Pensieve actor weights file: " + assetName);
+        }
+        int version = data.getInt();
+        if ((version != VERSION_FLOAT && version != VERSION_INT8) || data.getInt() != LAYER_COUNT) {
+            throw new IOException("Unsupported Pensieve actor weights file: " + assetName);
+        }
+        quantized = version == VERSION_INT8;
+        int weightBytes = quantized ? 1 : 4;
+        outputCounts = new int[LAYER_COUNT];
+        inputCounts = new int[LAYER_COUNT];
+        weights = quantized ? null : new float[LAYER_COUNT][];
+        quantizedWeights = quantized ? new byte[LAYER_COUNT][] : null;
+        scales = quantized ? new float[LAYER_COUNT][] : null;
+        biases = new float[LAYER_COUNT][];
+        int mergedSize = 0;
+        for (int layer = 0; layer < LAYER_COUNT; layer++) {
+            if (data.remaining() < 8) {
+                throw new IOException("Truncated weights file: " + assetName);
+            }
+            int outputs = data.getInt();
+            int inputs = data.getInt();
+            long layerBytes = (long) weightBytes * outputs * inputs + (quantized ? 8L : 4L) * outputs;
+            if (outputs <= 0 || inputs <= 0 || data.remaining() < layerBytes) {
+                throw new IOException("Bad layer " + layer + " in " + assetName);
+            }
+            outputCounts[layer] = outputs;
+            inputCounts[layer] = inputs;
+            if (quantized) {
+                scales[layer] = new float[outputs];
+                data.asFloatBuffer().get(scales[layer]);
+                data.position(data.position() + 4 * outputs);
+                quantizedWeights[layer] = new byte[outputs * inputs];
+                data.get(quantizedWeights[layer]);
+            } else {
+                weights[layer] = new float[outputs * inputs];
+                data.asFloatBuffer().get(weights[layer]);
+                data.position(data.position() + 4 * weights[layer].length);
+            }
+            biases[layer] = new float[outputs];
+            data.asFloatBuffer().get(biases[layer]);
+            data.position(data.position() + 4 * biases[layer].length);
+            if (layer < HIDDEN_LAYER) {
+                mergedSize += outputs;
+            }
+        }
+        for (int layer = 0; layer < HIDDEN_LAYER; layer++) {
+            if (inputCounts[layer] != BRANCH_INPUT_COUNTS[layer]) {
+                throw new IOException("Unexpected input count for layer " + layer + " in " + assetName);
+            }
+        }
+        if (inputCounts[HIDDEN_LAYER] != mergedSize
+                || inputCounts[OUTPUT_LAYER] != outputCounts[HIDDEN_LAYER]
+                || outputCounts[OUTPUT_LAYER] != A_DIM) {
+            throw new IOException("Unexpected layer sizes in " + assetName);
+        }
+        state = new float[S_INFO * S_LEN];
+        merged = new float[mergedSize];
+        hidden = new float[outputCounts[HIDDEN_LAYER]];
+        scores = new float[A_DIM];
+    }
+
+    /**
+     * Returns whether the weights are dynamic-range int8 quantized.
+     */
+    public boolean isQuantized() {
+        return quantized;
+    }
+
+    @Override
+    public String getAssetName() {
+        return assetName;
+    }
+
+    @Override
+    public int getInputBytes() {
+        return S_INFO * S_LEN * 4;
+    }
+
+    @Override
+    public int getOutputBytes() {
+        return A_DIM * 4;
+    }
+
+    @Override
+    public synchronized void run(ByteBuffer input, ByteBuffer output) {
+        for (int i = 0; i < state.length; i++) {
+            state[i] = input.getFloat(i * 4);
+        }
+        run(state, scores);
+        for (int i = 0; i < A_DIM; i++) {
+            output.putFloat(i * 4, scores[i]);
+        }
+        input.rewind();
+        output.rewind();
+    }
+
+    /**
+     * Runs a single inference on Java arrays.
+     *
+     * @param input  The flattened {@code [S_INFO][S_LEN]} state.
+     * @param output Receives the {@code A_DIM} bitrate probabilities.
+     */
+    public synchronized void run(float[] input, float[] output) {
+        int mergedOffset = 0;
+        for (int layer = 0; layer < HIDDEN_LAYER; layer++) {
+            dense(layer, input, BRANCH_INPUT_OFFSETS[layer], merged, mergedOffset, true);
+            mergedOffset += outputCounts[layer];
+        }
+        dense(HIDDEN_LAYER, merged, 0, hidden, 0, true);
+        dense(OUTPUT_LAYER, hidden, 0, output, 0, false);
+        float max = output[0];
+        for (int i = 1; i < A_DIM; i++) {
+            max = Math.max(max, output[i]);
+        }
+        float sum = 0f;
+        for (int i = 0; i < A_DIM; i++) {
+            output[i] = (float) Math.exp(output[i] - max);
+            sum += output[i];
+        }
+        for (int i = 0; i < A_DIM; i++) {
+            output[i] /= sum;
+        }
+    }
+
+    @Override
+    public void close() {
+        // Nothing to release.
+    }
+
+    private void dense(
+            int layer, float[] source, int sourceOffset, float[] target, int targetOffset, boolean relu) {
+        int outputs = outputCounts[layer];
+        int inputs = inputCounts[layer];
+        float[] layerBiases = biases[layer];
+        if (quantized) {
+            byte[] layerWeights = quantizedWeights[layer];
+            float[] layerScales = scales[layer];
+            for (int o = 0; o < outputs; o++) {
+                float dot = 0f;
+                int row = o * inputs;
+                for (int i = 0; i < inputs; i++) {
+                    dot += layerWeights[row + i] * source[sourceOffset + i];
+                }
+                float sum = layerBiases[o] + layerScales[o] * dot;
+                target[targetOffset + o] = relu && sum < 0f ? 0f : sum;
+            }
+            return;
+        }
+        float[] layerWeights = weights[layer];
+        for (int o = 0; o < outputs; o++) {
+            float sum = layerBiases[o];
+            int row = o * inputs;
+            for (int i = 0; i < inputs; i++) {
+                sum += layerWeights[row + i] * source[sourceOffset + i];
+            }
+            target[targetOffset + o] = relu && sum < 0f ? 0f : sum;
+        }
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.exoplayer;
+
+import com.google.android.exoplayer2.C;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+/**
+ * A bounded least recently used cache of Pensieve decisions, keyed on a 64-bit hash of the state
+ * tensor after rounding each value to a per-row quantization step.
+ *
+ * <p>Consecutive chunks often produce states that differ only by noise, such as a buffer level a
+ * fraction of a second apart. With steps coarser than that noise those states share a key, and the
+ * decision of the first one is reused without running an inference. Coarser steps raise the hit
+ * rate and the chance of a decision that differs from the model's; {@link
+ * PensieveModelVerifier#compareWithCache} measures that trade-off on recorded traces.
+ *
+ * <p>Entries live in preallocated primitive arrays, so lookups and insertions do not allocate. Not
+ * thread safe: all selections of a player use it from the playback thread.
+ */
+public final class PensieveDecisionCache {
+
+    /**
+     * Default quantization step of each state row: last bitrate fraction (0.04, finer than any gap
+     * in the ladder), buffer (2 s), throughput (0.4 KB/ms), delay (2 s), next chunk sizes (0.2 MB)
+     * and fraction of chunks left (0.08). Every value of the window is quantized, so steps much
+     * finer than these rarely produce a hit.
+     */
+    public static final float[] DEFAULT_ROW_STEPS = {0.04f, 0.2f, 0.4f, 0.2f, 0.2f, 0.08f};
+
+    private static final long FNV_OFFSET_BASIS = 0xCBF29CE484222325L;
+    private static final long FNV_PRIME = 0x100000001B3L;
+    private static final int NONE = -1;
+
+    private final int rowLength;
+    private final float[] rowSteps;
+    private final int capacity;
+
+    // Entry storage, indexed by slot.
+    private final long[] keys;
+    private final int[] decisions;
+    private final int[] newer;
+    private final int[] older;
+    private final int[] chainNext;
+    // Heads of the hash chains, indexed by key bits.
+    private final int[] buckets;
+    private final int bucketMask;
+
+    private int size;
+    private int newest;
+    private int oldest;
+    private long hitCount;
+    private long missCount;
+
+    /**
+     * @param capacity  The maximum number of decisions retained.
+     * @param rowLength The number of values in each state row.
+     * @param rowSteps  The quantization step of each state row. A step of 0 keys on the exact value.
+     */
+    public PensieveDecisionCache(int capacity, int rowLength, float[] rowSteps) {
+        if (capacity <= 0 || rowLength <= 0) {
+            throw new IllegalArgumentException("Invalid cache dimensions");
+        }
+        for (float step : rowSteps) {
+            if (step < 0f) {
+                throw new IllegalArgumentException("Negative quantization step: " + step);
+            }
+        }
+        this.capacity = capacity;
+        this.rowLength = rowLength;
+        this.rowSteps = rowSteps.clone();
+        this.keys = new long[capacity];
+        this.decisions = new int[capacity];
+        this.newer = new int[capacity];
+        this.older = new int[capacity];
+        this.chainNext = new int[capacity];
+        int bucketCount = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        this.buckets = new int[bucketCount];
+        this.bucketMask = bucketCount - 1;
+        clear();
+    }
+
+    /**
+     * Returns the key of a state.
+     *
+     * @param state The flattened state, {@code rowSteps.length} rows of {@code rowLength} values
+     *              starting at index 0. Read with absolute gets, so its position is unchanged.
+     */
+    public long key(FloatBuffer state) {
+        long hash = FNV_OFFSET_BASIS;
+        for (int row = 0; row < rowSteps.length; row++) {
+            float step = rowSteps[row];
+            int rowStart = row * rowLength;
+            for (int col = 0; col < rowLength; col++) {
+                float value = state.get(rowStart + col);
+                long quantized = step == 0f
+                        ? Float.floatToIntBits(value)
+                        : (long) Math.floor(value / step + 0.5f);
+                hash = (hash ^ quantized) * FNV_PRIME;
+            }
+        }
+        // Final avalanche so that the low bits used for bucketing depend on every value.
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    /**
+     * Returns the cached decision for a key and marks it as most recently used.
+     *
+     * @param key A value returned by {@link #key(FloatBuffer)}.
+     * @return The decision, or {@link C#INDEX_UNSET} if the key is not cached.
+     */
+    public int get(long key) {
+        int slot = find(key);
+        if (slot == NONE) {
+            missCount++;
+            return C.INDEX_UNSET;
+        }
+        hitCount++;
+        unlink(slot);
+        linkNewest(slot);
+        return decisions[slot];
+    }
+
+    /**
+     * Caches a decision, evicting the least recently used one if the cache is full.
+     *
+     * @param key      A value returned by {@link #key(FloatBuffer)}.
+     * @param decision The decision made for the state.
+     */
+    public void put(long key, int decision) {
+        int slot = find(key);
+        if (slot != NONE) {
+            unlink(slot);
+        } else {
+            if (size < capacity) {
+                slot = size++;
+            } else {
+                slot = oldest;
+                unlink(slot);
+                removeFromChain(slot);
+            }
+            keys[slot] = key;
+            int bucket = (int) key & bucketMask;
+            chainNext[slot] = buckets[bucket];
+            buckets[bucket] = slot;
+        }
+        decisions[slot] = decision;
+        linkNewest(slot);
+    }
+
+    /**
+     * Returns the number of lookups that found a decision.
+     */
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * Returns the number of lookups that found no decision.
+     */
+    public long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * Returns the fraction of lookups that found a decision.
+     */
+    public double getHitRate() {
+        long lookups = hitCount + missCount;
+        return lookups == 0 ? 0.0 : (double) hitCount / lookups;
+    }
+
+    /**
+     * Returns the number of decisions retained.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Forgets all decisions. The hit and miss counts are kept.
+     */
+    public void clear() {
+        Arrays.fill(buckets, NONE);
+        size = 0;
+        newest = NONE;
+        oldest = NONE;
+    }
+
+    private int find(long key) {
+        int slot = buckets[(int) key & bucketMask];
+        while (slot != NONE && keys[slot] != key) {
+            slot = chainNext[slot];
+        }
+        return slot;
+    }
+
+    private void removeFromChain(int slot) {
+        int bucket = (int) keys[slot] & bucketMask;
+        if (buckets[bucket] == slot) {
+            buckets[bucket] = chainNext[slot];
+            return;
+        }
+        int previous = buckets[bucket];
+        while (chainNext[previous] != slot) {
+            previous = chainNext[previous];
+        }
+        chainNext[previous] = chainNext[slot];
+    }
+
+    private void unlink(int slot) {
+        if (newer[slot] != NONE) {
+            older[newer[slot]] = older[slot];
+        } else {
+            newest = older[slot];
+        }
+        if (older[slot] != NONE) {
+            newer[older[slot]] = newer[slot];
+        } else {
+            oldest = newer[slot];
+        }
+    }
+
+    private void linkNewest(int slot) {
+        newer[slot] = NONE;
+        older[slot] = newest;
+        if (newest != NONE) {
+            newer[newest] = slot;
+        }
+        newest = slot;
+        if (oldest == NONE) {
+            oldest = slot;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "size=" + size + "/" + capacity
+                + " hits=" + hitCount
+                + " misses=" + missCount
+                + " hitRate=" + getHitRate();
+    }
+}
@@ -0,0 +1,355 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.exoplayer;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.Handler;
+
+import androidx.annotation.Nullable;
+
+import com.google.android.exoplayer2.C;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures the Pensieve decision latency of {@link PensieveInferenceConfig inference
+ * configurations} on the current device, so that the fastest one can be chosen per device class.
+ *
+ * <p>Latency is measured the way {@link PensieveTrackSelection} sees it: from submitting a state to
+ * a {@link PensieveInferenceExecutor} until its decision is available, so the thread handoff is
+ * included. Must not be run on the main thread.
+ *
+ * <p>{@link #tuneInBackground(Context, Handler, Runnable)} measures the candidates once per device
+ * class and stores the fastest in the app's private files, where {@link #getTunedConfig(Context)}
+ * finds it for later sessions. Nothing else should run meanwhile, playback in particular, or the
+ * measurements are mostly scheduling noise.
+ */
+public final class PensieveInferenceBenchmark {
+
+    private static final int S_INFO = 6;
+    private static final int S_LEN = 8;
+    private static final int A_DIM = 6;
+
+    // Long enough that no measured decision times out.
+    private static final long BENCHMARK_DEADLINE_MS = 1000;
+    private static final int[] CANDIDATE_THREAD_COUNTS = {1, 2, 4};
+    // Holds the device class and the fastest configuration measured for it, tab separated.
+    private static final String TUNED_CONFIG_FILE = "pensieve_inference_config.txt";
+    private static final int TUNING_WARMUP_RUNS = 20;
+    private static final int TUNING_RUNS = 200;
+
+    /**
+     * The latency distribution of one configuration.
+     */
+    public static final class Result {
+
+        /**
+         * The measured configuration.
+         */
+        public final PensieveInferenceConfig config;
+        /**
+         * The median decision latency, in microseconds.
+         */
+        public final long p50Us;
+        /**
+         * The 99th percentile decision latency, in microseconds.
+         */
+        public final long p99Us;
+        /**
+         * The largest decision latency, in microseconds.
+         */
+        public final long maxUs;
+
+        private Result(PensieveInferenceConfig config, long p50Us, long p99Us, long maxUs) {
+            this.config = config;
+            this.p50Us = p50Us;
+            this.p99Us = p99Us;
+            this.maxUs = maxUs;
+        }
+
+        @Override
+        public String toString() {
+            return config + ": p50=" + p50Us + "us p99=" + p99Us + "us max=" + maxUs + "us";
+        }
+    }
+
+    private PensieveInferenceBenchmark() {
+    }
+
+    /**
+     * Returns the configurations worth comparing: the Java backend, and the TFLite interpreter with
+     * every combination of thread count, XNNPACK and float16 relaxation.
+     */
+    public static PensieveInferenceConfig[] getCandidateConfigs() {
+        List<PensieveInferenceConfig> configs = new ArrayList<>();
+        configs.add(PensieveInferenceConfig.DEFAULT);
+        for (int numThreads : CANDIDATE_THREAD_COUNTS) {
+            for (int xnnpack = 0; xnnpack < 2; xnnpack++) {
+                for (int fp16 = 0; fp16 < 2; fp16++) {
+                    configs.add(new PensieveInferenceConfig.Builder()
+                            .setNumThreads(numThreads)
+                            .setUseXnnpack(xnnpack == 1)
+                            .setAllowFp16(fp16 == 1)
+                            .build());
+                }
+            }
+        }
+        configs.add(new PensieveInferenceConfig.Builder()
+                .setBackend(PensieveInferenceConfig.BACKEND_JAVA)
+                .build());
+        return configs.toArray(new PensieveInferenceConfig[0]);
+    }
+
+    /**
+     * Measures each configuration in turn.
+     *
+     * @param context    A context used to open the model assets.
+     * @param configs    The configurations to measure.
+     * @param warmupRuns The number of decisions made before measuring.
+     * @param runs       The number of measured decisions.
+     * @return One {@link Result} per configuration that could be loaded and measured, in the order
+     * given.
+     */
+    public static Result[] measure(
+            Context context, PensieveInferenceConfig[] configs, int warmupRuns, int runs) {
+        List<Result> results = new ArrayList<>();
+        for (PensieveInferenceConfig config : configs) {
+            try {
+                Result result = measure(context, config, warmupRuns, runs);
+                System.out.println("Pensieve benchmark " + result);
+                results.add(result);
+            } catch (IOException e) {
+                System.out.println("Pensieve benchmark could not load " + config);
+                e.printStackTrace();
+            } catch (RuntimeException e) {
+                // A timeout or an interpreter failure only rules out this configuration.
+                System.out.println("Pensieve benchmark failed for " + config);
+                e.printStackTrace();
+            }
+        }
+        return results.toArray(new Result[0]);
+    }
+
+    /**
+     * Measures a single configuration.
+     *
+     * @param context    A context used to open the model asset.
+     * @param config     The configuration to measure.
+     * @param warmupRuns The number of decisions made before measuring.
+     * @param runs       The number of measured decisions.
+     * @return The {@link Result}.
+     * @throws IOException If the model could not be loaded.
+     */
+    public static Result measure(
+            Context context, PensieveInferenceConfig config, int warmupRuns, int runs)
+            throws IOException {
+        PensieveModelRegistry registry = new PensieveModelRegistry(context, config);
+        PensieveInferenceExecutor executor =
+                new PensieveInferenceExecutor(S_INFO * S_LEN, A_DIM, BENCHMARK_DEADLINE_MS);
+        try {
+            PensieveModel model = registry.acquire();
+            ByteBuffer state = ByteBuffer.allocateDirect(S_INFO * S_LEN * 4).order(ByteOrder.nativeOrder());
+            Random random = new Random(0);
+            long[] latenciesNs = new long[runs];
+            for (int i = 0; i < warmupRuns + runs; i++) {
+                for (int j = 0; j < S_INFO * S_LEN; j++) {
+                    state.putFloat(j * 4, random.nextFloat());
+                }
+                long startNs = System.nanoTime();
+                int decision = executor.awaitDecision(executor.submit(model, state));
+                long latencyNs = System.nanoTime() - startNs;
+                if (decision == C.INDEX_UNSET) {
+                    throw new IllegalStateException("Benchmark decision timed out for " + config);
+                }
+                if (i >= warmupRuns) {
+                    latenciesNs[i - warmupRuns] = latencyNs;
+                }
+            }
+            Arrays.sort(latenciesNs);
+            return new Result(
+                    config,
+                    percentile(latenciesNs, 50) / 1000,
+                    percentile(latenciesNs, 99) / 1000,
+                    runs == 0 ? 0 : latenciesNs[runs - 1] / 1000);
+        } finally {
+            executor.release();
+            registry.release();
+        }
+    }
+
+    /**
+     * Returns the configuration with the lowest p99 latency, breaking ties on the p50 latency, or
+     * {@link PensieveInferenceConfig#DEFAULT} if there are no results.
+     */
+    public static PensieveInferenceConfig selectFastest(Result[] results) {
+        Result fastest = null;
+        for (Result result : results) {
+            if (fastest == null
+                    || result.p99Us < fastest.p99Us
+                    || (result.p99Us == fastest.p99Us && result.p50Us < fastest.p50Us)) {
+                fastest = result;
+            }
+        }
+        return fastest == null ? PensieveInferenceConfig.DEFAULT : fastest.config;
+    }
+
+    /**
+     * Returns the class of the current device that configurations are tuned for: its hardware name
+     * and number of cores.
+     */
+    public static String getDeviceClass() {
+        return Build.HARDWARE + "/" + Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Returns the fastest configuration {@link #tune(Context)} stored for the current device class,
+     * or {@link PensieveInferenceConfig#DEFAULT} if it has not been measured yet.
+     */
+    public static PensieveInferenceConfig getTunedConfig(Context context) {
+        String tunedConfig = readTunedConfig(context);
+        if (tunedConfig != null) {
+            for (PensieveInferenceConfig config : getCandidateConfigs()) {
+                if (config.toString().equals(tunedConfig)) {
+                    return config;
+                }
+            }
+        }
+        return PensieveInferenceConfig.DEFAULT;
+    }
+
+    /**
+     * Returns whether a configuration is stored for the current device class.
+     */
+    public static boolean isTuned(Context context) {
+        return readTunedConfig(context) != null;
+    }
+
+    /**
+     * Runs {@link #tune(Context)} on a background thread, unless a configuration is already stored
+     * for the current device class. The caller should not play until {@code onDone} runs.
+     *
+     * @param context         A context used to open the model assets and the app's private files.
+     * @param callbackHandler The handler {@code onDone} is posted to.
+     * @param onDone          Run once tuning has finished, whether or not it succeeded.
+     */
+    public static void tuneInBackground(
+            Context context, final Handler callbackHandler, final Runnable onDone) {
+        if (isTuned(context)) {
+            callbackHandler.post(onDone);
+            return;
+        }
+        final Context applicationContext = context.getApplicationContext();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    tune(applicationContext);
+                } catch (RuntimeException e) {
+                    // Keep the default configuration rather than crash the app.
+                    System.out.println("Pensieve tuning failed");
+                    e.printStackTrace();
+                } finally {
+                    callbackHandler.post(onDone);
+                }
+            }
+        }, "PensieveTuning");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Measures every candidate configuration and stores the fastest for the current device class,
+     * or {@link PensieveInferenceConfig#DEFAULT} if none could be measured so that tuning is not
+     * repeated. Must not be run on the main thread, nor while playing.
+     *
+     * @param context A context used to open the model assets and the app's private files.
+     * @return The fastest configuration.
+     */
+    public static PensieveInferenceConfig tune(Context context) {
+        Result[] results = measure(context, getCandidateConfigs(), TUNING_WARMUP_RUNS, TUNING_RUNS);
+        System.out.println(report(results));
+        PensieveInferenceConfig fastest = selectFastest(results);
+        try {
+            Writer writer = new OutputStreamWriter(
+                    context.openFileOutput(TUNED_CONFIG_FILE, Context.MODE_PRIVATE), "UTF-8");
+            try {
+                writer.write(getDeviceClass() + '\t' + fastest + '\n');
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            System.out.println("Could not store tuned Pensieve config");
+            e.printStackTrace();
+        }
+        return fastest;
+    }
+
+    /**
+     * Returns a report of the results, headed by the device they were measured on.
+     */
+    public static String report(Result[] results) {
+        StringBuilder report = new StringBuilder();
+        report.append(Build.MANUFACTURER).append(' ').append(Build.MODEL)
+                .append(" (").append(Build.HARDWARE).append(", ")
+                .append(Runtime.getRuntime().availableProcessors()).append(" cores)\n");
+        for (Result result : results) {
+            report.append(result).append('\n');
+        }
+        report.append("fastest: ").append(selectFastest(results));
+        return report.toString();
+    }
+
+    /**
+     * Returns the name of the configuration stored for the current device class, or null if there is
+     * none.
+     */
+    @Nullable
+    private static String readTunedConfig(Context context) {
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    context.openFileInput(TUNED_CONFIG_FILE), "UTF-8"));
+            try {
+                String line = reader.readLine();
+                String prefix = getDeviceClass() + '\t';
+                return line != null && line.startsWith(prefix) ? line.substring(prefix.length()) : null;
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            // Not tuned yet.
+            return null;
+        }
+    }
+
+    private static long percentile(long[] sortedValues, int percentile) {
+        if (sortedValues.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile / 100.0 * sortedValues.length) - 1;
+        return sortedValues[Math.max(0, Math.min(sortedValues.length - 1, index))];
+    }
+}
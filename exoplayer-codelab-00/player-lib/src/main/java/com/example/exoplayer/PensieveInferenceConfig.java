@@ -0,0 +1,336 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.exoplayer;
+
+import androidx.annotation.Nullable;
+
+import org.tensorflow.lite.Interpreter;
+
+/**
+ * Selects how {@link PensieveTrackSelection} evaluates the Pensieve actor network: the backend, the
+ * TFLite interpreter options and how long a decision may take before the selection falls back.
+ *
+ * <p>The interpreter options only apply to {@link #BACKEND_TFLITE}. The fastest combination depends
+ * on the device, see {@link PensieveInferenceBenchmark}.
+ *
+ * <p>The model variant chooses between the float weights and their int8 dynamic-range quantization,
+ * which is a quarter of the size. Only the Java backend ships an int8 variant, so {@link
+ * #MODEL_VARIANT_INT8} runs on {@link JavaPensieveModel} whatever the backend.
+ *
+ * <p>A {@link PensieveDecisionCache} is only used if a capacity is set, and a {@link
+ * PensieveSpeculator} only if speculative decisions are enabled.
+ */
+public final class PensieveInferenceConfig {
+
+    /**
+     * Runs {@link PensieveModelRegistry#TFLITE_MODEL_ASSET} on the TFLite interpreter.
+     */
+    public static final int BACKEND_TFLITE = 0;
+    /**
+     * Runs {@link PensieveModelRegistry#JAVA_MODEL_ASSET} on {@link JavaPensieveModel}.
+     */
+    public static final int BACKEND_JAVA = 1;
+
+    /**
+     * Uses the float weights.
+     */
+    public static final int MODEL_VARIANT_FLOAT = 0;
+    /**
+     * Uses the int8 quantized weights, {@link PensieveModelRegistry#JAVA_INT8_MODEL_ASSET}.
+     */
+    public static final int MODEL_VARIANT_INT8 = 1;
+    /**
+     * Uses {@link #MODEL_VARIANT_INT8} on low RAM devices and {@link #MODEL_VARIANT_FLOAT}
+     * otherwise.
+     */
+    public static final int MODEL_VARIANT_AUTO = 2;
+
+    /**
+     * Leaves the number of interpreter threads to the TFLite runtime.
+     */
+    public static final int NUM_THREADS_DEFAULT = -1;
+
+    /**
+     * The configuration used when none is given: the TFLite interpreter with its default options.
+     */
+    public static final PensieveInferenceConfig DEFAULT = new Builder().build();
+
+    /**
+     * Builds {@link PensieveInferenceConfig} instances.
+     */
+    public static final class Builder {
+
+        private int backend;
+        private int modelVariant;
+        private int numThreads;
+        private boolean useXnnpack;
+        private boolean allowFp16;
+        private long deadlineMs;
+        private int decisionCacheCapacity;
+        private float[] decisionCacheRowSteps;
+        private boolean speculativeDecisions;
+
+        public Builder() {
+            backend = BACKEND_TFLITE;
+            modelVariant = MODEL_VARIANT_FLOAT;
+            numThreads = NUM_THREADS_DEFAULT;
+            deadlineMs = PensieveTrackSelection.DEFAULT_INFERENCE_DEADLINE_MS;
+            decisionCacheRowSteps = PensieveDecisionCache.DEFAULT_ROW_STEPS;
+        }
+
+        /**
+         * @param config The configuration to start from.
+         */
+        public Builder(PensieveInferenceConfig config) {
+            backend = config.backend;
+            modelVariant = config.modelVariant;
+            numThreads = config.numThreads;
+            useXnnpack = config.useXnnpack;
+            allowFp16 = config.allowFp16;
+            deadlineMs = config.deadlineMs;
+            decisionCacheCapacity = config.decisionCacheCapacity;
+            decisionCacheRowSteps = config.decisionCacheRowSteps;
+            speculativeDecisions = config.speculativeDecisions;
+        }
+
+        /**
+         * Sets the inference backend.
+         *
+         * @param backend One of {@link #BACKEND_TFLITE} and {@link #BACKEND_JAVA}.
+         * @return This builder.
+         */
+        public Builder setBackend(int backend) {
+            if (backend != BACKEND_TFLITE && backend != BACKEND_JAVA) {
+                throw new IllegalArgumentException("Unknown backend: " + backend);
+            }
+            this.backend = backend;
+            return this;
+        }
+
+        /**
+         * Sets the model variant.
+         *
+         * @param modelVariant One of {@link #MODEL_VARIANT_FLOAT}, {@link #MODEL_VARIANT_INT8} and
+         *                     {@link #MODEL_VARIANT_AUTO}.
+         * @return This builder.
+         */
+        public Builder setModelVariant(int modelVariant) {
+            if (modelVariant != MODEL_VARIANT_FLOAT && modelVariant != MODEL_VARIANT_INT8
+                    && modelVariant != MODEL_VARIANT_AUTO) {
+                throw new IllegalArgumentException("Unknown model variant: " + modelVariant);
+            }
+            this.modelVariant = modelVariant;
+            return this;
+        }
+
+        /**
+         * Sets the number of threads the TFLite interpreter may use.
+         *
+         * @param numThreads A positive thread count, or {@link #NUM_THREADS_DEFAULT}.
+         * @return This builder.
+         */
+        public Builder setNumThreads(int numThreads) {
+            if (numThreads <= 0 && numThreads != NUM_THREADS_DEFAULT) {
+                throw new IllegalArgumentException("Invalid thread count: " + numThreads);
+            }
+            this.numThreads = numThreads;
+            return this;
+        }
+
+        /**
+         * Sets whether the TFLite interpreter runs the model on the XNNPACK CPU delegate.
+         *
+         * @param useXnnpack Whether to use XNNPACK.
+         * @return This builder.
+         */
+        public Builder setUseXnnpack(boolean useXnnpack) {
+            this.useXnnpack = useXnnpack;
+            return this;
+        }
+
+        /**
+         * Sets whether the TFLite interpreter may compute float32 operations at float16 precision.
+         *
+         * @param allowFp16 Whether to allow float16 precision.
+         * @return This builder.
+         */
+        public Builder setAllowFp16(boolean allowFp16) {
+            this.allowFp16 = allowFp16;
+            return this;
+        }
+
+        /**
+         * Sets how long the playback thread waits for a decision before falling back to a buffer
+         * based rule.
+         *
+         * @param deadlineMs The deadline in milliseconds.
+         * @return This builder.
+         */
+        public Builder setDeadlineMs(long deadlineMs) {
+            if (deadlineMs <= 0) {
+                throw new IllegalArgumentException("Invalid deadline: " + deadlineMs);
+            }
+            this.deadlineMs = deadlineMs;
+            return this;
+        }
+
+        /**
+         * Sets the number of decisions kept in a {@link PensieveDecisionCache}.
+         *
+         * @param decisionCacheCapacity The capacity, or 0 to always run an inference.
+         * @return This builder.
+         */
+        public Builder setDecisionCacheCapacity(int decisionCacheCapacity) {
+            if (decisionCacheCapacity < 0) {
+                throw new IllegalArgumentException("Invalid capacity: " + decisionCacheCapacity);
+            }
+            this.decisionCacheCapacity = decisionCacheCapacity;
+            return this;
+        }
+
+        /**
+         * Sets the quantization step of each state row used to key the decision cache.
+         *
+         * @param decisionCacheRowSteps One step per state row.
+         * @return This builder.
+         */
+        public Builder setDecisionCacheRowSteps(float[] decisionCacheRowSteps) {
+            this.decisionCacheRowSteps = decisionCacheRowSteps.clone();
+            return this;
+        }
+
+        /**
+         * Sets whether the next decision is precomputed for a few throughput outcomes while each
+         * chunk downloads.
+         *
+         * @param speculativeDecisions Whether to speculate.
+         * @return This builder.
+         */
+        public Builder setSpeculativeDecisions(boolean speculativeDecisions) {
+            this.speculativeDecisions = speculativeDecisions;
+            return this;
+        }
+
+        public PensieveInferenceConfig build() {
+            return new PensieveInferenceConfig(this);
+        }
+    }
+
+    /**
+     * The inference backend, one of {@link #BACKEND_TFLITE} and {@link #BACKEND_JAVA}.
+     */
+    public final int backend;
+    /**
+     * The model variant, one of {@link #MODEL_VARIANT_FLOAT}, {@link #MODEL_VARIANT_INT8} and {@link
+     * #MODEL_VARIANT_AUTO}.
+     */
+    public final int modelVariant;
+    /**
+     * The number of TFLite interpreter threads, or {@link #NUM_THREADS_DEFAULT}.
+     */
+    public final int numThreads;
+    /**
+     * Whether the TFLite interpreter uses the XNNPACK CPU delegate.
+     */
+    public final boolean useXnnpack;
+    /**
+     * Whether the TFLite interpreter may compute float32 operations at float16 precision.
+     */
+    public final boolean allowFp16;
+    /**
+     * How long the playback thread waits for a decision, in milliseconds.
+     */
+    public final long deadlineMs;
+    /**
+     * The capacity of the decision cache, or 0 if decisions are not cached.
+     */
+    public final int decisionCacheCapacity;
+    /**
+     * Whether the next decision is precomputed while each chunk downloads.
+     */
+    public final boolean speculativeDecisions;
+
+    private final float[] decisionCacheRowSteps;
+
+    private PensieveInferenceConfig(Builder builder) {
+        this.backend = builder.backend;
+        this.modelVariant = builder.modelVariant;
+        this.numThreads = builder.numThreads;
+        this.useXnnpack = builder.useXnnpack;
+        this.allowFp16 = builder.allowFp16;
+        this.deadlineMs = builder.deadlineMs;
+        this.decisionCacheCapacity = builder.decisionCacheCapacity;
+        this.decisionCacheRowSteps = builder.decisionCacheRowSteps;
+        this.speculativeDecisions = builder.speculativeDecisions;
+    }
+
+    /**
+     * Returns a new decision cache as configured, or null if decisions are not cached.
+     *
+     * @param rowLength The number of values in each state row.
+     */
+    @Nullable
+    public PensieveDecisionCache createDecisionCache(int rowLength) {
+        return decisionCacheCapacity == 0
+                ? null
+                : new PensieveDecisionCache(decisionCacheCapacity, rowLength, decisionCacheRowSteps);
+    }
+
+    /**
+     * Returns the name of the asset holding the model for the configured backend and variant.
+     *
+     * @param lowRamDevice Whether the device reports itself as low RAM, which resolves {@link
+     *                     #MODEL_VARIANT_AUTO}.
+     */
+    public String getModelAsset(boolean lowRamDevice) {
+        if (modelVariant == MODEL_VARIANT_INT8 || (modelVariant == MODEL_VARIANT_AUTO && lowRamDevice)) {
+            return PensieveModelRegistry.JAVA_INT8_MODEL_ASSET;
+        }
+        return backend == BACKEND_JAVA
+                ? PensieveModelRegistry.JAVA_MODEL_ASSET
+                : PensieveModelRegistry.TFLITE_MODEL_ASSET;
+    }
+
+    /**
+     * Returns the TFLite interpreter options described by this configuration.
+     */
+    public Interpreter.Options toInterpreterOptions() {
+        Interpreter.Options options = new Interpreter.Options();
+        if (numThreads != NUM_THREADS_DEFAULT) {
+            options.setNumThreads(numThreads);
+        }
+        options.setUseXNNPACK(useXnnpack);
+        options.setAllowFp16PrecisionForFp32(allowFp16);
+        return options;
+    }
+
+    @Override
+    public String toString() {
+        String suffix = (modelVariant == MODEL_VARIANT_AUTO ? " auto" : "")
+                + (decisionCacheCapacity > 0 ? " cache=" + decisionCacheCapacity : "")
+                + (speculativeDecisions ? " speculative" : "");
+        if (modelVariant == MODEL_VARIANT_INT8) {
+            return "java int8" + suffix;
+        }
+        if (backend == BACKEND_JAVA) {
+            return "java" + suffix;
+        }
+        return "tflite threads=" + (numThreads == NUM_THREADS_DEFAULT ? "default" : numThreads)
+                + " xnnpack=" + useXnnpack
+                + " fp16=" + allowFp16
+                + suffix;
+    }
+}
@@ -0,0 +1,352 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.exoplayer;
+
+import com.google.android.exoplayer2.C;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Runs Pensieve inferences on a dedicated background thread so that the playback thread, which
+ * calls {@link PensieveTrackSelection#updateSelectedTrack}, never waits on the interpreter for
+ * longer than a fixed deadline.
+ *
+ * <p>{@link #submit(PensieveModel, ByteBuffer)} copies a snapshot of the state into the executor
+ * and wakes the worker. {@link #awaitDecision(int)} then waits at most the deadline for the result
+ * of that submission and returns {@link C#INDEX_UNSET} if it is not ready, in which case the caller
+ * is expected to fall back to a cheaper rule and report it through {@link #onFallback()}.
+ *
+ * <p>Only the most recent submission is ever computed: a snapshot submitted while the worker is
+ * busy replaces any snapshot still waiting to be picked up.
+ *
+ * <p>The worker also computes speculative batches submitted with {@link
+ * #submitSpeculative(PensieveModel, ByteBuffer, int)} while it is otherwise idle, one state at a
+ * time so that a regular submission never waits for more than one inference. Their decisions are
+ * polled without waiting through {@link #getSpeculativeDecision(int, int)}.
+ */
+public final class PensieveInferenceExecutor {
+
+    private final int stateSize;
+    private final int actionCount;
+    private final long deadlineNs;
+    private final Thread thread;
+
+    // Guarded by this.
+    private final ByteBuffer pendingState;
+    private final ByteBuffer workingState;
+    private final ByteBuffer output;
+    private PensieveModel pendingModel;
+    private int submittedSequence;
+    private int startedSequence;
+    private int completedSequence;
+    private int completedAction;
+    private long pendingSubmitTimeNs;
+    private boolean released;
+
+    // Speculative batch, guarded by this.
+    private ByteBuffer batchStates;
+    private int[] batchActions;
+    private PensieveModel batchModel;
+    private int batchSequence;
+    private int batchCount;
+    private int batchStartedCount;
+    private int batchCompletedCount;
+
+    // Statistics, guarded by this.
+    private long decisionCount;
+    private long fallbackCount;
+    private long lastLatencyNs;
+    private long maxLatencyNs;
+    private long totalLatencyNs;
+    private long speculativeInferenceCount;
+    private long speculationHitCount;
+    private long speculationMissCount;
+
+    /**
+     * @param stateSize   The number of floats in the model state.
+     * @param actionCount The number of model outputs.
+     * @param deadlineMs  How long {@link #awaitDecision(int)} waits for a result, in milliseconds.
+     */
+    public PensieveInferenceExecutor(int stateSize, int actionCount, long deadlineMs) {
+        this.stateSize = stateSize;
+        this.actionCount = actionCount;
+        this.deadlineNs = deadlineMs * 1000000L;
+        this.pendingState = ByteBuffer.allocateDirect(stateSize * 4).order(ByteOrder.nativeOrder());
+        this.workingState = ByteBuffer.allocateDirect(stateSize * 4).order(ByteOrder.nativeOrder());
+        this.output = ByteBuffer.allocateDirect(actionCount * 4).order(ByteOrder.nativeOrder());
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runLoop();
+            }
+        }, "PensieveInference");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Copies {@code state} and schedules an inference for it.
+     *
+     * @param model The model to run.
+     * @param state A direct, native-order buffer holding the flattened model input.
+     * @return The sequence number of the submission, to be passed to {@link #awaitDecision(int)}.
+     */
+    public synchronized int submit(PensieveModel model, ByteBuffer state) {
+        copy(state, pendingState);
+        pendingModel = model;
+        pendingSubmitTimeNs = System.nanoTime();
+        submittedSequence++;
+        notifyAll();
+        return submittedSequence;
+    }
+
+    /**
+     * Waits at most the deadline for the decision of a submission.
+     *
+     * @param sequence The value returned by {@link #submit(PensieveModel, ByteBuffer)}.
+     * @return The index of the highest scoring action, or {@link C#INDEX_UNSET} if the inference did
+     * not complete in time.
+     */
+    public synchronized int awaitDecision(int sequence) {
+        long deadlineTimeNs = System.nanoTime() + deadlineNs;
+        long remainingNs = deadlineNs;
+        while (completedSequence < sequence && remainingNs > 0 && !released) {
+            try {
+                wait(remainingNs / 1000000L, (int) (remainingNs % 1000000L));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            remainingNs = deadlineTimeNs - System.nanoTime();
+        }
+        return completedSequence == sequence ? completedAction : C.INDEX_UNSET;
+    }
+
+    /**
+     * Copies {@code count} states and schedules speculative inferences for them, to run while no
+     * regular submission is waiting. Replaces any previous batch, including its decisions.
+     *
+     * @param model  The model to run.
+     * @param states A direct, native-order buffer holding {@code count} consecutive flattened states.
+     * @param count  The number of states.
+     * @return The sequence number of the batch, to be passed to {@link #getSpeculativeDecision(int,
+     * int)}.
+     */
+    public synchronized int submitSpeculative(PensieveModel model, ByteBuffer states, int count) {
+        int bytes = count * stateSize * 4;
+        if (batchStates == null || batchStates.capacity() < bytes) {
+            batchStates = ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+            batchActions = new int[count];
+        }
+        states.rewind();
+        batchStates.clear();
+        for (int i = 0; i < bytes; i++) {
+            batchStates.put(i, states.get(i));
+        }
+        batchModel = model;
+        batchCount = count;
+        batchStartedCount = 0;
+        batchCompletedCount = 0;
+        batchSequence++;
+        notifyAll();
+        return batchSequence;
+    }
+
+    /**
+     * Returns the decision for one state of a speculative batch, without waiting.
+     *
+     * @param sequence The value returned by {@link #submitSpeculative(PensieveModel, ByteBuffer,
+     *                 int)}.
+     * @param index    The index of the state in the batch.
+     * @return The index of the highest scoring action, or {@link C#INDEX_UNSET} if the batch has been
+     * replaced or that state has not been computed yet.
+     */
+    public synchronized int getSpeculativeDecision(int sequence, int index) {
+        return sequence == batchSequence && index < batchCompletedCount
+                ? batchActions[index]
+                : C.INDEX_UNSET;
+    }
+
+    /**
+     * Records whether a decision could be taken from a speculative batch.
+     *
+     * @param hit Whether a precomputed decision was used.
+     */
+    public synchronized void onSpeculation(boolean hit) {
+        if (hit) {
+            speculationHitCount++;
+        } else {
+            speculationMissCount++;
+        }
+    }
+
+    /**
+     * Returns the number of speculative inferences that completed.
+     */
+    public synchronized long getSpeculativeInferenceCount() {
+        return speculativeInferenceCount;
+    }
+
+    /**
+     * Returns the number of decisions taken from a speculative batch.
+     */
+    public synchronized long getSpeculationHitCount() {
+        return speculationHitCount;
+    }
+
+    /**
+     * Returns the number of decisions for which no speculative decision was close enough or ready.
+     */
+    public synchronized long getSpeculationMissCount() {
+        return speculationMissCount;
+    }
+
+    /**
+     * Records that the caller used a fallback decision because {@link #awaitDecision(int)} timed out.
+     */
+    public synchronized void onFallback() {
+        fallbackCount++;
+    }
+
+    /**
+     * Returns the number of inferences that completed.
+     */
+    public synchronized long getDecisionCount() {
+        return decisionCount;
+    }
+
+    /**
+     * Returns the number of decisions that fell back to another rule because the deadline passed.
+     */
+    public synchronized long getFallbackCount() {
+        return fallbackCount;
+    }
+
+    /**
+     * Returns the time from submission to result of the latest inference, in microseconds.
+     */
+    public synchronized long getLastLatencyUs() {
+        return lastLatencyNs / 1000;
+    }
+
+    /**
+     * Returns the longest time from submission to result seen so far, in microseconds.
+     */
+    public synchronized long getMaxLatencyUs() {
+        return maxLatencyNs / 1000;
+    }
+
+    /**
+     * Returns the mean time from submission to result, in microseconds.
+     */
+    public synchronized long getMeanLatencyUs() {
+        return decisionCount == 0 ? 0 : totalLatencyNs / decisionCount / 1000;
+    }
+
+    /**
+     * Stops the worker thread once any running inference has finished.
+     */
+    public synchronized void release() {
+        released = true;
+        notifyAll();
+    }
+
+    private void runLoop() {
+        while (true) {
+            PensieveModel model;
+            int sequence;
+            long submitTimeNs;
+            int batchIndex = C.INDEX_UNSET;
+            synchronized (this) {
+                while (!released && startedSequence == submittedSequence
+                        && batchStartedCount == batchCount) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (released) {
+                    return;
+                }
+                if (startedSequence != submittedSequence) {
+                    copy(pendingState, workingState);
+                    model = pendingModel;
+                    sequence = submittedSequence;
+                    submitTimeNs = pendingSubmitTimeNs;
+                    startedSequence = sequence;
+                } else {
+                    batchIndex = batchStartedCount++;
+                    workingState.clear();
+                    int offset = batchIndex * stateSize * 4;
+                    for (int i = 0; i < stateSize * 4; i++) {
+                        workingState.put(i, batchStates.get(offset + i));
+                    }
+                    model = batchModel;
+                    sequence = batchSequence;
+                    submitTimeNs = 0;
+                }
+            }
+            int action;
+            try {
+                model.run(workingState, output);
+                action = 0;
+                for (int i = 1; i < actionCount; i++) {
+                    if (output.getFloat(i * 4) > output.getFloat(action * 4)) {
+                        action = i;
+                    }
+                }
+            } catch (RuntimeException e) {
+                System.out.println("Pensieve inference failed");
+                e.printStackTrace();
+                if (batchIndex == C.INDEX_UNSET) {
+                    continue;
+                }
+                // Keep the batch prefix complete; the failed state just has no decision.
+                action = C.INDEX_UNSET;
+            }
+            if (batchIndex != C.INDEX_UNSET) {
+                synchronized (this) {
+                    // Batch states complete in order, so the completed count is a prefix.
+                    if (sequence == batchSequence) {
+                        batchActions[batchIndex] = action;
+                        batchCompletedCount = batchIndex + 1;
+                    }
+                    speculativeInferenceCount++;
+                }
+                continue;
+            }
+            long latencyNs = System.nanoTime() - submitTimeNs;
+            synchronized (this) {
+                completedSequence = sequence;
+                completedAction = action;
+                decisionCount++;
+                lastLatencyNs = latencyNs;
+                maxLatencyNs = Math.max(maxLatencyNs, latencyNs);
+                totalLatencyNs += latencyNs;
+                notifyAll();
+            }
+        }
+    }
+
+    private static void copy(ByteBuffer source, ByteBuffer target) {
+        source.rewind();
+        target.clear();
+        target.put(source);
+        source.rewind();
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.exoplayer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The Pensieve actor network, mapping a flattened {@code [S_INFO][S_LEN]} state to one score per
+ * bitrate.
+ *
+ * <p>Instances are obtained from a {@link PensieveModelRegistry}, which owns them and closes them
+ * when the player is released.
+ */
+public interface PensieveModel {
+
+    /**
+     * Returns the name of the asset the model was loaded from.
+     */
+    String getAssetName();
+
+    /**
+     * Returns the size of the model input in bytes.
+     */
+    int getInputBytes();
+
+    /**
+     * Returns the size of the model output in bytes.
+     */
+    int getOutputBytes();
+
+    /**
+     * Runs a single inference. Both buffers are rewound before use.
+     *
+     * @param input  A direct, native-order buffer holding the flattened input tensor.
+     * @param output A direct, native-order buffer receiving the flattened output tensor.
+     */
+    void run(ByteBuffer input, ByteBuffer output);
+
+    /**
+     * Releases the resources held by the model. Called by the owning {@link PensieveModelRegistry};
+     * the model must not be used afterwards.
+     */
+    void close();
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.exoplayer;
+
+import android.app.ActivityManager;
+import android.content.Context;
+
+import org.tensorflow.lite.support.common.FileUtil;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.util.HashMap;
+
+/**
+ * Loads Pensieve models from the app assets once and hands out the same warmed {@link
+ * PensieveModel} to every {@link PensieveTrackSelection} created for a player.
+ *
+ * <p>The backend is chosen by the asset extension: {@code .tflite} assets are mapped and run on a
+ * {@link TfLitePensieveModel}, {@code .bin} weight files are read into a {@link JavaPensieveModel}.
+ *
+ * <p>A registry is owned by a {@link PensieveTrackSelection.Factory} and lives as long as the
+ * player it was created for. {@link #release()} must be called when that player is released.
+ */
+public final class PensieveModelRegistry {
+
+    /**
+     * The asset holding the pretrained Pensieve actor network.
+     */
+    public static final String TFLITE_MODEL_ASSET = "pretrained_model.tflite";
+    /**
+     * The weights of {@link #TFLITE_MODEL_ASSET}, exported by {@code tools/export_pensieve_weights.py}.
+     */
+    public static final String JAVA_MODEL_ASSET = "pensieve_actor.bin";
+    /**
+     * The int8 dynamic-range quantization of {@link #JAVA_MODEL_ASSET}, exported with {@code
+     * --int8}.
+     */
+    public static final String JAVA_INT8_MODEL_ASSET = "pensieve_actor_int8.bin";
+
+    private final Context context;
+    private final PensieveInferenceConfig config;
+    private final HashMap<String, PensieveModel> models;
+
+    private boolean released;
+
+    /**
+     * @param context A context used to open the app assets.
+     * @param config  Selects the model returned by {@link #acquire()} and the TFLite interpreter
+     *                options.
+     */
+    public PensieveModelRegistry(Context context, PensieveInferenceConfig config) {
+        this.context = context;
+        this.config = config;
+        this.models = new HashMap<>();
+    }
+
+    /**
+     * Returns the model selected by the registry's {@link PensieveInferenceConfig}.
+     *
+     * @return The shared {@link PensieveModel}.
+     * @throws IOException If the asset could not be loaded.
+     */
+    public PensieveModel acquire() throws IOException {
+        ActivityManager activityManager =
+                (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        boolean lowRamDevice = activityManager != null && activityManager.isLowRamDevice();
+        return acquire(config.getModelAsset(lowRamDevice));
+    }
+
+    /**
+     * Returns the model loaded from {@code assetName}, loading and warming it on first use.
+     *
+     * @param assetName The name of a TFLite model or Java weights asset.
+     * @return The shared {@link PensieveModel}.
+     * @throws IOException If the asset could not be loaded.
+     */
+    public synchronized PensieveModel acquire(String assetName) throws IOException {
+        if (released) {
+            throw new IllegalStateException("Registry has been released");
+        }
+        PensieveModel model = models.get(assetName);
+        if (model == null) {
+            model = load(assetName);
+            models.put(assetName, model);
+        }
+        return model;
+    }
+
+    /**
+     * Closes all models held by the registry. Further calls to {@link #acquire(String)} fail.
+     */
+    public synchronized void release() {
+        released = true;
+        for (PensieveModel model : models.values()) {
+            model.close();
+        }
+        models.clear();
+    }
+
+    private PensieveModel load(String assetName) throws IOException {
+        if (assetName.endsWith(".bin")) {
+            InputStream inputStream = context.getAssets().open(assetName);
+            try {
+                return JavaPensieveModel.load(assetName, inputStream);
+            } finally {
+                inputStream.close();
+            }
+        }
+        MappedByteBuffer modelBuffer = FileUtil.loadMappedFile(context, assetName);
+        return new TfLitePensieveModel(assetName, modelBuffer, config);
+    }
+}
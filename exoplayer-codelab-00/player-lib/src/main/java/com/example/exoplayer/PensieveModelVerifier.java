@@ -0,0 +1,395 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.exoplayer;
+
+import com.google.android.exoplayer2.C;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks that two {@link PensieveModel} backends compute the same function, typically a {@link
+ * JavaPensieveModel} against the {@link TfLitePensieveModel} it was exported from.
+ *
+ * <p>Both models are run either on pseudo-random states, drawn per row from the ranges the
+ * normalized Pensieve observations take during playback, or on the states recorded in Pensieve
+ * playback traces. The latter is the accuracy harness for a quantized variant: its action agreement
+ * rate with the float model over real sessions. {@link #main(String[])} runs it on a plain JVM for
+ * the Java backend weights.
+ *
+ * <p>The TFLite interpreter does not run on a plain JVM, so the Java backend is checked against the
+ * TFLite graph through a reference file: {@code tools/export_pensieve_weights.py --reference}
+ * evaluates the graph on seeded random states and records its outputs, which {@link
+ * #readReference(Reader, List)} reads back.
+ *
+ * <p>{@link #compareWithCache} likewise measures how often a {@link PensieveDecisionCache} changes
+ * the decision compared to always running the model.
+ */
+public final class PensieveModelVerifier {
+
+    private static final int S_INFO = 6;
+    private static final int S_LEN = 8;
+    private static final int A_DIM = 6;
+
+    // Upper bound of each state row: bitrate fraction, buffer (10 s), throughput (KB/ms),
+    // delay (10 s), next chunk sizes (MB) and fraction of chunks left.
+    private static final float[] ROW_SCALES = {1f, 6f, 5f, 2f, 3f, 1f};
+
+    /**
+     * The outcome of a comparison.
+     */
+    public static final class Result {
+
+        /**
+         * The number of states compared.
+         */
+        public final int stateCount;
+        /**
+         * The largest absolute difference between two corresponding outputs.
+         */
+        public final float maxAbsoluteDifference;
+        /**
+         * The number of states for which the highest scoring bitrate differs.
+         */
+        public final int decisionMismatches;
+
+        private Result(int stateCount, float maxAbsoluteDifference, int decisionMismatches) {
+            this.stateCount = stateCount;
+            this.maxAbsoluteDifference = maxAbsoluteDifference;
+            this.decisionMismatches = decisionMismatches;
+        }
+
+        /**
+         * Returns the fraction of states for which both models choose the same bitrate.
+         */
+        public double getAgreementRate() {
+            return stateCount == 0 ? 1.0 : 1.0 - (double) decisionMismatches / stateCount;
+        }
+
+        @Override
+        public String toString() {
+            return "states=" + stateCount
+                    + " agreement=" + getAgreementRate()
+                    + " maxAbsDiff=" + maxAbsoluteDifference
+                    + " decisionMismatches=" + decisionMismatches;
+        }
+    }
+
+    private PensieveModelVerifier() {
+    }
+
+    /**
+     * Runs both models on {@code stateCount} random states.
+     *
+     * @param expected   The reference model.
+     * @param actual     The model under test.
+     * @param stateCount The number of states to compare.
+     * @param seed       The seed of the state generator.
+     * @return The {@link Result}.
+     */
+    public static Result compare(
+            PensieveModel expected, PensieveModel actual, int stateCount, long seed) {
+        Random random = new Random(seed);
+        List<float[]> states = new ArrayList<>(stateCount);
+        for (int n = 0; n < stateCount; n++) {
+            float[] state = new float[S_INFO * S_LEN];
+            for (int row = 0; row < S_INFO; row++) {
+                for (int col = 0; col < S_LEN; col++) {
+                    state[row * S_LEN + col] = random.nextFloat() * ROW_SCALES[row];
+                }
+            }
+            states.add(state);
+        }
+        return compare(expected, actual, states);
+    }
+
+    /**
+     * Runs both models on the given states.
+     *
+     * @param expected The reference model.
+     * @param actual   The model under test.
+     * @param states   The flattened {@code [S_INFO][S_LEN]} states, for example from {@link
+     *                 #readTraceStates(Reader)}.
+     * @return The {@link Result}.
+     */
+    public static Result compare(PensieveModel expected, PensieveModel actual, List<float[]> states) {
+        ByteBuffer input = ByteBuffer.allocateDirect(S_INFO * S_LEN * 4).order(ByteOrder.nativeOrder());
+        ByteBuffer expectedOutput = ByteBuffer.allocateDirect(A_DIM * 4).order(ByteOrder.nativeOrder());
+        ByteBuffer actualOutput = ByteBuffer.allocateDirect(A_DIM * 4).order(ByteOrder.nativeOrder());
+        float maxAbsoluteDifference = 0f;
+        int decisionMismatches = 0;
+        for (float[] state : states) {
+            for (int i = 0; i < S_INFO * S_LEN; i++) {
+                input.putFloat(i * 4, state[i]);
+            }
+            expected.run(input, expectedOutput);
+            actual.run(input, actualOutput);
+            for (int i = 0; i < A_DIM; i++) {
+                maxAbsoluteDifference = Math.max(maxAbsoluteDifference,
+                        Math.abs(expectedOutput.getFloat(i * 4) - actualOutput.getFloat(i * 4)));
+            }
+            if (argmax(expectedOutput) != argmax(actualOutput)) {
+                decisionMismatches++;
+            }
+        }
+        return new Result(states.size(), maxAbsoluteDifference, decisionMismatches);
+    }
+
+    /**
+     * Decides each state once through a decision cache, the way {@link PensieveTrackSelection} does,
+     * and once by running the model, and counts the states for which the decisions differ.
+     *
+     * @param model  The model.
+     * @param states The flattened states, in playback order.
+     * @param cache  The cache to measure. Its hit and miss counts include the states compared here.
+     * @return The {@link Result}, whose {@link Result#maxAbsoluteDifference} is always 0.
+     */
+    public static Result compareWithCache(
+            PensieveModel model, List<float[]> states, PensieveDecisionCache cache) {
+        ByteBuffer input = ByteBuffer.allocateDirect(S_INFO * S_LEN * 4).order(ByteOrder.nativeOrder());
+        FloatBuffer inputFloats = input.asFloatBuffer();
+        ByteBuffer output = ByteBuffer.allocateDirect(A_DIM * 4).order(ByteOrder.nativeOrder());
+        int decisionMismatches = 0;
+        for (float[] state : states) {
+            inputFloats.clear();
+            inputFloats.put(state, 0, S_INFO * S_LEN);
+            model.run(input, output);
+            int decision = argmax(output);
+            long key = cache.key(inputFloats);
+            int cachedDecision = cache.get(key);
+            if (cachedDecision == C.INDEX_UNSET) {
+                cache.put(key, decision);
+            } else if (cachedDecision != decision) {
+                decisionMismatches++;
+            }
+        }
+        return new Result(states.size(), 0f, decisionMismatches);
+    }
+
+    /**
+     * Reads the states recorded in a Pensieve playback trace, where each state follows a {@code
+     * State:} line as {@code S_INFO} lines of {@code S_LEN} tab separated values.
+     *
+     * @param reader The trace. Not closed.
+     * @return The flattened states, in trace order.
+     * @throws IOException If the trace could not be read or holds a malformed state.
+     */
+    public static List<float[]> readTraceStates(Reader reader) throws IOException {
+        BufferedReader lines = new BufferedReader(reader);
+        List<float[]> states = new ArrayList<>();
+        String line;
+        while ((line = lines.readLine()) != null) {
+            if (!line.trim().equals("State:")) {
+                continue;
+            }
+            states.add(readState(lines, states.size()));
+        }
+        return states;
+    }
+
+    /**
+     * Reads a reference file written by {@code tools/export_pensieve_weights.py --reference}, where
+     * each state is laid out as in a playback trace and followed by an {@code Output:} line and a
+     * line of the {@code A_DIM} outputs the TFLite graph computed for it.
+     *
+     * @param reader  The reference file. Not closed.
+     * @param outputs Receives the outputs, in file order.
+     * @return The flattened states, in file order.
+     * @throws IOException If the file could not be read or holds a malformed state or output.
+     */
+    public static List<float[]> readReference(Reader reader, List<float[]> outputs)
+            throws IOException {
+        BufferedReader lines = new BufferedReader(reader);
+        List<float[]> states = new ArrayList<>();
+        String line;
+        while ((line = lines.readLine()) != null) {
+            if (!line.trim().equals("State:")) {
+                continue;
+            }
+            states.add(readState(lines, states.size()));
+            line = lines.readLine();
+            if (line == null || !line.trim().equals("Output:")) {
+                throw new IOException("Missing output of state " + (states.size() - 1));
+            }
+            float[] output = new float[A_DIM];
+            readRow(lines, output, 0, A_DIM, "output " + (states.size() - 1));
+            outputs.add(output);
+        }
+        return states;
+    }
+
+    private static float[] readState(BufferedReader lines, int index) throws IOException {
+        float[] state = new float[S_INFO * S_LEN];
+        for (int row = 0; row < S_INFO; row++) {
+            readRow(lines, state, row * S_LEN, S_LEN, "state " + index + " row " + row);
+        }
+        return state;
+    }
+
+    private static void readRow(
+            BufferedReader lines, float[] target, int offset, int count, String description)
+            throws IOException {
+        String rowLine = lines.readLine();
+        String[] values = rowLine == null ? new String[0] : rowLine.trim().split("\\s+");
+        if (values.length != count) {
+            throw new IOException("Malformed " + description);
+        }
+        for (int i = 0; i < count; i++) {
+            try {
+                target[offset + i] = Float.parseFloat(values[i]);
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed " + description, e);
+            }
+        }
+    }
+
+    /**
+     * Compares two Java backend weight files, or a decision cache against always running the model,
+     * printing the {@link Result}.
+     *
+     * <p>Usage: {@code PensieveModelVerifier <reference.bin> <candidate.bin> [trace...]}. Without
+     * traces, 10000 random states are compared. With {@code PensieveModelVerifier --cache <capacity>
+     * <model.bin> trace...}, a cache with {@link PensieveDecisionCache#DEFAULT_ROW_STEPS} is
+     * measured over the traces. With {@code PensieveModelVerifier --reference <reference.txt>
+     * <model.bin>}, the Java backend is compared with the TFLite graph outputs recorded in the
+     * reference file.
+     */
+    public static void main(String[] args) throws IOException {
+        boolean cacheMode = args.length > 0 && args[0].equals("--cache");
+        boolean referenceMode = args.length > 0 && args[0].equals("--reference");
+        if (args.length < 2 || (cacheMode && args.length < 4) || (referenceMode && args.length < 3)) {
+            System.out.println(
+                    "Usage: PensieveModelVerifier <reference.bin> <candidate.bin> [trace...]\n"
+                            + "       PensieveModelVerifier --cache <capacity> <model.bin> trace...\n"
+                            + "       PensieveModelVerifier --reference <reference.txt> <model.bin>");
+            return;
+        }
+        if (referenceMode) {
+            List<float[]> outputs = new ArrayList<>();
+            List<float[]> states;
+            Reader reader = new FileReader(args[1]);
+            try {
+                states = readReference(reader, outputs);
+            } finally {
+                reader.close();
+            }
+            Result result = compare(
+                    new RecordedPensieveModel(args[1], outputs), loadJavaModel(args[2]), states);
+            System.out.println(result);
+            return;
+        }
+        if (cacheMode) {
+            PensieveDecisionCache cache = new PensieveDecisionCache(
+                    Integer.parseInt(args[1]), S_LEN, PensieveDecisionCache.DEFAULT_ROW_STEPS);
+            Result result = compareWithCache(loadJavaModel(args[2]), readTraces(args, 3), cache);
+            System.out.println(result + " cache: " + cache);
+            return;
+        }
+        PensieveModel expected = loadJavaModel(args[0]);
+        PensieveModel actual = loadJavaModel(args[1]);
+        Result result;
+        if (args.length == 2) {
+            result = compare(expected, actual, 10000, 0);
+        } else {
+            result = compare(expected, actual, readTraces(args, 2));
+        }
+        System.out.println(result);
+    }
+
+    private static List<float[]> readTraces(String[] paths, int firstIndex) throws IOException {
+        List<float[]> states = new ArrayList<>();
+        for (int i = firstIndex; i < paths.length; i++) {
+            Reader reader = new FileReader(paths[i]);
+            try {
+                states.addAll(readTraceStates(reader));
+            } finally {
+                reader.close();
+            }
+        }
+        return states;
+    }
+
+    private static PensieveModel loadJavaModel(String path) throws IOException {
+        InputStream inputStream = new FileInputStream(path);
+        try {
+            return JavaPensieveModel.load(path, inputStream);
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * Replays outputs recorded for a sequence of states, one per {@link #run} call.
+     */
+    private static final class RecordedPensieveModel implements PensieveModel {
+
+        private final String name;
+        private final List<float[]> outputs;
+        private int nextOutput;
+
+        private RecordedPensieveModel(String name, List<float[]> outputs) {
+            this.name = name;
+            this.outputs = outputs;
+        }
+
+        @Override
+        public String getAssetName() {
+            return name;
+        }
+
+        @Override
+        public int getInputBytes() {
+            return S_INFO * S_LEN * 4;
+        }
+
+        @Override
+        public int getOutputBytes() {
+            return A_DIM * 4;
+        }
+
+        @Override
+        public void run(ByteBuffer input, ByteBuffer output) {
+            float[] values = outputs.get(nextOutput++);
+            for (int i = 0; i < A_DIM; i++) {
+                output.putFloat(i * 4, values[i]);
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static int argmax(ByteBuffer output) {
+        int best = 0;
+        for (int i = 1; i < A_DIM; i++) {
+            if (output.getFloat(i * 4) > output.getFloat(best * 4)) {
+                best = i;
+            }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.exoplayer;
+
+import com.google.android.exoplayer2.C;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * Precomputes the next Pensieve decision while the current chunk downloads.
+ *
+ * <p>Once a chunk is requested, everything in the next state is known except what its download
+ * will measure: the throughput, the delay that follows from it and the buffer level at completion.
+ * The selection describes a few candidate outcomes, one per throughput factor around the latest
+ * throughput, and the candidate states are decided on the {@link PensieveInferenceExecutor} while
+ * it would otherwise be idle. When the download completes, {@link #commit} returns the decision of
+ * the candidate nearest to the measured throughput, provided it is within tolerance of the measured
+ * throughput, delay and buffer level and was downloaded at the bitrate the candidate assumed, so no
+ * inference sits between two chunk requests. The delay is checked on its own because it also
+ * includes the time to first byte, which the throughput leaves out, and the bitrate because an
+ * abandoned chunk is downloaded again at another quality.
+ *
+ * <p>Each selection owns its speculator; it is used from the playback thread only.
+ */
+public final class PensieveSpeculator {
+
+    /**
+     * Default throughput outcomes, as factors of the latest measured throughput.
+     */
+    public static final float[] DEFAULT_THROUGHPUT_FACTORS = {0.5f, 0.75f, 1f, 1.5f, 2f};
+    /**
+     * Default largest relative throughput error for which a candidate is committed.
+     */
+    public static final float DEFAULT_THROUGHPUT_TOLERANCE = 0.2f;
+    /**
+     * Default largest error in the normalized buffer feature, 1 s, for which a candidate is
+     * committed.
+     */
+    public static final float DEFAULT_BUFFER_TOLERANCE = 0.1f;
+    /**
+     * Default largest relative delay error for which a candidate is committed.
+     */
+    public static final float DEFAULT_DELAY_TOLERANCE = 0.25f;
+
+    private final int featureCount;
+    private final int windowLength;
+    private final int bitrateFeature;
+    private final int throughputFeature;
+    private final int bufferFeature;
+    private final int delayFeature;
+    private final float[] throughputFactors;
+    private final double maxLogThroughputError;
+    private final float bufferTolerance;
+    private final double maxLogDelayError;
+
+    private final ByteBuffer candidateStates;
+    private final FloatBuffer candidateFloats;
+    // The sample each candidate appended, [candidate][feature].
+    private final float[] candidateSamples;
+
+    private int chunkIndex;
+    private int batchSequence;
+
+    /**
+     * @param featureCount         The number of state rows.
+     * @param windowLength         The number of values in each state row.
+     * @param bitrateFeature       The row holding the bitrate the chunk was downloaded at.
+     * @param throughputFeature    The row holding the measured throughput.
+     * @param bufferFeature        The row holding the buffer level.
+     * @param delayFeature         The row holding the download delay.
+     * @param throughputFactors    The throughput outcomes, as factors of the latest throughput.
+     * @param throughputTolerance  The largest relative throughput error for which a candidate is
+     *                             committed.
+     * @param bufferTolerance      The largest error in the buffer feature for which a candidate is
+     *                             committed.
+     * @param delayTolerance       The largest relative delay error for which a candidate is
+     *                             committed.
+     */
+    public PensieveSpeculator(
+            int featureCount,
+            int windowLength,
+            int bitrateFeature,
+            int throughputFeature,
+            int bufferFeature,
+            int delayFeature,
+            float[] throughputFactors,
+            float throughputTolerance,
+            float bufferTolerance,
+            float delayTolerance) {
+        this.featureCount = featureCount;
+        this.windowLength = windowLength;
+        this.bitrateFeature = bitrateFeature;
+        this.throughputFeature = throughputFeature;
+        this.bufferFeature = bufferFeature;
+        this.delayFeature = delayFeature;
+        this.throughputFactors = throughputFactors.clone();
+        this.maxLogThroughputError = Math.log(1 + throughputTolerance);
+        this.bufferTolerance = bufferTolerance;
+        this.maxLogDelayError = Math.log(1 + delayTolerance);
+        int count = throughputFactors.length;
+        this.candidateStates = ByteBuffer.allocateDirect(count * featureCount * windowLength * 4)
+                .order(ByteOrder.nativeOrder());
+        this.candidateFloats = candidateStates.asFloatBuffer();
+        this.candidateSamples = new float[count * featureCount];
+        this.chunkIndex = C.INDEX_UNSET;
+    }
+
+    /**
+     * Returns the number of candidate outcomes.
+     */
+    public int getCandidateCount() {
+        return throughputFactors.length;
+    }
+
+    /**
+     * Returns the throughput of a candidate outcome, as a factor of the latest throughput.
+     */
+    public float getThroughputFactor(int candidate) {
+        return throughputFactors[candidate];
+    }
+
+    /**
+     * Sets the state of a candidate outcome: {@code window} advanced by one sample, as {@link
+     * StateHistory#append(float[])} followed by {@link StateHistory#writeWindow} would, and then the
+     * first {@code overlayLength} values of {@code overlayRow} replaced by {@code overlay}.
+     *
+     * @param candidate     The candidate index.
+     * @param window        The current state, read with absolute gets.
+     * @param sample        The sample the download would append, one value per row.
+     * @param overlayRow    The row partly replaced after the window advanced.
+     * @param overlay       The replacement values.
+     * @param overlayLength The number of values replaced.
+     */
+    public void setCandidate(
+            int candidate,
+            FloatBuffer window,
+            float[] sample,
+            int overlayRow,
+            float[] overlay,
+            int overlayLength) {
+        int stateStart = candidate * featureCount * windowLength;
+        for (int row = 0; row < featureCount; row++) {
+            int rowStart = row * windowLength;
+            for (int col = 0; col < windowLength - 1; col++) {
+                candidateFloats.put(stateStart + rowStart + col, window.get(rowStart + col + 1));
+            }
+            candidateFloats.put(stateStart + rowStart + windowLength - 1, sample[row]);
+            candidateSamples[candidate * featureCount + row] = sample[row];
+        }
+        for (int col = 0; col < overlayLength; col++) {
+            candidateFloats.put(stateStart + overlayRow * windowLength + col, overlay[col]);
+        }
+    }
+
+    /**
+     * Schedules the candidate states set since the last submission.
+     *
+     * @param executor   The executor to run them on.
+     * @param model      The model to run.
+     * @param chunkIndex The index of the chunk whose completion the candidates anticipate.
+     */
+    public void submit(PensieveInferenceExecutor executor, PensieveModel model, int chunkIndex) {
+        this.chunkIndex = chunkIndex;
+        this.batchSequence = executor.submitSpeculative(model, candidateStates, getCandidateCount());
+    }
+
+    /**
+     * Returns the precomputed decision for the measured outcome of a chunk, and records a hit or a
+     * miss with the executor.
+     *
+     * @param executor     The executor the candidates were submitted to.
+     * @param chunkIndex   The index of the completed chunk.
+     * @param actualSample The sample the completed download appended.
+     * @return The decision of the nearest candidate, or {@link C#INDEX_UNSET} if there was no
+     * speculation for this chunk, the chunk was downloaded at another bitrate, no candidate is
+     * within tolerance or its decision is not ready.
+     */
+    public int commit(PensieveInferenceExecutor executor, int chunkIndex, float[] actualSample) {
+        if (this.chunkIndex == C.INDEX_UNSET) {
+            return C.INDEX_UNSET;
+        }
+        int decision = C.INDEX_UNSET;
+        float actualThroughput = actualSample[throughputFeature];
+        // All candidates assume the same bitrate, the one decided for the chunk.
+        if (this.chunkIndex == chunkIndex && actualThroughput > 0
+                && actualSample[bitrateFeature] == candidateSamples[bitrateFeature]) {
+            int nearest = C.INDEX_UNSET;
+            double nearestError = Double.MAX_VALUE;
+            for (int i = 0; i < getCandidateCount(); i++) {
+                float candidateThroughput = candidateSamples[i * featureCount + throughputFeature];
+                double error = Math.abs(Math.log(actualThroughput / candidateThroughput));
+                if (error < nearestError) {
+                    nearest = i;
+                    nearestError = error;
+                }
+            }
+            float bufferError = Math.abs(actualSample[bufferFeature]
+                    - candidateSamples[nearest * featureCount + bufferFeature]);
+            double delayError = Math.abs(Math.log(actualSample[delayFeature]
+                    / candidateSamples[nearest * featureCount + delayFeature]));
+            if (nearestError <= maxLogThroughputError && bufferError <= bufferTolerance
+                    && delayError <= maxLogDelayError) {
+                decision = executor.getSpeculativeDecision(batchSequence, nearest);
+            }
+        }
+        this.chunkIndex = C.INDEX_UNSET;
+        executor.onSpeculation(decision != C.INDEX_UNSET);
+        return decision;
+    }
+}
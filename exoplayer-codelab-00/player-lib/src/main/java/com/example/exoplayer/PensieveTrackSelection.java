@@ -17,10 +17,8 @@
  */
 package com.example.exoplayer;
 
-import android.app.Activity;
 import android.content.Context;
 import android.icu.util.Output;
-import android.widget.TextView;
 
 import androidx.annotation.Nullable;
 
@@ -42,22 +40,15 @@ import com.google.android.exoplayer2.util.Clock;
 import com.google.android.exoplayer2.util.Util;
 
 import org.checkerframework.checker.nullness.compatqual.NullableType;
-import org.tensorflow.lite.Interpreter;
-import org.tensorflow.lite.support.common.FileUtil;
 
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.nio.MappedByteBuffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Scanner;
 
-import static java.lang.Math.abs;
 import static java.lang.Math.max;
 import static java.lang.Math.min;
 
@@ -76,9 +67,17 @@ public class PensieveTrackSelection extends BaseTrackSelection {
         private final BandwidthMeter bandwidthMeter;
         private final String video_name;
         private final Context context;
-        private final TextView infoText;
-        private final OutputStreamWriter outputStreamWriter;
+        private final AbrMetricsPublisher metricsPublisher;
+        private final DecisionTraceRecorder traceRecorder;
         private final Listener listener;
+        private final PensieveModelRegistry modelRegistry;
+        private final PensieveInferenceExecutor inferenceExecutor;
+        @Nullable
+        private final PensieveDecisionCache decisionCache;
+        private final boolean speculativeDecisions;
+        private final VideoMetadataCache metadataCache;
+        @Nullable
+        private final BandwidthEstimator bandwidthEstimator;
         private final int minDurationForQualityIncreaseMs;
         private final int maxDurationForQualityDecreaseMs;
         private final int minDurationToRetainAfterDiscardMs;
@@ -90,13 +89,13 @@ public class PensieveTrackSelection extends BaseTrackSelection {
         /**
          * Creates an adaptive track selection factory with default parameters.
          */
-        public Factory(Context context, String video_name, TextView infoText, OutputStreamWriter outputStreamWriter,
+        public Factory(Context context, String video_name, AbrMetricsPublisher metricsPublisher, DecisionTraceRecorder traceRecorder,
                        Listener listener) {
             this(
                     context,
                     video_name,
-                    infoText,
-                    outputStreamWriter,
+                    metricsPublisher,
+                    traceRecorder,
                     listener,
                     DEFAULT_MIN_DURATION_FOR_QUALITY_INCREASE_MS,
                     DEFAULT_MAX_DURATION_FOR_QUALITY_DECREASE_MS,
@@ -107,20 +106,60 @@ public class PensieveTrackSelection extends BaseTrackSelection {
                     Clock.DEFAULT);
         }
 
+        /**
+         * Creates an adaptive track selection factory with default parameters that evaluates the
+         * Pensieve model as described by {@code inferenceConfig}.
+         */
+        public Factory(Context context, String video_name, AbrMetricsPublisher metricsPublisher, DecisionTraceRecorder traceRecorder,
+                       Listener listener, PensieveInferenceConfig inferenceConfig) {
+            this(context, video_name, metricsPublisher, traceRecorder, listener, inferenceConfig,
+                    /* bandwidthEstimator= */ null);
+        }
+
+        /**
+         * Creates an adaptive track selection factory with default parameters that evaluates the
+         * Pensieve model as described by {@code inferenceConfig} and estimates the bandwidth with
+         * the given estimator.
+         *
+         * @param bandwidthEstimator The estimator fed by the listener's {@link ThroughputSampler},
+         *                           replacing the player's bandwidth meter once it has a sample, or
+         *                           null to use the bandwidth meter only.
+         */
+        public Factory(Context context, String video_name, AbrMetricsPublisher metricsPublisher, DecisionTraceRecorder traceRecorder,
+                       Listener listener, PensieveInferenceConfig inferenceConfig,
+                       @Nullable BandwidthEstimator bandwidthEstimator) {
+            this(
+                    context,
+                    video_name,
+                    metricsPublisher,
+                    traceRecorder,
+                    listener,
+                    /* bandwidthMeter= */ null,
+                    DEFAULT_MIN_DURATION_FOR_QUALITY_INCREASE_MS,
+                    DEFAULT_MAX_DURATION_FOR_QUALITY_DECREASE_MS,
+                    DEFAULT_MIN_DURATION_TO_RETAIN_AFTER_DISCARD_MS,
+                    DEFAULT_BANDWIDTH_FRACTION,
+                    DEFAULT_BUFFERED_FRACTION_TO_LIVE_EDGE_FOR_QUALITY_INCREASE,
+                    DEFAULT_MIN_TIME_BETWEEN_BUFFER_REEVALUTATION_MS,
+                    Clock.DEFAULT,
+                    inferenceConfig,
+                    bandwidthEstimator);
+        }
+
         /**
          * @deprecated Use Factory() instead. Custom bandwidth meter should be directly passed
          * to the player in {@link SimpleExoPlayer.Builder}.
          */
         @Deprecated
         @SuppressWarnings("deprecation")
-        public Factory(Context context, String video_name, TextView infoText,
-                       OutputStreamWriter outputStreamWriter,
+        public Factory(Context context, String video_name, AbrMetricsPublisher metricsPublisher,
+                       DecisionTraceRecorder traceRecorder,
                        Listener listener, BandwidthMeter bandwidthMeter) {
             this(
                     context,
                     video_name,
-                    infoText,
-                    outputStreamWriter,
+                    metricsPublisher,
+                    traceRecorder,
                     listener,
                     bandwidthMeter,
                     DEFAULT_MIN_DURATION_FOR_QUALITY_INCREASE_MS,
@@ -150,8 +189,8 @@ public class PensieveTrackSelection extends BaseTrackSelection {
         public Factory(
                 Context context,
                 String video_name,
-                TextView infoText,
-                OutputStreamWriter outputStreamWriter,
+                AbrMetricsPublisher metricsPublisher,
+                DecisionTraceRecorder traceRecorder,
                 Listener listener,
                 int minDurationForQualityIncreaseMs,
                 int maxDurationForQualityDecreaseMs,
@@ -160,8 +199,8 @@ public class PensieveTrackSelection extends BaseTrackSelection {
             this(
                     context,
                     video_name,
-                    infoText,
-                    outputStreamWriter,
+                    metricsPublisher,
+                    traceRecorder,
                     listener,
                     minDurationForQualityIncreaseMs,
                     maxDurationForQualityDecreaseMs,
@@ -181,8 +220,8 @@ public class PensieveTrackSelection extends BaseTrackSelection {
         public Factory(
                 Context context,
                 String video_name,
-                TextView infoText,
-                OutputStreamWriter outputStreamWriter,
+                AbrMetricsPublisher metricsPublisher,
+                DecisionTraceRecorder traceRecorder,
                 Listener listener,
                 BandwidthMeter bandwidthMeter,
                 int minDurationForQualityIncreaseMs,
@@ -192,8 +231,8 @@ public class PensieveTrackSelection extends BaseTrackSelection {
             this(
                     context,
                     video_name,
-                    infoText,
-                    outputStreamWriter,
+                    metricsPublisher,
+                    traceRecorder,
                     listener,
                     bandwidthMeter,
                     minDurationForQualityIncreaseMs,
@@ -235,8 +274,8 @@ public class PensieveTrackSelection extends BaseTrackSelection {
         public Factory(
                 Context context,
                 String video_name,
-                TextView infoText,
-                OutputStreamWriter outputStreamWriter,
+                AbrMetricsPublisher metricsPublisher,
+                DecisionTraceRecorder traceRecorder,
                 Listener listener,
                 int minDurationForQualityIncreaseMs,
                 int maxDurationForQualityDecreaseMs,
@@ -248,8 +287,8 @@ public class PensieveTrackSelection extends BaseTrackSelection {
             this(
                     context,
                     video_name,
-                    infoText,
-                    outputStreamWriter,
+                    metricsPublisher,
+                    traceRecorder,
                     listener,
                     /* bandwidthMeter= */ null,
                     minDurationForQualityIncreaseMs,
@@ -270,8 +309,8 @@ public class PensieveTrackSelection extends BaseTrackSelection {
         public Factory(
                 Context context,
                 String video_name,
-                TextView infoText,
-                OutputStreamWriter outputStreamWriter,
+                AbrMetricsPublisher metricsPublisher,
+                DecisionTraceRecorder traceRecorder,
                 Listener listener,
                 @Nullable BandwidthMeter bandwidthMeter,
                 int minDurationForQualityIncreaseMs,
@@ -281,11 +320,56 @@ public class PensieveTrackSelection extends BaseTrackSelection {
                 float bufferedFractionToLiveEdgeForQualityIncrease,
                 long minTimeBetweenBufferReevaluationMs,
                 Clock clock) {
+            this(
+                    context,
+                    video_name,
+                    metricsPublisher,
+                    traceRecorder,
+                    listener,
+                    bandwidthMeter,
+                    minDurationForQualityIncreaseMs,
+                    maxDurationForQualityDecreaseMs,
+                    minDurationToRetainAfterDiscardMs,
+                    bandwidthFraction,
+                    bufferedFractionToLiveEdgeForQualityIncrease,
+                    minTimeBetweenBufferReevaluationMs,
+                    clock,
+                    PensieveInferenceConfig.DEFAULT,
+                    /* bandwidthEstimator= */ null);
+        }
+
+        private Factory(
+                Context context,
+                String video_name,
+                AbrMetricsPublisher metricsPublisher,
+                DecisionTraceRecorder traceRecorder,
+                Listener listener,
+                @Nullable BandwidthMeter bandwidthMeter,
+                int minDurationForQualityIncreaseMs,
+                int maxDurationForQualityDecreaseMs,
+                int minDurationToRetainAfterDiscardMs,
+                float bandwidthFraction,
+                float bufferedFractionToLiveEdgeForQualityIncrease,
+                long minTimeBetweenBufferReevaluationMs,
+                Clock clock,
+                PensieveInferenceConfig inferenceConfig,
+                @Nullable BandwidthEstimator bandwidthEstimator) {
             this.context = context;
             this.video_name = video_name;
-            this.infoText = infoText;
-            this.outputStreamWriter = outputStreamWriter;
+            this.metricsPublisher = metricsPublisher;
+            this.traceRecorder = traceRecorder;
             this.listener = listener;
+            this.modelRegistry = new PensieveModelRegistry(context, inferenceConfig);
+            this.inferenceExecutor =
+                    new PensieveInferenceExecutor(S_INFO * S_LEN, A_DIM, inferenceConfig.deadlineMs);
+            this.decisionCache = inferenceConfig.createDecisionCache(S_LEN);
+            this.speculativeDecisions = inferenceConfig.speculativeDecisions;
+            this.metadataCache = VideoMetadataCache.getDefault();
+            this.bandwidthEstimator = bandwidthEstimator;
+            if (bandwidthEstimator != null) {
+                bandwidthEstimator.reset();
+                listener.getThroughputSampler().setEstimator(bandwidthEstimator);
+            }
             this.bandwidthMeter = bandwidthMeter;
             this.minDurationForQualityIncreaseMs = minDurationForQualityIncreaseMs;
             this.maxDurationForQualityDecreaseMs = maxDurationForQualityDecreaseMs;
@@ -297,6 +381,54 @@ public class PensieveTrackSelection extends BaseTrackSelection {
             this.clock = clock;
         }
 
+        /**
+         * Releases the Pensieve models shared by the track selections created by this factory.
+         * Must be called once the player using this factory has been released.
+         */
+        public void release() {
+            inferenceExecutor.release();
+            modelRegistry.release();
+        }
+
+        /**
+         * Returns the executor running Pensieve inferences, which exposes decision latency and
+         * fallback counts.
+         */
+        public PensieveInferenceExecutor getInferenceExecutor() {
+            return inferenceExecutor;
+        }
+
+        /**
+         * Returns the cache of Pensieve decisions, which exposes hit and miss counts, or null if the
+         * {@link PensieveInferenceConfig} does not enable one.
+         */
+        @Nullable
+        public PensieveDecisionCache getDecisionCache() {
+            return decisionCache;
+        }
+
+        /**
+         * Returns the cache of video metadata shared by all selections, which exposes its hit rate
+         * and memory use.
+         */
+        public VideoMetadataCache getMetadataCache() {
+            return metadataCache;
+        }
+
+        private static PensieveSpeculator createSpeculator() {
+            return new PensieveSpeculator(
+                    S_INFO,
+                    S_LEN,
+                    /* bitrateFeature= */ 0,
+                    /* throughputFeature= */ 2,
+                    /* bufferFeature= */ 1,
+                    /* delayFeature= */ 3,
+                    PensieveSpeculator.DEFAULT_THROUGHPUT_FACTORS,
+                    PensieveSpeculator.DEFAULT_THROUGHPUT_TOLERANCE,
+                    PensieveSpeculator.DEFAULT_BUFFER_TOLERANCE,
+                    PensieveSpeculator.DEFAULT_DELAY_TOLERANCE);
+        }
+
         @Override
         public final @NullableType TrackSelection[] createTrackSelections(
                 @NullableType Definition[] definitions, BandwidthMeter bandwidthMeter) {
@@ -326,9 +458,14 @@ public class PensieveTrackSelection extends BaseTrackSelection {
                             createAdaptiveTrackSelection(
                                     this.context,
                                     this.video_name,
-                                    this.infoText,
-                                    this.outputStreamWriter,
+                                    this.metricsPublisher,
+                                    this.traceRecorder,
                                     this.listener,
+                                    this.modelRegistry,
+                                    this.inferenceExecutor,
+                                    this.decisionCache,
+                                    this.speculativeDecisions ? createSpeculator() : null,
+                                    this.metadataCache,
                                     definition.group,
                                     bandwidthMeter,
                                     definition.tracks,
@@ -362,6 +499,13 @@ public class PensieveTrackSelection extends BaseTrackSelection {
          *
          *
          * @param video_name               Name of video
+         * @param modelRegistry            The {@link PensieveModelRegistry} shared by all selections.
+         * @param inferenceExecutor        The {@link PensieveInferenceExecutor} shared by all selections.
+         * @param decisionCache            The {@link PensieveDecisionCache} shared by all selections, or
+         *                                 null if decisions are not cached.
+         * @param speculator               The {@link PensieveSpeculator} of the new selection, or null if
+         *                                 decisions are not precomputed.
+         * @param metadataCache            The {@link VideoMetadataCache} shared by all selections.
          * @param group                    The {@link TrackGroup}.
          * @param bandwidthMeter           A {@link BandwidthMeter} which can be used to select tracks.
          * @param tracks                   The indices of the selected tracks in the track group.
@@ -372,22 +516,36 @@ public class PensieveTrackSelection extends BaseTrackSelection {
         protected PensieveTrackSelection createAdaptiveTrackSelection(
                 Context context,
                 String video_name,
-                TextView infoText,
-                OutputStreamWriter outputStreamWriter,
+                AbrMetricsPublisher metricsPublisher,
+                DecisionTraceRecorder traceRecorder,
                 Listener listener,
+                PensieveModelRegistry modelRegistry,
+                PensieveInferenceExecutor inferenceExecutor,
+                @Nullable PensieveDecisionCache decisionCache,
+                @Nullable PensieveSpeculator speculator,
+                VideoMetadataCache metadataCache,
                 TrackGroup group,
                 BandwidthMeter bandwidthMeter,
                 int[] tracks,
                 int totalFixedTrackBandwidth) {
+            BandwidthProvider bandwidthProvider = bandwidthEstimator == null
+                    ? new DefaultBandwidthProvider(bandwidthMeter, bandwidthFraction, totalFixedTrackBandwidth)
+                    : new EstimatorBandwidthProvider(listener.getThroughputSampler(), bandwidthMeter,
+                            bandwidthFraction, totalFixedTrackBandwidth);
             return new PensieveTrackSelection(
                     context,
                     video_name,
-                    infoText,
-                    outputStreamWriter,
+                    metricsPublisher,
+                    traceRecorder,
                     listener,
+                    modelRegistry,
+                    inferenceExecutor,
+                    decisionCache,
+                    speculator,
+                    metadataCache,
                     group,
                     tracks,
-                    new DefaultBandwidthProvider(bandwidthMeter, bandwidthFraction, totalFixedTrackBandwidth),
+                    bandwidthProvider,
                     minDurationForQualityIncreaseMs,
                     maxDurationForQualityDecreaseMs,
                     minDurationToRetainAfterDiscardMs,
@@ -403,6 +561,7 @@ public class PensieveTrackSelection extends BaseTrackSelection {
     public static final float DEFAULT_BANDWIDTH_FRACTION = 0.7f;
     public static final float DEFAULT_BUFFERED_FRACTION_TO_LIVE_EDGE_FOR_QUALITY_INCREASE = 0.75f;
     public static final long DEFAULT_MIN_TIME_BETWEEN_BUFFER_REEVALUTATION_MS = 500;
+    public static final long DEFAULT_INFERENCE_DEADLINE_MS = 10;
 
     private final Context context;
     private final BandwidthProvider bandwidthProvider;
@@ -421,42 +580,69 @@ public class PensieveTrackSelection extends BaseTrackSelection {
     private static final int S_INFO = 6;
     private static final int S_LEN = 8;
     private static final int A_DIM = 6;
+    // Samples kept per feature; may exceed S_LEN to evaluate models with longer windows
+    private static final int STATE_HISTORY_CAPACITY = S_LEN;
 //    private static final Integer[] VIDEO_BIT_RATE = new Integer[]{300, 750, 1200, 1850, 2850, 4300};
     private static final double BUFFER_NORM_FACTOR = 10.0;
     private static final double M_IN_K = 1000.0;
-    private static final double REBUF_PENALTY = 4.3;
-    private static final double SMOOTH_PENALTY = 1.0;
+    // Buffer-based fallback used when an inference misses its deadline
+    private static final double FALLBACK_RESERVOIR_S = 5.0;
+    private static final double FALLBACK_CUSHION_S = 10.0;
+    // Chunks ahead of the queue whose sizes are read from the chunk iterators: the next chunk, and
+    // the one after it for speculative decisions
+    private static final int SEGMENT_SIZE_LOOKAHEAD = 2;
     // TODO: Should shift to constants file
-    private static final int QOE_UNKNOWN = 0;
-    private static final int QOE_LINEAR = 1;
-    private static final int QOE_LOG = 2;
-    private static final int QOE_HD = 3;
     private static final int DEFAULT_BITRATE = 1;
 //    private static final int totalChunks = 48;
 
-    private Double[] VIDEO_BIT_RATE;
+    private double[] VIDEO_BIT_RATE;
+    private double maxBitrate;
     private int CHUNK_TIL_VIDEO_END_CAP;
     private final String video_name;
-    private final TextView infoText;
-    private final String initialText;
+    private final AbrMetricsPublisher metricsPublisher;
     private int totalChunks;
 
-    private OutputStreamWriter outputStreamWriter;
-    private float[][][] model_input;
-    private float[][] model_output;
+    private DecisionTraceRecorder traceRecorder;
+    // Model state, row-major [S_INFO][S_LEN], in a buffer the interpreter reads without copying
+    private final ByteBuffer modelInput;
+    private final FloatBuffer modelInputFloats;
+    // Per-chunk observations, appended once per decision and laid out into modelInput as a window
+    private final StateHistory stateHistory;
+    private final float[] stateSample;
     private long previousSelectTimeMs;
-    private long previousBufferedDuration;
+    // Sequence number of the latest chunk load a decision was made for
+    private long processedLoadSequence;
+    // Session rebuffering time at the previous decision
+    private long previousRebufferMs;
     private int previousBitrate;
     private int chunksProcessedCount;
-    private int qoeType;
-    private ArrayList<Double> qoe;
-    private double totalQoe = 0;
+    private final QoeAccumulator qoe;
     private double totalBitrate = 0;
-    private HashMap<Integer, int[]> chunksizes;
+    @Nullable
+    private final ChunkSizeIndex chunkSizeIndex;
+    private final SegmentSizeProvider segmentSizes;
+    // MediaChunk.chunkIndex minus the index of the same chunk in chunksProcessedCount terms
+    private long chunkIndexOffset;
+    private boolean chunkIndexOffsetKnown;
 
     private Listener listener;
+    @Nullable
+    private PensieveModel model;
+    private final PensieveInferenceExecutor inferenceExecutor;
+    @Nullable
+    private final PensieveDecisionCache decisionCache;
+    @Nullable
+    private final PensieveSpeculator speculator;
+    private final float[] candidateSample;
+    private final float[] candidateChunkSizes;
+    private final int[] nextChunkSizes;
 
     /**
+     * @param modelRegistry  Provides the shared Pensieve model.
+     * @param inferenceExecutor Runs inferences off the playback thread.
+     * @param decisionCache  Reuses decisions for nearly identical states, or null.
+     * @param speculator     Precomputes the next decision while a chunk downloads, or null.
+     * @param metadataCache  Provides the bitrate ladder, chunk count and chunk sizes of the video.
      * @param group          The {@link TrackGroup}.
      * @param tracks         The indices of the selected tracks within the {@link TrackGroup}. Must not be
      *                       empty. May be in any order.
@@ -464,17 +650,27 @@ public class PensieveTrackSelection extends BaseTrackSelection {
      */
     public PensieveTrackSelection(Context context,
                                   String video_name,
-                                  TextView infoText,
-                                  OutputStreamWriter outputStreamWriter,
+                                  AbrMetricsPublisher metricsPublisher,
+                                  DecisionTraceRecorder traceRecorder,
                                   Listener listener,
+                                  PensieveModelRegistry modelRegistry,
+                                  PensieveInferenceExecutor inferenceExecutor,
+                                  @Nullable PensieveDecisionCache decisionCache,
+                                  @Nullable PensieveSpeculator speculator,
+                                  VideoMetadataCache metadataCache,
                                   TrackGroup group, int[] tracks,
                                   BandwidthMeter bandwidthMeter) {
         this(
                 context,
                 video_name,
-                infoText,
-                outputStreamWriter,
+                metricsPublisher,
+                traceRecorder,
                 listener,
+                modelRegistry,
+                inferenceExecutor,
+                decisionCache,
+                speculator,
+                metadataCache,
                 group,
                 tracks,
                 bandwidthMeter,
@@ -489,6 +685,11 @@ public class PensieveTrackSelection extends BaseTrackSelection {
     }
 
     /**
+     * @param modelRegistry                                Provides the shared Pensieve model.
+     * @param inferenceExecutor                            Runs inferences off the playback thread.
+     * @param decisionCache                                Reuses decisions for nearly identical states, or null.
+     * @param speculator                                   Precomputes the next decision while a chunk downloads, or null.
+     * @param metadataCache                                Provides the bitrate ladder, chunk count and chunk sizes of the video.
      * @param group                                        The {@link TrackGroup}.
      * @param tracks                                       The indices of the selected tracks within the {@link TrackGroup}. Must not be
      *                                                     empty. May be in any order.
@@ -520,9 +721,14 @@ public class PensieveTrackSelection extends BaseTrackSelection {
     public PensieveTrackSelection(
             Context context,
             String video_name,
-            TextView infoText,
-            OutputStreamWriter outputStreamWriter,
+            AbrMetricsPublisher metricsPublisher,
+            DecisionTraceRecorder traceRecorder,
             Listener listener,
+            PensieveModelRegistry modelRegistry,
+            PensieveInferenceExecutor inferenceExecutor,
+            @Nullable PensieveDecisionCache decisionCache,
+            @Nullable PensieveSpeculator speculator,
+            VideoMetadataCache metadataCache,
             TrackGroup group,
             int[] tracks,
             BandwidthMeter bandwidthMeter,
@@ -537,9 +743,14 @@ public class PensieveTrackSelection extends BaseTrackSelection {
         this(
                 context,
                 video_name,
-                infoText,
-                outputStreamWriter,
+                metricsPublisher,
+                traceRecorder,
                 listener,
+                modelRegistry,
+                inferenceExecutor,
+                decisionCache,
+                speculator,
+                metadataCache,
                 group,
                 tracks,
                 new DefaultBandwidthProvider(bandwidthMeter, bandwidthFraction, reservedBandwidth),
@@ -554,9 +765,14 @@ public class PensieveTrackSelection extends BaseTrackSelection {
     private PensieveTrackSelection(
             Context context,
             String video_name,
-            TextView infoText,
-            OutputStreamWriter outputStreamWriter,
+            AbrMetricsPublisher metricsPublisher,
+            DecisionTraceRecorder traceRecorder,
             Listener listener,
+            PensieveModelRegistry modelRegistry,
+            PensieveInferenceExecutor inferenceExecutor,
+            @Nullable PensieveDecisionCache decisionCache,
+            @Nullable PensieveSpeculator speculator,
+            VideoMetadataCache metadataCache,
             TrackGroup group,
             int[] tracks,
             BandwidthProvider bandwidthProvider,
@@ -569,8 +785,7 @@ public class PensieveTrackSelection extends BaseTrackSelection {
         super(group, tracks);
         this.context = context;
         this.video_name = video_name;
-        this.infoText = infoText;
-        this.initialText = infoText.getText().toString();
+        this.metricsPublisher = metricsPublisher;
         this.bandwidthProvider = bandwidthProvider;
         this.minDurationForQualityIncreaseUs = minDurationForQualityIncreaseMs * 1000L;
         this.maxDurationForQualityDecreaseUs = maxDurationForQualityDecreaseMs * 1000L;
@@ -582,61 +797,52 @@ public class PensieveTrackSelection extends BaseTrackSelection {
         playbackSpeed = 1f;
         reason = C.SELECTION_REASON_UNKNOWN;
         lastBufferEvaluationMs = C.TIME_UNSET;
-        this.model_input = new float[1][S_INFO][S_LEN];
-        this.model_output = new float[1][A_DIM];
-        this.previousBufferedDuration = 0;
+        this.modelInput = ByteBuffer.allocateDirect(S_INFO * S_LEN * 4).order(ByteOrder.nativeOrder());
+        this.modelInputFloats = modelInput.asFloatBuffer();
+        this.stateHistory = new StateHistory(S_INFO, STATE_HISTORY_CAPACITY);
+        this.stateSample = new float[S_INFO];
+        this.processedLoadSequence = listener.getLastChunkLoad().sequence;
+        this.previousRebufferMs = listener.getRebufferTracker().getTotalRebufferMs(clock.elapsedRealtime());
         this.previousBitrate = DEFAULT_BITRATE;
         this.chunksProcessedCount = 0;
-        this.qoeType = QOE_LINEAR;
-        this.qoe = new ArrayList<>();
-        this.chunksizes = new HashMap<>();
         this.previousSelectTimeMs = clock.elapsedRealtime();
-        switch (video_name){
-            case "envivio":
-                this.totalChunks = 48;
-                this.VIDEO_BIT_RATE = new Double[]{300.0, 750.0, 1200.0, 1850.0, 2850.0, 4300.0};
-                break;
-            case "tears_of_steel":
-                this.totalChunks = 244;
-                this.VIDEO_BIT_RATE = new Double[]{686.685,686.685,1116.150,1929.169,2362.822,2470.094};
-                break;
-            case "redbull_2sec":
-                this.totalChunks = 199;
-                this.VIDEO_BIT_RATE = new Double[]{300.795,700.051,1179.845,1993.730,2995.671,3992.758};
-                break;
-            case "bbb_30fps":
-                this.totalChunks = 158;
-                this.VIDEO_BIT_RATE = new Double[]{507.246,1013.310,1254.758,1883.700,3134.488,4952.892};
-                break;
-            case "elephants_dream":
-                this.totalChunks = 652;
-                this.VIDEO_BIT_RATE = new Double[]{344.976, 808.384, 1273.596, 2186.563, 3127.680, 4516.590};
-                break;
-            case "forest":
-                this.totalChunks = 453;
-                this.VIDEO_BIT_RATE = new Double[]{279.652, 836.887, 1282.108, 1779.588, 2568.145, 3894.863};
-                break;
-
-        }
+        VideoMetadata metadata = metadataCache.get(context, video_name);
+        this.totalChunks = metadata.chunkCount;
+        this.VIDEO_BIT_RATE = VideoCatalog.resolveBitrateLadderKbps(metadata.bitrateLadderKbps, this);
+        this.maxBitrate = maxOf(this.VIDEO_BIT_RATE);
+        this.qoe = new QoeAccumulator(QoeAccumulator.QOE_LINEAR, this.VIDEO_BIT_RATE);
         this.CHUNK_TIL_VIDEO_END_CAP = this.totalChunks;
-        for (int i = 0; i < VIDEO_BIT_RATE.length; i++) {
-            int[] chunksizes_ = readChunkSizes(video_name+"/video_size_" + i);
-            System.out.println("Constructor, quality " + i + " first chunk " + chunksizes_[0]);
-            this.chunksizes.put(i, chunksizes_);
-        }
-        this.outputStreamWriter = outputStreamWriter;
+        this.chunkSizeIndex = metadata.chunkSizes;
+        this.segmentSizes = new SegmentSizeProvider(tracks.length);
+        this.traceRecorder = traceRecorder;
         this.listener = listener;
+        listener.getAbandonmentEngine().setTracks(this);
+        this.inferenceExecutor = inferenceExecutor;
+        this.decisionCache = decisionCache;
+        this.speculator = speculator;
+        this.candidateSample = new float[S_INFO];
+        this.candidateChunkSizes = new float[A_DIM];
+        this.nextChunkSizes = new int[A_DIM];
+        try {
+            this.model = modelRegistry.acquire();
+        } catch (IOException e) {
+            System.out.println("Could not load Pensieve model");
+            e.printStackTrace();
+        }
     }
 
     /**
      * Sets checkpoints to determine the allocation bandwidth based on the total bandwidth.
+     * Has no effect on a selection whose bandwidth comes from a {@link BandwidthEstimator}.
      *
      * @param allocationCheckpoints List of checkpoints. Each element must be a long[2], with [0]
      *                              being the total bandwidth and [1] being the allocated bandwidth.
      */
     public void experimental_setBandwidthAllocationCheckpoints(long[][] allocationCheckpoints) {
-        ((DefaultBandwidthProvider) bandwidthProvider)
-                .experimental_setBandwidthAllocationCheckpoints(allocationCheckpoints);
+        if (bandwidthProvider instanceof DefaultBandwidthProvider) {
+            ((DefaultBandwidthProvider) bandwidthProvider)
+                    .experimental_setBandwidthAllocationCheckpoints(allocationCheckpoints);
+        }
     }
 
     @Override
@@ -656,87 +862,76 @@ public class PensieveTrackSelection extends BaseTrackSelection {
             long availableDurationUs,
             List<? extends MediaChunk> queue,
             MediaChunkIterator[] mediaChunkIterators) {
+        DownloadAbandonmentEngine abandonmentEngine = this.listener.getAbandonmentEngine();
+        abandonmentEngine.onChunkRequested(bufferedDurationUs);
+        if(reason != C.SELECTION_REASON_UNKNOWN) {
+            // A chunk abandoned mid-download is requested again at the quality the engine picked.
+            int abandonedTrackIndex = abandonmentEngine.pollAbandonedTrack();
+            if(abandonedTrackIndex != C.INDEX_UNSET && abandonedTrackIndex > selectedIndex){
+                AbrTrace.info(AbrTrace.EVENT_SELECTED_INDEX, abandonedTrackIndex, 0);
+                selectedIndex = abandonedTrackIndex;
+                reason = C.SELECTION_REASON_ADAPTIVE;
+                return;
+            }
+        }
 
         // Pensieve start
         if(reason == C.SELECTION_REASON_UNKNOWN){
             reason = C.SELECTION_REASON_INITIAL;
             selectedIndex = this.length - DEFAULT_BITRATE - 1;
-            System.out.println("Making initial selection: "+selectedIndex);
+            AbrTrace.info(AbrTrace.EVENT_INITIAL_SELECTION, selectedIndex, 0);
         }
-        else if (this.listener.getDataType() != C.DATA_TYPE_MEDIA){
+        else if (this.model == null) {
             return;
         }
         else {
-            long delay = this.listener.getChunkLoadDuration();
-            System.out.println("Delay: " + delay);
+            // One decision per completed chunk: read the record once so every value comes from the
+            // same load, and skip it if it was already decided on.
+            ChunkLoadRecord chunkLoad = this.listener.getLastChunkLoad();
+            if (!chunkLoad.isNewerThan(this.processedLoadSequence)) {
+                return;
+            }
+            this.processedLoadSequence = chunkLoad.sequence;
+            long delay = chunkLoad.loadDurationMs;
+            AbrTrace.debug(AbrTrace.EVENT_CHUNK_DELAY_MS, delay, 0);
+            updateSegmentSizes(queue, mediaChunkIterators);
             try {
-                MappedByteBuffer tfliteModel = FileUtil.loadMappedFile(this.context, "pretrained_model.tflite");
-                Interpreter interpreter = new Interpreter(tfliteModel, new Interpreter.Options());
-                for (int i = 0; i < S_INFO; i++) {
-                    float zero_id_value = this.model_input[0][i][0];
-                    System.arraycopy(this.model_input[0][i], 1, this.model_input[0][i], 0, S_LEN - 1);
-                    this.model_input[0][i][S_LEN - 1] = zero_id_value;
-                }
-                int currentSelectedIndex = this.length - selectedIndex - 1;
-                System.out.println("Current selection: " + currentSelectedIndex);
-                this.model_input[0][0][S_LEN - 1] = (VIDEO_BIT_RATE[currentSelectedIndex]).floatValue() / Collections.max(Arrays.asList(VIDEO_BIT_RATE)).floatValue();
-                this.model_input[0][1][S_LEN - 1] = ((float) bufferedDurationUs / 1000000) / (float) BUFFER_NORM_FACTOR;
-                this.model_input[0][2][S_LEN - 1] = (float) this.chunksizes.get(currentSelectedIndex)[this.chunksProcessedCount] / (float) delay / (float) M_IN_K;
-
-                this.model_input[0][3][S_LEN - 1] = ((float) delay / (float) M_IN_K) / (float) BUFFER_NORM_FACTOR;
-                // TODO: Check for better way to get chunk sizes
-                // Currently we are loading chunk sized from prebuilt info files for the videos
-                // in consideration. For future use, better to modify it to take size directly from
-                // manifest files if possible.
-                int[] nextChunkSizes = getNextChunkSizes();
-                for (int i = 0; i < A_DIM; i++) {
-                    this.model_input[0][4][i] = (float) nextChunkSizes[i] / (float) M_IN_K / (float) M_IN_K;
-                }
-                this.model_input[0][5][S_LEN - 1] = min(totalChunks - this.chunksProcessedCount, CHUNK_TIL_VIDEO_END_CAP) / (float) CHUNK_TIL_VIDEO_END_CAP;
-                this.outputStreamWriter.write("-----Chunk number: " + this.chunksProcessedCount + "-----\nState:\n");
-                for (int i = 0; i < S_INFO; i++) {
-                    for (int j = 0; j < S_LEN; j++) {
-                        this.outputStreamWriter.write("" + this.model_input[0][i][j] + "\t");
-                    }
-                    this.outputStreamWriter.write("\n");
-                }
-                this.chunksProcessedCount++;
-                interpreter.run(this.model_input, this.model_output);
-                int predictedBitrateIndex = 0;
-                for (int i = 0; i < A_DIM; i++) {
-                    if (this.model_output[0][i] > this.model_output[0][predictedBitrateIndex]) {
-                        predictedBitrateIndex = i;
-                    }
+                int currentSelectedIndex = getDownloadedBitrateIndex(queue);
+                AbrTrace.debug(AbrTrace.EVENT_CURRENT_SELECTION, currentSelectedIndex, 0);
+                int chunkIndex = this.chunksProcessedCount;
+                int predictedBitrateIndex;
+                if (this.length == A_DIM) {
+                    updateModelInput(currentSelectedIndex, bufferedDurationUs, chunkLoad);
+                    this.chunksProcessedCount++;
+                    predictedBitrateIndex = decide(bufferedDurationUs);
+                    speculateNextDecision(predictedBitrateIndex, bufferedDurationUs, queue);
+                } else {
+                    // The model has one output per quality of the ladder it was trained on.
+                    this.chunksProcessedCount++;
+                    predictedBitrateIndex = getBufferBasedBitrateIndex(bufferedDurationUs);
+                    AbrTrace.warn(AbrTrace.EVENT_INFERENCE_FALLBACK, predictedBitrateIndex, bufferedDurationUs / 1000000.0);
                 }
-                this.outputStreamWriter.write("Predicted bitrate index: " + predictedBitrateIndex + " value: " + this.VIDEO_BIT_RATE[predictedBitrateIndex] + "\n");
-                if (predictedBitrateIndex != currentSelectedIndex) {
-                    selectedIndex = max(this.length - predictedBitrateIndex - 1, 0);
-                    System.out.println("selectedIndex " + selectedIndex);
+                int predictedSelectedIndex = max(this.length - predictedBitrateIndex - 1, 0);
+                if (predictedSelectedIndex != selectedIndex) {
+                    selectedIndex = predictedSelectedIndex;
+                    AbrTrace.info(AbrTrace.EVENT_SELECTED_INDEX, selectedIndex, 0);
                     reason = C.SELECTION_REASON_ADAPTIVE;
                 }
-                double rebuf = max(delay - (double) this.previousBufferedDuration / 1000.0, 0.0) / 1000.0;
-                this.outputStreamWriter.write("Rebuffering time: " + rebuf + "\n");
-                System.out.println("Rebuffering time: " + rebuf);
-                if (this.qoeType == QOE_LINEAR) {
-                    double reward = (double) VIDEO_BIT_RATE[currentSelectedIndex] / M_IN_K
-                            - REBUF_PENALTY * rebuf - SMOOTH_PENALTY * abs(VIDEO_BIT_RATE[currentSelectedIndex]
-                            - VIDEO_BIT_RATE[previousBitrate]) / M_IN_K;
-                    System.out.println("reward: " + reward);
-                    qoe.add(reward);
-                    totalQoe += reward;
+                long rebufferMs = this.listener.getRebufferTracker().getTotalRebufferMs(clock.elapsedRealtime());
+                double rebuf = (rebufferMs - this.previousRebufferMs) / 1000.0;
+                this.previousRebufferMs = rebufferMs;
+                AbrTrace.info(AbrTrace.EVENT_REBUFFER_S, chunkIndex, rebuf);
+                double reward;
+                synchronized (qoe) {
+                    reward = qoe.add(currentSelectedIndex, previousBitrate, rebuf);
                 }
-                this.outputStreamWriter.write("Total QOE: " + totalQoe + "\n");
+                AbrTrace.info(AbrTrace.EVENT_REWARD, chunkIndex, reward);
                 this.totalBitrate += this.VIDEO_BIT_RATE[predictedBitrateIndex];
-                this.outputStreamWriter.write("Total Bitrate: " + this.totalBitrate + "\n");
-                String info_text = this.initialText + "\n" + "Qoe: " + totalQoe + "\n" + "Bitrate: " + this.totalBitrate;
+                this.traceRecorder.recordPensieve(chunkIndex, this.modelInputFloats, S_INFO * S_LEN,
+                        predictedBitrateIndex, this.VIDEO_BIT_RATE[predictedBitrateIndex], rebuf,
+                        qoe.getTotal(), this.totalBitrate);
                 this.previousBitrate = currentSelectedIndex;
-                this.previousBufferedDuration = bufferedDurationUs;
-                TextView e = (TextView) ((Activity) this.context).findViewById(R.id.info_text);
-                System.out.println("text in e: " + e.getText());
-                e.setText("");
-                e.setText(info_text);
-                interpreter.close();
-
+                this.metricsPublisher.publish(qoe.getTotal(), this.totalBitrate);
             } catch (Exception e) {
                 System.out.println("Exception occurred :'( ");
                 e.printStackTrace();
@@ -744,6 +939,53 @@ public class PensieveTrackSelection extends BaseTrackSelection {
         }
     }
 
+    /**
+     * Appends the observations of the chunk just downloaded to the state history and lays the
+     * window and the next chunk sizes out into {@link #modelInput}.
+     *
+     * @param currentSelectedIndex The index into {@code VIDEO_BIT_RATE} the chunk was downloaded at.
+     * @param bufferedDurationUs   The current buffered duration.
+     * @param chunkLoad            The load of the chunk.
+     */
+    private void updateModelInput(
+            int currentSelectedIndex, long bufferedDurationUs, ChunkLoadRecord chunkLoad) {
+        long delay = chunkLoad.loadDurationMs;
+        this.stateSample[0] = (float) (VIDEO_BIT_RATE[currentSelectedIndex] / this.maxBitrate);
+        this.stateSample[1] = ((float) bufferedDurationUs / 1000000) / (float) BUFFER_NORM_FACTOR;
+        if (chunkLoad.throughputBytesPerS > 0) {
+            // Transfer rate of the chunk without its request latency, in MB/s as below
+            this.stateSample[2] = (float) (chunkLoad.throughputBytesPerS / M_IN_K / M_IN_K);
+            AbrTrace.debug(AbrTrace.EVENT_TRANSFER_TTFB_MS, chunkLoad.bytesLoaded, chunkLoad.ttfbMs);
+        } else {
+            this.stateSample[2] = delay <= 0 ? 0f : (float) chunkLoad.bytesLoaded / (float) delay / (float) M_IN_K;
+        }
+
+        this.stateSample[3] = ((float) delay / (float) M_IN_K) / (float) BUFFER_NORM_FACTOR;
+        // Pensieve rolls the whole state before writing the next chunk sizes into the start of
+        // row 4, so the newest cell of that row carries the previous first next chunk size.
+        this.stateSample[4] = this.modelInputFloats.get(stateIndex(4, 0));
+        // Until the chunks of a video missing from the catalog are counted, none is known to be
+        // near the end.
+        this.stateSample[5] = totalChunks == 0
+                ? 1f
+                : min(totalChunks - this.chunksProcessedCount, CHUNK_TIL_VIDEO_END_CAP) / (float) CHUNK_TIL_VIDEO_END_CAP;
+        this.stateHistory.append(this.stateSample);
+        this.stateHistory.writeWindow(this.modelInputFloats, 0, S_LEN);
+        updateNextChunkSizes();
+        for (int i = 0; i < A_DIM; i++) {
+            this.modelInputFloats.put(stateIndex(4, i), (float) this.nextChunkSizes[i] / (float) M_IN_K / (float) M_IN_K);
+        }
+    }
+
+    /**
+     * Returns the QoE statistics of the decisions made so far. May be called from any thread.
+     */
+    public QoeAccumulator.Snapshot getQoeSnapshot() {
+        synchronized (qoe) {
+            return qoe.snapshot();
+        }
+    }
+
     @Override
     public int getSelectedIndex() {
         return selectedIndex;
@@ -872,17 +1114,6 @@ public class PensieveTrackSelection extends BaseTrackSelection {
                 : minDurationForQualityIncreaseUs;
     }
 
-    /**
-     * Provides the allocated bandwidth.
-     */
-    private interface BandwidthProvider {
-
-        /**
-         * Returns the allocated bitrate.
-         */
-        long getAllocatedBandwidth();
-    }
-
     private static final class DefaultBandwidthProvider implements BandwidthProvider {
 
         private final BandwidthMeter bandwidthMeter;
@@ -1048,54 +1279,218 @@ public class PensieveTrackSelection extends BaseTrackSelection {
     /**
      * Calculate total number of chunks in video
      *
-     * @param iterator a media chunk iterator
-     * @return
+     * @param iterator a media chunk iterator, reset before returning
+     * @return the number of chunks the iterator has left
      */
     private int evaluateTotalChunks(MediaChunkIterator iterator) {
         int chunkCount = 0;
-        while (!iterator.isEnded()) {
+        while (iterator.next()) {
             chunkCount++;
-            iterator.next();
         }
         iterator.reset();
-        iterator.next();
         return chunkCount;
     }
 
     /**
-     * Calculate lengths of next chunk for each track.
+     * Returns the largest value of an array.
+     */
+    private static double maxOf(double[] values) {
+        double max = values[0];
+        for (int i = 1; i < values.length; i++) {
+            max = Math.max(max, values[i]);
+        }
+        return max;
+    }
+
+    /**
+     * Returns the position of a state cell in the flattened model input.
+     */
+    private static int stateIndex(int row, int column) {
+        return row * S_LEN + column;
+    }
+
+    /**
+     * Returns the Pensieve decision for the state in {@link #modelInput}: precomputed while the chunk
+     * downloaded if a speculated outcome is close enough, from the decision cache if a nearly
+     * identical state was decided before, otherwise from the model. Falls back to a buffer
+     * based index if the inference misses its deadline; such decisions are not cached.
      *
-     * @return sizes of next chunk to be processed
+     * @param bufferedDurationUs The current buffered duration.
+     * @return The index into {@code VIDEO_BIT_RATE} to select.
      */
-    private int[] getNextChunkSizes() {
-        int[] sizes = new int[A_DIM];
-        System.out.println("Chunk count: "+this.chunksProcessedCount);
+    private int decide(long bufferedDurationUs) {
+        if (this.speculator != null) {
+            int speculatedIndex = this.speculator.commit(
+                    this.inferenceExecutor, this.chunksProcessedCount - 1, this.stateSample);
+            if (speculatedIndex != C.INDEX_UNSET) {
+                return speculatedIndex;
+            }
+        }
+        long cacheKey = 0;
+        if (this.decisionCache != null) {
+            cacheKey = this.decisionCache.key(this.modelInputFloats);
+            int cachedIndex = this.decisionCache.get(cacheKey);
+            if (cachedIndex != C.INDEX_UNSET) {
+                return cachedIndex;
+            }
+        }
+        int sequence = this.inferenceExecutor.submit(this.model, this.modelInput);
+        int predictedBitrateIndex = this.inferenceExecutor.awaitDecision(sequence);
+        if (predictedBitrateIndex == C.INDEX_UNSET) {
+            this.inferenceExecutor.onFallback();
+            predictedBitrateIndex = getBufferBasedBitrateIndex(bufferedDurationUs);
+            AbrTrace.warn(AbrTrace.EVENT_INFERENCE_FALLBACK, predictedBitrateIndex, bufferedDurationUs / 1000000.0);
+        } else if (this.decisionCache != null) {
+            this.decisionCache.put(cacheKey, predictedBitrateIndex);
+        }
+        return predictedBitrateIndex;
+    }
+
+    /**
+     * Returns the index into {@code VIDEO_BIT_RATE} of the chunk just downloaded, the last one in
+     * the queue, so that the state and the QoE describe the quality actually fetched. Uses the
+     * current selection if the queue is empty or its last chunk is not of this selection.
+     *
+     * @param queue The queue of already buffered chunks.
+     */
+    private int getDownloadedBitrateIndex(List<? extends MediaChunk> queue) {
+        int trackIndex = queue.isEmpty()
+                ? C.INDEX_UNSET
+                : indexOf(queue.get(queue.size() - 1).trackFormat);
+        return this.length - (trackIndex == C.INDEX_UNSET ? selectedIndex : trackIndex) - 1;
+    }
+
+    /**
+     * Has the decision that will follow the download of the chunk just decided precomputed for a few
+     * throughput outcomes, assuming playback drains the buffer while the chunk downloads and the
+     * chunk then adds one segment to it.
+     *
+     * @param predictedBitrateIndex The index into {@code VIDEO_BIT_RATE} just decided.
+     * @param bufferedDurationUs    The current buffered duration.
+     * @param queue                 The queue of already buffered chunks.
+     */
+    private void speculateNextDecision(
+            int predictedBitrateIndex, long bufferedDurationUs, List<? extends MediaChunk> queue) {
+        int chunkIndex = this.chunksProcessedCount;
+        float lastThroughput = this.stateSample[2];
+        if (this.speculator == null || chunkIndex >= totalChunks || queue.isEmpty()
+                || !(lastThroughput > 0) || Float.isInfinite(lastThroughput)) {
+            return;
+        }
+        MediaChunk lastChunk = queue.get(queue.size() - 1);
+        double segmentS = (lastChunk.endTimeUs - lastChunk.startTimeUs) / 1000000.0;
+        double bufferS = bufferedDurationUs / 1000000.0;
+        int chunkBytes = getChunkSize(predictedBitrateIndex, chunkIndex);
+        for (int i = 0; i < A_DIM; i++) {
+            this.candidateChunkSizes[i] = (float) getChunkSize(i, chunkIndex + 1) / (float) M_IN_K / (float) M_IN_K;
+        }
+        this.candidateSample[0] = (float) (VIDEO_BIT_RATE[predictedBitrateIndex] / this.maxBitrate);
+        this.candidateSample[4] = this.modelInputFloats.get(stateIndex(4, 0));
+        this.candidateSample[5] = min(totalChunks - chunkIndex, CHUNK_TIL_VIDEO_END_CAP) / (float) CHUNK_TIL_VIDEO_END_CAP;
+        for (int c = 0; c < this.speculator.getCandidateCount(); c++) {
+            float throughput = lastThroughput * this.speculator.getThroughputFactor(c);
+            double delayMs = chunkBytes / throughput / M_IN_K;
+            double predictedBufferS = max(bufferS - delayMs / M_IN_K, 0.0) + segmentS;
+            this.candidateSample[1] = (float) (predictedBufferS / BUFFER_NORM_FACTOR);
+            this.candidateSample[2] = throughput;
+            this.candidateSample[3] = (float) (delayMs / M_IN_K / BUFFER_NORM_FACTOR);
+            this.speculator.setCandidate(
+                    c, this.modelInputFloats, this.candidateSample, 4, this.candidateChunkSizes, A_DIM);
+        }
+        this.speculator.submit(this.inferenceExecutor, this.model, chunkIndex);
+    }
+
+    /**
+     * Maps the buffer level linearly onto the bitrate ladder between a reservoir and a cushion, as a
+     * cheap substitute for the model when an inference misses its deadline.
+     *
+     * @param bufferedDurationUs The current buffered duration.
+     * @return The index into {@code VIDEO_BIT_RATE} to select.
+     */
+    private int getBufferBasedBitrateIndex(long bufferedDurationUs) {
+        double bufferS = bufferedDurationUs / 1000000.0;
+        if (bufferS <= FALLBACK_RESERVOIR_S) {
+            return 0;
+        }
+        if (bufferS >= FALLBACK_RESERVOIR_S + FALLBACK_CUSHION_S) {
+            return VIDEO_BIT_RATE.length - 1;
+        }
+        return (int) ((bufferS - FALLBACK_RESERVOIR_S) / FALLBACK_CUSHION_S * (VIDEO_BIT_RATE.length - 1));
+    }
+
+    /**
+     * Calculate lengths of next chunk for each track, into {@link #nextChunkSizes}.
+     */
+    private void updateNextChunkSizes() {
+        AbrTrace.debug(AbrTrace.EVENT_CHUNK_COUNT, this.chunksProcessedCount, 0);
         for(int i=0;i<A_DIM;i++){
-            if(this.chunksProcessedCount < totalChunks) {
-                sizes[i] = this.chunksizes.get(i)[this.chunksProcessedCount + 1];
+            if(totalChunks == 0) {
+                // Not counted yet: the sizes are unknown, not past the end.
+                this.nextChunkSizes[i] = 0;
             }
-            else sizes[i] = -1;
-            System.out.println("Chunk "+i+" size: "+sizes[i]);
+            else if(this.chunksProcessedCount < totalChunks) {
+                this.nextChunkSizes[i] = getChunkSize(i, this.chunksProcessedCount + 1);
+            }
+            else this.nextChunkSizes[i] = -1;
+            AbrTrace.debug(AbrTrace.EVENT_NEXT_CHUNK_SIZE, i, this.nextChunkSizes[i]);
         }
-        return sizes;
     }
 
-    private int[] readChunkSizes(String filename) {
+    /**
+     * Maps {@code chunksProcessedCount} onto {@link MediaChunk#chunkIndex} using the last queued
+     * chunk, which is the one just downloaded, and reads the sizes of the chunks that follow it from
+     * the chunk iterators. For a video missing from the catalog, also counts its chunks.
+     *
+     * @param queue               The queue of already buffered chunks.
+     * @param mediaChunkIterators The iterators over the upcoming chunks of each track.
+     */
+    private void updateSegmentSizes(
+            List<? extends MediaChunk> queue, MediaChunkIterator[] mediaChunkIterators) {
+        if (queue.isEmpty()) {
+            return;
+        }
+        long lastChunkIndex = queue.get(queue.size() - 1).chunkIndex;
+        if (lastChunkIndex == C.INDEX_UNSET) {
+            return;
+        }
+        this.chunkIndexOffset = lastChunkIndex - this.chunksProcessedCount;
+        this.chunkIndexOffsetKnown = true;
+        if (this.totalChunks == 0 && mediaChunkIterators.length > 0) {
+            // Not in the catalog: count the chunks the stream has left.
+            this.totalChunks = this.chunksProcessedCount + 1 + evaluateTotalChunks(mediaChunkIterators[0]);
+            this.CHUNK_TIL_VIDEO_END_CAP = this.totalChunks;
+        }
+        this.segmentSizes.update(mediaChunkIterators, lastChunkIndex + 1, SEGMENT_SIZE_LOOKAHEAD);
+    }
 
-        int[] sizes = new int[totalChunks+1];
-        try {
-            Scanner scanner = new Scanner(this.context.getAssets().open(filename));
-            int i = 0;
-            while (i < totalChunks && scanner.hasNextInt()) {
-                sizes[i++] = scanner.nextInt();
+    /**
+     * Returns the size of a chunk, as announced by the stream if its segments have known byte
+     * ranges, otherwise from the chunk size index. Only the first {@code totalChunks} chunks are
+     * used; the chunk just past them has size 0, as has every chunk while {@code totalChunks} is
+     * not known.
+     *
+     * @param quality The index into {@code VIDEO_BIT_RATE}.
+     * @param chunk   The chunk index, at most {@code totalChunks}.
+     * @return The size in bytes, or 0 if it is unknown.
+     */
+    private int getChunkSize(int quality, int chunk) {
+        if (totalChunks == 0) {
+            // A video missing from the catalog whose chunks are not counted yet.
+            return 0;
+        }
+        if (chunk > totalChunks) {
+            throw new ArrayIndexOutOfBoundsException(chunk);
+        }
+        if (chunk == totalChunks) {
+            return 0;
+        }
+        if (this.chunkIndexOffsetKnown) {
+            int size = this.segmentSizes.getSize(this.length - quality - 1, chunk + this.chunkIndexOffset);
+            if (size != C.LENGTH_UNSET) {
+                return size;
             }
-        } catch (FileNotFoundException e) {
-            System.out.println("Check again, File not found");
-            e.printStackTrace();
-        } catch (IOException e) {
-            e.printStackTrace();
         }
-        return sizes;
+        return this.chunkSizeIndex == null ? 0 : this.chunkSizeIndex.getChunkSize(quality, chunk);
     }
 
 
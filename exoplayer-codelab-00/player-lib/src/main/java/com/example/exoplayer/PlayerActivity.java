@@ -15,7 +15,6 @@
  */
 package com.example.exoplayer;
 
-import android.content.Context;
 import android.content.res.Resources;
 import android.net.Uri;
 import android.os.Build;
@@ -40,6 +39,7 @@ import com.google.android.exoplayer2.source.MediaLoadData;
 import com.google.android.exoplayer2.source.MediaSource;
 import com.google.android.exoplayer2.source.MediaSourceEventListener;
 import com.google.android.exoplayer2.source.dash.DashMediaSource;
+import com.google.android.exoplayer2.source.dash.DefaultDashChunkSource;
 import com.google.android.exoplayer2.trackselection.AdaptiveTrackSelection;
 import com.google.android.exoplayer2.trackselection.DefaultTrackSelector;
 import com.google.android.exoplayer2.ui.PlayerView;
@@ -58,13 +58,14 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
+import java.io.Writer;
 
 
 /**
  * A fullscreen activity to play audio or video streams.
  */
 public class PlayerActivity extends AppCompatActivity {
-    private final String[] algorithms = {"pensieve", "bola"};
+    private final String[] algorithms = {"pensieve", "bola", "bola_dynamic", "bola_segment_size"};
     private final String[] videoNames = {"envivio", "bbb_30fps", "redbull_2sec", "tears_of_steel","elephants_dream"};
     private PlayerView playerView;
     private TextView infoText;
@@ -76,8 +77,12 @@ public class PlayerActivity extends AppCompatActivity {
     private long playbackPosition = 0;
     private int algoIdx = 1;
     private int videoIdx = 4;
-    private OutputStreamWriter outputStreamWriter;
+    private DecisionTraceRecorder traceRecorder;
+    private AbrMetricsPublisher metricsPublisher;
     private Listener listener;
+    private PensieveTrackSelection.Factory pensieveFactory;
+    private boolean started;
+    private boolean tuningInference;
 
     private void releasePlayer() {
         if (player != null) {
@@ -87,11 +92,32 @@ public class PlayerActivity extends AppCompatActivity {
             mediaSource.removeEventListener(listener);
             player.release();
             player = null;
+            if (pensieveFactory != null) {
+                pensieveFactory.release();
+                pensieveFactory = null;
+            }
+            if (traceRecorder != null) {
+                traceRecorder.close();
+            }
+            if (metricsPublisher != null) {
+                metricsPublisher.stop();
+                metricsPublisher = null;
+            }
+            dumpTrace(algorithms[algoIdx] + "_" + videoNames[videoIdx] + "_events.txt");
+        }
+    }
+
+    private void dumpTrace(String fileName) {
+        try {
+            Writer writer = new OutputStreamWriter(openFileOutput(fileName, MODE_PRIVATE), "UTF-8");
             try {
-                outputStreamWriter.close();
-            } catch (IOException e) {
-                e.printStackTrace();
+                AbrTrace.dump(writer);
+            } finally {
+                writer.close();
             }
+        } catch (IOException e) {
+            System.out.println("Could not write ABR trace");
+            e.printStackTrace();
         }
     }
 
@@ -114,14 +140,14 @@ public class PlayerActivity extends AppCompatActivity {
     @Override
     protected void onStart() {
         super.onStart();
+        started = true;
         initializePlayer();
-        Resources res = getResources();
-        infoText.setText(String.format(res.getString(R.string.info_text), algorithms[algoIdx], videoNames[videoIdx]));
     }
 
     @Override
     protected void onStop() {
         super.onStop();
+        started = false;
         releasePlayer();
     }
 
@@ -160,27 +186,48 @@ public class PlayerActivity extends AppCompatActivity {
     }
 
     private void initializePlayer() {
+        if (tuningInference) {
+            return;
+        }
         String algorithm = algorithms[algoIdx];
         String videoName = videoNames[videoIdx];
+        if (player == null && algorithm.equals("pensieve") && !PensieveInferenceBenchmark.isTuned(this)) {
+            startInferenceTuning();
+            return;
+        }
         try{
-            this.outputStreamWriter = new OutputStreamWriter(this.openFileOutput(algorithm+"_"+videoName+".txt", Context.MODE_PRIVATE));
+            this.traceRecorder = DecisionTraceRecorder.open(this, algorithm+"_"+videoName+".trace");
         }
         catch (IOException e){
             System.out.println("Shouldn't reach here. ");
         }
         if (player == null) {
+            Resources res = getResources();
+            metricsPublisher = new AbrMetricsPublisher();
+            metricsPublisher.start(infoText, String.format(res.getString(R.string.info_text), algorithm, videoName));
             DefaultTrackSelector trackSelector;
             switch (algorithm) {
                 case "pensieve":
-                    trackSelector = new DefaultTrackSelector(this, new PensieveTrackSelection.Factory(this, videoName, infoText, outputStreamWriter, listener));
+                    pensieveFactory = new PensieveTrackSelection.Factory(this, videoName, metricsPublisher, traceRecorder, listener,
+                            PensieveInferenceBenchmark.getTunedConfig(this));
+                    trackSelector = new DefaultTrackSelector(this, pensieveFactory);
                     break;
                 case "bola":
-                    trackSelector = new DefaultTrackSelector(this, new BolaTrackSelection.Factory(videoName, infoText, outputStreamWriter, listener));
+                    trackSelector = new DefaultTrackSelector(this, new BolaTrackSelection.Factory(this, videoName, metricsPublisher, traceRecorder, listener));
+                    break;
+                case "bola_dynamic":
+                    trackSelector = new DefaultTrackSelector(this, new BolaTrackSelection.Factory(this, videoName, metricsPublisher, traceRecorder, listener, BolaTrackSelection.MODE_DYNAMIC));
+                    break;
+                case "bola_segment_size":
+                    trackSelector = new DefaultTrackSelector(this, new BolaTrackSelection.Factory(this, videoName, metricsPublisher, traceRecorder, listener, BolaTrackSelection.MODE_BOLA, true));
                     break;
                 default:
                     trackSelector = new DefaultTrackSelector(this, new AdaptiveTrackSelection.Factory());
             }
             player = new SimpleExoPlayer.Builder(this).setTrackSelector(trackSelector).build();
+            listener.getRebufferTracker().reset();
+            listener.getAbandonmentEngine().reset();
+            player.addAnalyticsListener(listener.getRebufferTracker());
         }
         playerView.setPlayer(player);
 //        Playing from local server -
@@ -193,25 +240,48 @@ public class PlayerActivity extends AppCompatActivity {
         String video_url = "http://10.42.0.1:8000/"+videoName+"/Manifest.mpd";
         Uri uri = Uri.parse(video_url);
         DataSource.Factory dataSourceFactory = new DefaultDataSourceFactory(this, listener, new DefaultDataSourceFactory(this));
-        mediaSource = new DashMediaSource.Factory(dataSourceFactory).createMediaSource(MediaItem.fromUri(uri));
+        // Chunks load through the abandonment engine, which may cancel a chunk loading too slowly.
+        DataSource.Factory chunkDataSourceFactory = new AbandonableDataSource.Factory(dataSourceFactory, listener.getAbandonmentEngine());
+        mediaSource = new DashMediaSource.Factory(new DefaultDashChunkSource.Factory(chunkDataSourceFactory), dataSourceFactory)
+                .setLoadErrorHandlingPolicy(new AbandonmentLoadErrorHandlingPolicy())
+                .createMediaSource(MediaItem.fromUri(uri));
 
         player.setMediaSource(mediaSource);
-        Handler handler = new Handler();
+        // Load events are delivered on the playback thread, so a completed chunk is recorded before
+        // the selection decides the next one.
+        Handler handler = new Handler(player.getPlaybackLooper());
         mediaSource.addEventListener(handler,listener);
         player.setPlayWhenReady(playWhenReady);
         player.seekTo(currentWindow, playbackPosition);
         player.prepare();
     }
 
+    /**
+     * Measures the Pensieve inference configurations before the first Pensieve session on this
+     * device class, while no player competes for the CPU, and starts playback once done.
+     */
+    private void startInferenceTuning() {
+        tuningInference = true;
+        infoText.setText(R.string.tuning_text);
+        PensieveInferenceBenchmark.tuneInBackground(this, new Handler(), new Runnable() {
+            @Override
+            public void run() {
+                tuningInference = false;
+                infoText.setText("");
+                if (started) {
+                    initializePlayer();
+                }
+            }
+        });
+    }
+
     private class PlaybackStateListener implements Player.EventListener {
         @Override
         public void onPlaybackStateChanged(int state) {
             switch (state) {
                 case ExoPlayer.STATE_ENDED:
-                    try {
-                        outputStreamWriter.close();
-                    } catch (IOException e) {
-                        e.printStackTrace();
+                    if (traceRecorder != null) {
+                        traceRecorder.close();
                     }
                     infoText.setText("");
                     chooseNext();
@@ -227,61 +297,101 @@ public class PlayerActivity extends AppCompatActivity {
 
 class Listener implements MediaSourceEventListener, TransferListener {
 
-    private long chunkLoadStartTime = 0;
-    private long chunkLoadEndTime = 0;
-    private long chunkLoadDuration = 0;
+    // Written and read by the playback thread only, where load events are delivered
+    private long chunkLoadStartTime = C.TIME_UNSET;
+    // Written by the listener and read by the selections, both on the playback thread
+    private volatile ChunkLoadRecord lastChunkLoad = ChunkLoadRecord.NONE;
+    private final RebufferTracker rebufferTracker = new RebufferTracker();
+    private final ThroughputSampler throughputSampler = new ThroughputSampler();
+    private final DownloadAbandonmentEngine abandonmentEngine = new DownloadAbandonmentEngine();
 
-    public int getDataType() {
-        return dataType;
+    /**
+     * Returns the latest completed media chunk load, or {@link ChunkLoadRecord#NONE}.
+     */
+    public ChunkLoadRecord getLastChunkLoad() {
+        return lastChunkLoad;
     }
 
-    private int dataType = C.DATA_TYPE_UNKNOWN;
-
-    public long getChunkLoadStartTime() {
-        return chunkLoadStartTime;
+    public RebufferTracker getRebufferTracker() {
+        return rebufferTracker;
     }
 
-    public long getChunkLoadEndTime() {
-        return chunkLoadEndTime;
+    public ThroughputSampler getThroughputSampler() {
+        return throughputSampler;
     }
 
-    public long getChunkLoadDuration(){
-        return chunkLoadDuration;
+    public DownloadAbandonmentEngine getAbandonmentEngine() {
+        return abandonmentEngine;
     }
+
     @Override
     public void onLoadStarted(int windowIndex, @Nullable MediaSource.MediaPeriodId mediaPeriodId, LoadEventInfo loadEventInfo, MediaLoadData mediaLoadData) {
         if(mediaLoadData.dataType == C.DATA_TYPE_MEDIA) {
-            System.out.println("New load started" + loadEventInfo.elapsedRealtimeMs);
+            AbrTrace.debug(AbrTrace.EVENT_LOAD_STARTED, loadEventInfo.elapsedRealtimeMs, 0);
             this.chunkLoadStartTime = loadEventInfo.elapsedRealtimeMs;
+            abandonmentEngine.onMediaLoadStarted(loadEventInfo.dataSpec, mediaLoadData.trackFormat,
+                    mediaLoadData.mediaStartTimeMs, mediaLoadData.mediaEndTimeMs);
         }
     }
 
     @Override
     public void onLoadCompleted(int windowIndex, @Nullable MediaSource.MediaPeriodId mediaPeriodId, LoadEventInfo loadEventInfo, MediaLoadData mediaLoadData) {
         if(mediaLoadData.dataType == C.DATA_TYPE_MEDIA) {
-            this.chunkLoadEndTime = loadEventInfo.elapsedRealtimeMs;
-            this.chunkLoadDuration = loadEventInfo.loadDurationMs;
-            System.out.println("load complete" + loadEventInfo.elapsedRealtimeMs);
-            System.out.println("mediaLoadData.mediaStartTimeMs: "+mediaLoadData.mediaStartTimeMs);
+            this.lastChunkLoad = new ChunkLoadRecord(
+                    lastChunkLoad.sequence + 1,
+                    chunkLoadStartTime,
+                    loadEventInfo.elapsedRealtimeMs,
+                    loadEventInfo.loadDurationMs,
+                    loadEventInfo.bytesLoaded,
+                    mediaLoadData.mediaStartTimeMs,
+                    // The transfer has ended by the time its load completes.
+                    throughputSampler.getThroughputBytesPerS(loadEventInfo.dataSpec),
+                    throughputSampler.getTtfbMs(loadEventInfo.dataSpec));
+            this.chunkLoadStartTime = C.TIME_UNSET;
+            AbrTrace.debug(AbrTrace.EVENT_LOAD_COMPLETED, loadEventInfo.elapsedRealtimeMs, mediaLoadData.mediaStartTimeMs);
+            abandonmentEngine.onMediaLoadEnded(loadEventInfo.dataSpec);
         }
-        this.dataType = mediaLoadData.dataType;
     }
 
-    // Not needed functions 
     @Override
-    public void onTransferInitializing(DataSource source, DataSpec dataSpec, boolean isNetwork) {
+    public void onLoadCanceled(int windowIndex, @Nullable MediaSource.MediaPeriodId mediaPeriodId, LoadEventInfo loadEventInfo, MediaLoadData mediaLoadData) {
+        if(mediaLoadData.dataType == C.DATA_TYPE_MEDIA) {
+            abandonmentEngine.onMediaLoadEnded(loadEventInfo.dataSpec);
+        }
+    }
+
+    @Override
+    public void onLoadError(int windowIndex, @Nullable MediaSource.MediaPeriodId mediaPeriodId, LoadEventInfo loadEventInfo, MediaLoadData mediaLoadData, IOException error, boolean wasCanceled) {
+        if(mediaLoadData.dataType == C.DATA_TYPE_MEDIA) {
+            abandonmentEngine.onMediaLoadEnded(loadEventInfo.dataSpec);
+        }
+    }
 
+    @Override
+    public void onTransferInitializing(DataSource source, DataSpec dataSpec, boolean isNetwork) {
+        if (isNetwork) {
+            throughputSampler.onTransferInitializing(source, dataSpec);
+        }
     }
 
     @Override
     public void onTransferStart(DataSource source, DataSpec dataSpec, boolean isNetwork) {
+        if (isNetwork) {
+            throughputSampler.onTransferStart(source, dataSpec);
+        }
     }
 
     @Override
     public void onBytesTransferred(DataSource source, DataSpec dataSpec, boolean isNetwork, int bytesTransferred) {
+        if (isNetwork) {
+            throughputSampler.onBytesTransferred(source, bytesTransferred);
+        }
     }
 
     @Override
     public void onTransferEnd(DataSource source, DataSpec dataSpec, boolean isNetwork) {
+        if (isNetwork) {
+            throughputSampler.onTransferEnd(source);
+        }
     }
 }
\ No newline at end of file
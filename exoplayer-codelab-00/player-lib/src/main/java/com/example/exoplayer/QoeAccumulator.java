@@ -0,0 +1,336 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.exoplayer;
+
+import java.util.Arrays;
+
+import static java.lang.Math.abs;
+import static java.lang.Math.log;
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+import static java.lang.Math.sqrt;
+
+/**
+ * Computes the per-chunk QoE reward of a session and keeps running statistics over the rewards, in
+ * constant time per chunk and without allocating.
+ *
+ * <p>The three metrics are those the Pensieve models were trained with. Each rewards the quality
+ * of a chunk and penalizes the rebuffering before it and the quality change from the previous
+ * chunk:
+ *
+ * <ul>
+ *   <li>{@link #QOE_LINEAR}: the bitrate in Mbps, minus 4.3 per second of rebuffering.
+ *   <li>{@link #QOE_LOG}: the log of the bitrate relative to the lowest quality, minus 2.66 per
+ *       second of rebuffering.
+ *   <li>{@link #QOE_HD}: a fixed score per quality favouring HD qualities, minus 8 per second of
+ *       rebuffering.
+ * </ul>
+ *
+ * <p>The count, total, mean, variance, minimum and maximum cover every chunk of the session. The
+ * percentiles cover the latest {@code windowSize} chunks. Not thread safe: rewards are added from
+ * the playback thread, and {@link #snapshot()} gives other threads an immutable copy.
+ */
+public final class QoeAccumulator {
+
+    public static final int QOE_UNKNOWN = 0;
+    public static final int QOE_LINEAR = 1;
+    public static final int QOE_LOG = 2;
+    public static final int QOE_HD = 3;
+
+    /**
+     * The default number of rewards the percentiles are computed over.
+     */
+    public static final int DEFAULT_WINDOW_SIZE = 128;
+
+    private static final double M_IN_K = 1000.0;
+    private static final double REBUF_PENALTY_LINEAR = 4.3;
+    private static final double REBUF_PENALTY_LOG = 2.66;
+    private static final double REBUF_PENALTY_HD = 8.0;
+    private static final double SMOOTH_PENALTY = 1.0;
+    // Score of each quality, lowest first; qualities above the last one get the last score.
+    private static final double[] HD_REWARD = {1, 2, 3, 12, 15, 20};
+
+    /**
+     * An immutable view of the statistics at one point of the session.
+     */
+    public static final class Snapshot {
+
+        /**
+         * The metric, one of the {@code QOE_*} constants.
+         */
+        public final int qoeType;
+        /**
+         * The number of rewards added.
+         */
+        public final int count;
+        /**
+         * The sum of the rewards.
+         */
+        public final double total;
+        /**
+         * The mean reward, or 0 if there is none.
+         */
+        public final double mean;
+        /**
+         * The population variance of the rewards, or 0 if there are fewer than two.
+         */
+        public final double variance;
+        /**
+         * The smallest and largest reward, or 0 if there is none.
+         */
+        public final double min;
+        public final double max;
+        /**
+         * The 10th, 50th and 90th percentiles of the rewards in the window, or 0 if there is none.
+         */
+        public final double p10;
+        public final double p50;
+        public final double p90;
+        /**
+         * The rebuffering time added, in seconds.
+         */
+        public final double totalRebufferS;
+
+        private Snapshot(
+                int qoeType,
+                int count,
+                double total,
+                double mean,
+                double variance,
+                double min,
+                double max,
+                double p10,
+                double p50,
+                double p90,
+                double totalRebufferS) {
+            this.qoeType = qoeType;
+            this.count = count;
+            this.total = total;
+            this.mean = mean;
+            this.variance = variance;
+            this.min = min;
+            this.max = max;
+            this.p10 = p10;
+            this.p50 = p50;
+            this.p90 = p90;
+            this.totalRebufferS = totalRebufferS;
+        }
+
+        /**
+         * Returns the standard deviation of the rewards.
+         */
+        public double getStandardDeviation() {
+            return sqrt(variance);
+        }
+
+        @Override
+        public String toString() {
+            return "Qoe[type=" + qoeType + ", count=" + count + ", total=" + total
+                    + ", mean=" + mean + ", sd=" + getStandardDeviation()
+                    + ", min=" + min + ", p10=" + p10 + ", p50=" + p50 + ", p90=" + p90
+                    + ", max=" + max + ", rebufferS=" + totalRebufferS + "]";
+        }
+    }
+
+    private final int qoeType;
+    // Quality score of each quality of the ladder, lowest first
+    private final double[] qualityScores;
+    private final double rebufferPenalty;
+    private final double[] window;
+    // Scratch space the percentiles are computed in
+    private final double[] sortedWindow;
+
+    private int count;
+    private double total;
+    private double mean;
+    // Sum of squared differences from the mean (Welford)
+    private double m2;
+    private double minReward;
+    private double maxReward;
+    private double totalRebufferS;
+    private int windowNext;
+    private int windowCount;
+    private boolean sortedWindowValid;
+
+    /**
+     * Creates an accumulator with {@link #DEFAULT_WINDOW_SIZE}.
+     *
+     * @param qoeType           The metric, one of {@link #QOE_LINEAR}, {@link #QOE_LOG} and {@link
+     *                          #QOE_HD}.
+     * @param bitrateLadderKbps The bitrate of each quality in kbps, lowest first.
+     */
+    public QoeAccumulator(int qoeType, double[] bitrateLadderKbps) {
+        this(qoeType, bitrateLadderKbps, DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * @param qoeType           The metric, one of {@link #QOE_LINEAR}, {@link #QOE_LOG} and {@link
+     *                          #QOE_HD}.
+     * @param bitrateLadderKbps The bitrate of each quality in kbps, lowest first.
+     * @param windowSize        The number of rewards the percentiles are computed over.
+     */
+    public QoeAccumulator(int qoeType, double[] bitrateLadderKbps, int windowSize) {
+        if (windowSize <= 0) {
+            throw new IllegalArgumentException("Invalid window size: " + windowSize);
+        }
+        this.qoeType = qoeType;
+        this.qualityScores = new double[bitrateLadderKbps.length];
+        switch (qoeType) {
+            case QOE_LINEAR:
+                for (int i = 0; i < qualityScores.length; i++) {
+                    qualityScores[i] = bitrateLadderKbps[i] / M_IN_K;
+                }
+                rebufferPenalty = REBUF_PENALTY_LINEAR;
+                break;
+            case QOE_LOG:
+                // A ladder resolved from a manifest without bitrates has zeros; keep the log finite.
+                double lowestKbps = max(bitrateLadderKbps.length == 0 ? 1 : bitrateLadderKbps[0], 1);
+                for (int i = 0; i < qualityScores.length; i++) {
+                    qualityScores[i] = log(max(bitrateLadderKbps[i], lowestKbps) / lowestKbps);
+                }
+                rebufferPenalty = REBUF_PENALTY_LOG;
+                break;
+            case QOE_HD:
+                for (int i = 0; i < qualityScores.length; i++) {
+                    qualityScores[i] = HD_REWARD[min(i, HD_REWARD.length - 1)];
+                }
+                rebufferPenalty = REBUF_PENALTY_HD;
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported QoE type: " + qoeType);
+        }
+        this.window = new double[windowSize];
+        this.sortedWindow = new double[windowSize];
+    }
+
+    /**
+     * Returns the metric, one of the {@code QOE_*} constants.
+     */
+    public int getQoeType() {
+        return qoeType;
+    }
+
+    /**
+     * Computes the reward of a chunk and adds it to the statistics.
+     *
+     * @param quality         The quality of the chunk, an index into the ladder, lowest first.
+     * @param previousQuality The quality of the previous chunk.
+     * @param rebufferS       The rebuffering time before the chunk, in seconds.
+     * @return The reward.
+     */
+    public double add(int quality, int previousQuality, double rebufferS) {
+        double reward = qualityScores[quality]
+                - rebufferPenalty * rebufferS
+                - SMOOTH_PENALTY * abs(qualityScores[quality] - qualityScores[previousQuality]);
+        count++;
+        total += reward;
+        double delta = reward - mean;
+        mean += delta / count;
+        m2 += delta * (reward - mean);
+        minReward = count == 1 ? reward : min(minReward, reward);
+        maxReward = count == 1 ? reward : max(maxReward, reward);
+        totalRebufferS += rebufferS;
+        window[windowNext] = reward;
+        windowNext = windowNext + 1 == window.length ? 0 : windowNext + 1;
+        windowCount = min(windowCount + 1, window.length);
+        sortedWindowValid = false;
+        return reward;
+    }
+
+    /**
+     * Returns the number of rewards added.
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the sum of the rewards.
+     */
+    public double getTotal() {
+        return total;
+    }
+
+    /**
+     * Returns the mean reward, or 0 if there is none.
+     */
+    public double getMean() {
+        return mean;
+    }
+
+    /**
+     * Returns the population variance of the rewards, or 0 if there are fewer than two.
+     */
+    public double getVariance() {
+        return count < 2 ? 0 : m2 / count;
+    }
+
+    /**
+     * Returns a percentile of the rewards in the window, using the nearest rank. The window is
+     * sorted on the first query after a reward is added, so querying several percentiles at once
+     * sorts it once.
+     *
+     * @param percentile The percentile, between 0 and 100.
+     * @return The percentile, or 0 if there is no reward.
+     */
+    public double getPercentile(double percentile) {
+        if (windowCount == 0) {
+            return 0;
+        }
+        if (!sortedWindowValid) {
+            // The window is full or still fills from 0, so its first windowCount slots are the rewards.
+            System.arraycopy(window, 0, sortedWindow, 0, windowCount);
+            Arrays.sort(sortedWindow, 0, windowCount);
+            sortedWindowValid = true;
+        }
+        int rank = (int) Math.ceil(percentile / 100 * windowCount) - 1;
+        return sortedWindow[max(0, min(rank, windowCount - 1))];
+    }
+
+    /**
+     * Returns an immutable copy of the statistics.
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(
+                qoeType,
+                count,
+                total,
+                mean,
+                getVariance(),
+                count == 0 ? 0 : minReward,
+                count == 0 ? 0 : maxReward,
+                getPercentile(10),
+                getPercentile(50),
+                getPercentile(90),
+                totalRebufferS);
+    }
+
+    /**
+     * Clears the statistics.
+     */
+    public void reset() {
+        count = 0;
+        total = 0;
+        mean = 0;
+        m2 = 0;
+        minReward = 0;
+        maxReward = 0;
+        totalRebufferS = 0;
+        windowNext = 0;
+        windowCount = 0;
+        sortedWindowValid = false;
+    }
+}
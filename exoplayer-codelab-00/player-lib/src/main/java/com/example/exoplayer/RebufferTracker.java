@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.exoplayer;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.Player;
+import com.google.android.exoplayer2.analytics.AnalyticsListener;
+
+/**
+ * Measures the time playback stalls from the player's state transitions.
+ *
+ * <p>A stall starts when the player goes from {@link Player#STATE_READY} to {@link
+ * Player#STATE_BUFFERING} and ends when it is ready again or ends. The buffering before the first
+ * ready state is the startup delay, and the buffering following a seek is caused by the user, so
+ * neither counts as rebuffering. Times are the {@link AnalyticsListener.EventTime#realtimeMs}
+ * of the transitions, which are monotonic.
+ *
+ * <p>The player calls the listener on the application thread at state changes only, so tracking
+ * costs nothing per frame. The track selections read the total from the playback thread once per
+ * chunk and take differences to get the rebuffering before each chunk.
+ */
+public final class RebufferTracker implements AnalyticsListener {
+
+    private boolean started;
+    private boolean seeking;
+    private long sessionStartMs;
+    private long startupDelayMs;
+    // Start of the current stall, or C.TIME_UNSET if playback is not stalled
+    private long stallStartMs;
+    private long completedRebufferMs;
+    private int stallCount;
+
+    public RebufferTracker() {
+        reset();
+    }
+
+    /**
+     * Forgets the tracked stalls, for a new playback session.
+     */
+    public synchronized void reset() {
+        started = false;
+        seeking = false;
+        sessionStartMs = C.TIME_UNSET;
+        startupDelayMs = 0;
+        stallStartMs = C.TIME_UNSET;
+        completedRebufferMs = 0;
+        stallCount = 0;
+    }
+
+    @Override
+    public synchronized void onPlaybackStateChanged(EventTime eventTime, int state) {
+        long nowMs = eventTime.realtimeMs;
+        switch (state) {
+            case Player.STATE_BUFFERING:
+                if (!started) {
+                    if (sessionStartMs == C.TIME_UNSET) {
+                        sessionStartMs = nowMs;
+                    }
+                } else if (!seeking && stallStartMs == C.TIME_UNSET) {
+                    stallStartMs = nowMs;
+                    stallCount++;
+                }
+                break;
+            case Player.STATE_READY:
+            case Player.STATE_ENDED:
+                if (!started) {
+                    started = true;
+                    startupDelayMs = sessionStartMs == C.TIME_UNSET ? 0 : nowMs - sessionStartMs;
+                }
+                endStall(nowMs);
+                seeking = false;
+                break;
+            case Player.STATE_IDLE:
+            default:
+                endStall(nowMs);
+                break;
+        }
+    }
+
+    @Override
+    public synchronized void onSeekStarted(EventTime eventTime) {
+        // A stall interrupted by a seek counts until the seek.
+        endStall(eventTime.realtimeMs);
+        seeking = true;
+    }
+
+    /**
+     * Returns the rebuffering time of the session, including the current stall.
+     *
+     * @param nowMs The current {@link android.os.SystemClock#elapsedRealtime()}, to measure a stall
+     *              that has not ended.
+     */
+    public synchronized long getTotalRebufferMs(long nowMs) {
+        if (stallStartMs == C.TIME_UNSET) {
+            return completedRebufferMs;
+        }
+        return completedRebufferMs + Math.max(0, nowMs - stallStartMs);
+    }
+
+    /**
+     * Returns the time from the first buffering state to the first ready state, or 0 if playback
+     * has not started.
+     */
+    public synchronized long getStartupDelayMs() {
+        return startupDelayMs;
+    }
+
+    /**
+     * Returns the number of stalls of the session, including the current one.
+     */
+    public synchronized int getStallCount() {
+        return stallCount;
+    }
+
+    /**
+     * Returns whether playback is stalled.
+     */
+    public synchronized boolean isStalled() {
+        return stallStartMs != C.TIME_UNSET;
+    }
+
+    private void endStall(long nowMs) {
+        if (stallStartMs != C.TIME_UNSET) {
+            completedRebufferMs += Math.max(0, nowMs - stallStartMs);
+            stallStartMs = C.TIME_UNSET;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.exoplayer;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.source.chunk.MediaChunk;
+import com.google.android.exoplayer2.source.chunk.MediaChunkIterator;
+import com.google.android.exoplayer2.upstream.DataSpec;
+
+import java.util.Arrays;
+
+/**
+ * The sizes of upcoming segments of each track of a selection, read lazily from the {@link
+ * MediaChunkIterator}s passed to {@code updateSelectedTrack}.
+ *
+ * <p>The {@link DataSpec} of an upcoming chunk has a known length whenever the stream describes its
+ * segments by byte range: from the {@code sidx} box of a DASH SegmentBase representation, which
+ * ExoPlayer loads with the initialization data, or from the {@code mediaRange} of a SegmentList.
+ * Only the first few chunks of each iterator are read per update, so metadata is resolved only for
+ * the segments a decision needs. Segments addressed by URL template alone have no known length and
+ * remain unknown here.
+ *
+ * <p>Sizes are keyed by {@link MediaChunk#chunkIndex} and kept per track in a growable int array.
+ * Not thread safe: a selection uses its provider from the playback thread only.
+ */
+public final class SegmentSizeProvider {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    // Sizes per track, indexed by chunk index minus the track's first chunk index.
+    private final int[][] sizes;
+    private final long[] firstChunkIndices;
+    private int knownSizeCount;
+
+    /**
+     * @param trackCount The number of tracks in the selection.
+     */
+    public SegmentSizeProvider(int trackCount) {
+        this.sizes = new int[trackCount][];
+        this.firstChunkIndices = new long[trackCount];
+        Arrays.fill(firstChunkIndices, C.INDEX_UNSET);
+    }
+
+    /**
+     * Reads the sizes of the next chunks of each track that are not known yet. The iterators are
+     * reset afterwards.
+     *
+     * @param iterators       The iterators passed to {@code updateSelectedTrack}, one per track of
+     *                        the selection.
+     * @param firstChunkIndex The chunk index of the first chunk of every iterator.
+     * @param maxChunkCount   The number of chunks to read from each iterator.
+     */
+    public void update(MediaChunkIterator[] iterators, long firstChunkIndex, int maxChunkCount) {
+        int trackCount = Math.min(iterators.length, sizes.length);
+        for (int track = 0; track < trackCount; track++) {
+            MediaChunkIterator iterator = iterators[track];
+            long chunkIndex = firstChunkIndex;
+            for (int i = 0; i < maxChunkCount && iterator.next(); i++, chunkIndex++) {
+                if (getSize(track, chunkIndex) != C.LENGTH_UNSET) {
+                    continue;
+                }
+                long length = iterator.getDataSpec().length;
+                if (length != C.LENGTH_UNSET && length <= Integer.MAX_VALUE) {
+                    put(track, chunkIndex, (int) length);
+                }
+            }
+            iterator.reset();
+        }
+    }
+
+    /**
+     * Returns the size of a chunk.
+     *
+     * @param track      The index of the track in the selection.
+     * @param chunkIndex The {@link MediaChunk#chunkIndex} of the chunk.
+     * @return The size in bytes, or {@link C#LENGTH_UNSET} if it is not known.
+     */
+    public int getSize(int track, long chunkIndex) {
+        if (track < 0 || track >= sizes.length || sizes[track] == null) {
+            return C.LENGTH_UNSET;
+        }
+        long slot = chunkIndex - firstChunkIndices[track];
+        return slot < 0 || slot >= sizes[track].length ? C.LENGTH_UNSET : sizes[track][(int) slot];
+    }
+
+    /**
+     * Returns the number of chunk sizes known, over all tracks.
+     */
+    public int getKnownSizeCount() {
+        return knownSizeCount;
+    }
+
+    private void put(int track, long chunkIndex, int size) {
+        int[] trackSizes = sizes[track];
+        if (trackSizes == null) {
+            trackSizes = newSizes(INITIAL_CAPACITY);
+            firstChunkIndices[track] = chunkIndex;
+        } else if (chunkIndex < firstChunkIndices[track]) {
+            // Seeked back past the first known chunk: shift the known sizes up.
+            int shift = (int) (firstChunkIndices[track] - chunkIndex);
+            int[] shifted = newSizes(trackSizes.length + shift);
+            System.arraycopy(trackSizes, 0, shifted, shift, trackSizes.length);
+            trackSizes = shifted;
+            firstChunkIndices[track] = chunkIndex;
+        }
+        int slot = (int) (chunkIndex - firstChunkIndices[track]);
+        if (slot >= trackSizes.length) {
+            int[] grown = newSizes(Math.max(slot + 1, trackSizes.length * 2));
+            System.arraycopy(trackSizes, 0, grown, 0, trackSizes.length);
+            trackSizes = grown;
+        }
+        trackSizes[slot] = size;
+        sizes[track] = trackSizes;
+        knownSizeCount++;
+    }
+
+    private static int[] newSizes(int capacity) {
+        int[] newSizes = new int[capacity];
+        Arrays.fill(newSizes, C.LENGTH_UNSET);
+        return newSizes;
+    }
+
+    @Override
+    public String toString() {
+        return "tracks=" + sizes.length + " knownSizes=" + knownSizeCount;
+    }
+}
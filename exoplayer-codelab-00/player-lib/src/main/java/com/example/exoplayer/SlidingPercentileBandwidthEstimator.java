@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.exoplayer;
+
+import java.util.Arrays;
+
+/**
+ * Estimates the bandwidth as a percentile of the throughput of the latest transfers, like
+ * ExoPlayer's sliding percentile but in {@code O(log B)} per sample and without allocating.
+ *
+ * <p>Throughputs are quantized into {@link #BIN_COUNT} logarithmic bins between {@link
+ * #MIN_BITRATE} and {@link #MAX_BITRATE}, about 2.5% apart. A Fenwick tree counts the samples of
+ * the window per bin, so adding a sample, evicting the oldest and finding the bin holding the
+ * percentile each walk the tree once. The estimate is the geometric middle of that bin.
+ */
+public final class SlidingPercentileBandwidthEstimator implements BandwidthEstimator {
+
+    /**
+     * The default number of transfers the percentile is taken over.
+     */
+    public static final int DEFAULT_WINDOW_SIZE = 20;
+    /**
+     * The default percentile, the median.
+     */
+    public static final double DEFAULT_PERCENTILE = 50;
+
+    /**
+     * The number of bins throughputs are quantized into.
+     */
+    public static final int BIN_COUNT = 512;
+    /**
+     * The lowest and highest throughputs told apart, in bits per second. Throughputs outside are
+     * counted in the first or last bin.
+     */
+    public static final double MIN_BITRATE = 8000;
+    public static final double MAX_BITRATE = 2000000000;
+
+    private static final double LOG_MIN_BITRATE = Math.log(MIN_BITRATE);
+    private static final double LOG_BIN_WIDTH = (Math.log(MAX_BITRATE) - LOG_MIN_BITRATE) / BIN_COUNT;
+    // Highest power of two not above BIN_COUNT, where the tree descent starts
+    private static final int TOP_BIT = Integer.highestOneBit(BIN_COUNT);
+
+    private final double percentile;
+    // Bin of each sample of the window
+    private final int[] windowBins;
+    // Fenwick tree over the bin counts, 1-based
+    private final int[] tree;
+    private int next;
+    private int count;
+
+    public SlidingPercentileBandwidthEstimator() {
+        this(DEFAULT_WINDOW_SIZE, DEFAULT_PERCENTILE);
+    }
+
+    /**
+     * @param windowSize The number of transfers the percentile is taken over.
+     * @param percentile The percentile, between 0 and 100.
+     */
+    public SlidingPercentileBandwidthEstimator(int windowSize, double percentile) {
+        if (windowSize <= 0) {
+            throw new IllegalArgumentException("Invalid window size: " + windowSize);
+        }
+        if (!(percentile >= 0 && percentile <= 100)) {
+            throw new IllegalArgumentException("Invalid percentile: " + percentile);
+        }
+        this.percentile = percentile;
+        this.windowBins = new int[windowSize];
+        this.tree = new int[BIN_COUNT + 1];
+    }
+
+    @Override
+    public void addSample(long bytes, long durationUs) {
+        if (durationUs <= 0) {
+            return;
+        }
+        double bitsPerS = bytes * 8 / (durationUs / 1000000.0);
+        if (count == windowBins.length) {
+            update(windowBins[next], -1);
+        } else {
+            count++;
+        }
+        int bin = toBin(bitsPerS);
+        windowBins[next] = bin;
+        update(bin, 1);
+        next = next + 1 == windowBins.length ? 0 : next + 1;
+    }
+
+    @Override
+    public long getBitrateEstimate() {
+        if (count == 0) {
+            return NO_ESTIMATE;
+        }
+        int rank = Math.max(1, (int) Math.ceil(percentile / 100 * count));
+        // Descend the tree for the last bin with fewer than rank samples up to it.
+        int position = 0;
+        int remaining = rank;
+        for (int step = TOP_BIT; step > 0; step >>= 1) {
+            int candidate = position + step;
+            if (candidate <= BIN_COUNT && tree[candidate] < remaining) {
+                position = candidate;
+                remaining -= tree[candidate];
+            }
+        }
+        // position is the number of bins before the one holding the rank-th sample.
+        return (long) Math.exp(LOG_MIN_BITRATE + (position + 0.5) * LOG_BIN_WIDTH);
+    }
+
+    @Override
+    public void reset() {
+        Arrays.fill(tree, 0);
+        next = 0;
+        count = 0;
+    }
+
+    @Override
+    public String toString() {
+        return "Percentile(" + windowBins.length + ", p" + percentile + ")";
+    }
+
+    private static int toBin(double bitsPerS) {
+        if (!(bitsPerS > MIN_BITRATE)) {
+            return 0;
+        }
+        int bin = (int) ((Math.log(bitsPerS) - LOG_MIN_BITRATE) / LOG_BIN_WIDTH);
+        return Math.min(bin, BIN_COUNT - 1);
+    }
+
+    private void update(int bin, int delta) {
+        for (int i = bin + 1; i <= BIN_COUNT; i += i & -i) {
+            tree[i] += delta;
+        }
+    }
+}
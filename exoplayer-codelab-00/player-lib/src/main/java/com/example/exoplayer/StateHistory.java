@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.exoplayer;
+
+import com.google.android.exoplayer2.util.Assertions;
+
+import java.nio.FloatBuffer;
+
+/**
+ * A fixed capacity circular history of multi-feature samples, such as the per-chunk Pensieve
+ * observations.
+ *
+ * <p>Appending a sample costs O(features) regardless of the capacity; nothing is shifted. The
+ * sliding-window layout a model expects, one row per feature ordered from oldest to newest, is only
+ * materialized by {@link #writeWindow(FloatBuffer, int, int)} when the input tensor is filled. The
+ * capacity may exceed the window length so that longer windows can be read from the same history.
+ */
+public final class StateHistory {
+
+    private final int featureCount;
+    private final int capacity;
+    // One row of capacity slots per feature, so a window row is at most two bulk copies.
+    private final float[] samples;
+
+    private int nextSlot;
+    private int size;
+
+    /**
+     * @param featureCount The number of features in each sample.
+     * @param capacity     The number of samples retained per feature.
+     */
+    public StateHistory(int featureCount, int capacity) {
+        Assertions.checkArgument(featureCount > 0 && capacity > 0);
+        this.featureCount = featureCount;
+        this.capacity = capacity;
+        this.samples = new float[featureCount * capacity];
+    }
+
+    /**
+     * Returns the number of samples retained, at most the capacity.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the maximum number of samples retained.
+     */
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Appends a sample, dropping the oldest one if the history is full.
+     *
+     * @param sample The value of each feature. Only the first {@code featureCount} values are read.
+     */
+    public void append(float[] sample) {
+        for (int feature = 0; feature < featureCount; feature++) {
+            samples[feature * capacity + nextSlot] = sample[feature];
+        }
+        nextSlot = nextSlot + 1 == capacity ? 0 : nextSlot + 1;
+        if (size < capacity) {
+            size++;
+        }
+    }
+
+    /**
+     * Returns a retained value.
+     *
+     * @param feature The feature index.
+     * @param age     How many samples ago the value was appended, 0 being the latest.
+     * @return The value, or 0 if fewer than {@code age + 1} samples have been appended.
+     */
+    public float get(int feature, int age) {
+        if (age >= size) {
+            return 0f;
+        }
+        int slot = nextSlot - 1 - age;
+        return samples[feature * capacity + (slot < 0 ? slot + capacity : slot)];
+    }
+
+    /**
+     * Writes the latest {@code windowLength} samples of each feature into {@code target}, one row of
+     * {@code windowLength} values per feature, oldest first. Rows are zero-padded at the front while
+     * fewer samples than the window length have been appended. The position of {@code target} is
+     * left undefined.
+     *
+     * @param target       The buffer receiving {@code featureCount * windowLength} values.
+     * @param offset       The index in {@code target} of the first row.
+     * @param windowLength The number of samples per row. Must not exceed the capacity.
+     */
+    public void writeWindow(FloatBuffer target, int offset, int windowLength) {
+        Assertions.checkArgument(windowLength <= capacity);
+        int count = Math.min(size, windowLength);
+        int padding = windowLength - count;
+        int firstSlot = nextSlot - count;
+        if (firstSlot < 0) {
+            firstSlot += capacity;
+        }
+        int headLength = Math.min(count, capacity - firstSlot);
+        for (int feature = 0; feature < featureCount; feature++) {
+            int rowStart = offset + feature * windowLength;
+            for (int i = 0; i < padding; i++) {
+                target.put(rowStart + i, 0f);
+            }
+            int featureStart = feature * capacity;
+            target.position(rowStart + padding);
+            target.put(samples, featureStart + firstSlot, headLength);
+            target.put(samples, featureStart, count - headLength);
+        }
+    }
+
+    /**
+     * Forgets all samples.
+     */
+    public void clear() {
+        nextSlot = 0;
+        size = 0;
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.exoplayer;
+
+import org.tensorflow.lite.Interpreter;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A {@link PensieveModel} backed by a TFLite {@link Interpreter}. The interpreter is created,
+ * its tensors allocated and a first inference run once at construction, so that every later
+ * {@link #run(ByteBuffer, ByteBuffer)} only pays for the inference itself.
+ *
+ * <p>Inputs and outputs are exchanged through direct, native-order {@link ByteBuffer ByteBuffers}.
+ * The interpreter binds such an input buffer to its input tensor instead of copying nested Java
+ * arrays element by element, and the argument holders passed to the interpreter are reused, so a
+ * run does no Java-side marshalling or allocation.
+ *
+ * <p>Instances are obtained from a {@link PensieveModelRegistry}, which owns them and closes them
+ * when the player is released.
+ */
+public final class TfLitePensieveModel implements PensieveModel {
+
+    private final String assetName;
+    private final MappedByteBuffer modelBuffer;
+    private final Interpreter interpreter;
+    private final Object[] inputs;
+    private final Map<Integer, Object> outputs;
+
+    private boolean closed;
+
+    /**
+     * @param assetName   The name of the asset the model was mapped from.
+     * @param modelBuffer The mapped TFLite flatbuffer. Must stay valid for the lifetime of the model.
+     * @param config      Provides the interpreter options.
+     */
+    /* package */ TfLitePensieveModel(
+            String assetName, MappedByteBuffer modelBuffer, PensieveInferenceConfig config) {
+        this.assetName = assetName;
+        this.modelBuffer = modelBuffer;
+        this.interpreter = new Interpreter(modelBuffer, config.toInterpreterOptions());
+        this.inputs = new Object[1];
+        this.outputs = new HashMap<>();
+        interpreter.allocateTensors();
+        warmUp();
+    }
+
+    @Override
+    public String getAssetName() {
+        return assetName;
+    }
+
+    @Override
+    public int getInputBytes() {
+        return interpreter.getInputTensor(0).numBytes();
+    }
+
+    @Override
+    public int getOutputBytes() {
+        return interpreter.getOutputTensor(0).numBytes();
+    }
+
+    @Override
+    public synchronized void run(ByteBuffer input, ByteBuffer output) {
+        if (closed) {
+            throw new IllegalStateException("Model " + assetName + " has been closed");
+        }
+        input.rewind();
+        output.rewind();
+        inputs[0] = input;
+        outputs.put(0, output);
+        interpreter.runForMultipleInputsOutputs(inputs, outputs);
+    }
+
+    @Override
+    public synchronized void close() {
+        if (!closed) {
+            closed = true;
+            interpreter.close();
+        }
+    }
+
+    /**
+     * Runs one inference on a zeroed state so that the first real decision does not pay for lazy
+     * kernel preparation inside the interpreter.
+     */
+    private void warmUp() {
+        ByteBuffer input = ByteBuffer.allocateDirect(getInputBytes()).order(ByteOrder.nativeOrder());
+        ByteBuffer output = ByteBuffer.allocateDirect(getOutputBytes()).order(ByteOrder.nativeOrder());
+        run(input, output);
+    }
+}
@@ -0,0 +1,315 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.exoplayer;
+
+import androidx.annotation.Nullable;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.TransferListener;
+
+/**
+ * Times network transfers from {@link TransferListener} callbacks and keeps the latest ones as
+ * samples in preallocated primitive arrays.
+ *
+ * <p>Each sample separates the time to first byte, from the request to the first bytes read, from
+ * the transfer itself. The throughput of a sample is the bytes read after the first read divided
+ * by the time since the first read, so it measures the link rather than the request latency.
+ *
+ * <p>Samples cover every network transfer, including manifests, initialization segments and
+ * abandoned chunks. A caller interested in one load looks its transfer up by the {@link DataSpec}
+ * the load reported, see {@link #getThroughputBytesPerS(DataSpec)}.
+ *
+ * <p>Each sample is also fed to an optional {@link BandwidthEstimator}, which is then queried
+ * through {@link #getBitrateEstimate()}.
+ *
+ * <p>Transfers are reported by the loader threads and samples read by the playback thread; both
+ * take the sampler's monitor for a few array accesses and neither allocates.
+ */
+public final class ThroughputSampler {
+
+    /**
+     * The default number of samples retained.
+     */
+    public static final int DEFAULT_CAPACITY = 64;
+    /**
+     * The number of transfers that can be timed at once. Further concurrent transfers are ignored.
+     */
+    public static final int MAX_ACTIVE_TRANSFERS = 4;
+
+    // Transfers in progress, keyed by source identity; a null source marks a free slot.
+    private final DataSource[] activeSources;
+    private final DataSpec[] activeDataSpecs;
+    private final long[] activeRequestNs;
+    private final long[] activeFirstByteNs;
+    private final long[] activeFirstReadBytes;
+    private final long[] activeBytes;
+
+    // Completed transfers, a ring indexed by sample number.
+    private final int capacity;
+    private final long[] sampleBytes;
+    private final long[] sampleTtfbNs;
+    private final long[] sampleTransferNs;
+    private final long[] samplePayloadBytes;
+    private final DataSpec[] sampleDataSpecs;
+    private long sampleCount;
+    @Nullable
+    private BandwidthEstimator estimator;
+
+    public ThroughputSampler() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity The number of samples retained.
+     */
+    public ThroughputSampler(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        }
+        this.activeSources = new DataSource[MAX_ACTIVE_TRANSFERS];
+        this.activeDataSpecs = new DataSpec[MAX_ACTIVE_TRANSFERS];
+        this.activeRequestNs = new long[MAX_ACTIVE_TRANSFERS];
+        this.activeFirstByteNs = new long[MAX_ACTIVE_TRANSFERS];
+        this.activeFirstReadBytes = new long[MAX_ACTIVE_TRANSFERS];
+        this.activeBytes = new long[MAX_ACTIVE_TRANSFERS];
+        this.capacity = capacity;
+        this.sampleBytes = new long[capacity];
+        this.sampleTtfbNs = new long[capacity];
+        this.sampleTransferNs = new long[capacity];
+        this.samplePayloadBytes = new long[capacity];
+        this.sampleDataSpecs = new DataSpec[capacity];
+    }
+
+    /**
+     * Sets the estimator fed with each new sample, replacing any previous one.
+     *
+     * @param estimator The estimator, or null to stop estimating.
+     */
+    public synchronized void setEstimator(@Nullable BandwidthEstimator estimator) {
+        this.estimator = estimator;
+    }
+
+    /**
+     * Returns the estimate of the estimator in bits per second, or {@link
+     * BandwidthEstimator#NO_ESTIMATE} if there is no estimator or no sample yet.
+     */
+    public synchronized long getBitrateEstimate() {
+        return estimator == null ? BandwidthEstimator.NO_ESTIMATE : estimator.getBitrateEstimate();
+    }
+
+    /**
+     * Called when a source starts opening a request, from {@link
+     * TransferListener#onTransferInitializing}.
+     */
+    public synchronized void onTransferInitializing(DataSource source, DataSpec dataSpec) {
+        int slot = findSlot(source);
+        if (slot == C.INDEX_UNSET) {
+            slot = findSlot(null);
+            if (slot == C.INDEX_UNSET) {
+                return;
+            }
+            activeSources[slot] = source;
+        }
+        activeDataSpecs[slot] = dataSpec;
+        activeRequestNs[slot] = System.nanoTime();
+        activeFirstByteNs[slot] = C.TIME_UNSET;
+        activeFirstReadBytes[slot] = 0;
+        activeBytes[slot] = 0;
+    }
+
+    /**
+     * Called when a source has opened its request, from {@link TransferListener#onTransferStart}.
+     * Only needed for sources that do not report initialization, which are then timed from here.
+     */
+    public synchronized void onTransferStart(DataSource source, DataSpec dataSpec) {
+        if (findSlot(source) == C.INDEX_UNSET) {
+            onTransferInitializing(source, dataSpec);
+        }
+    }
+
+    /**
+     * Called when a source has read bytes, from {@link TransferListener#onBytesTransferred}.
+     */
+    public synchronized void onBytesTransferred(DataSource source, int bytes) {
+        int slot = findSlot(source);
+        if (slot == C.INDEX_UNSET) {
+            return;
+        }
+        if (activeFirstByteNs[slot] == C.TIME_UNSET) {
+            activeFirstByteNs[slot] = System.nanoTime();
+            activeFirstReadBytes[slot] = bytes;
+        }
+        activeBytes[slot] += bytes;
+    }
+
+    /**
+     * Called when a source has finished its transfer, from {@link TransferListener#onTransferEnd}.
+     * Adds a sample if the transfer read any bytes.
+     */
+    public synchronized void onTransferEnd(DataSource source) {
+        int slot = findSlot(source);
+        if (slot == C.INDEX_UNSET) {
+            return;
+        }
+        activeSources[slot] = null;
+        DataSpec dataSpec = activeDataSpecs[slot];
+        activeDataSpecs[slot] = null;
+        if (activeBytes[slot] == 0) {
+            return;
+        }
+        long endNs = System.nanoTime();
+        int index = (int) (sampleCount % capacity);
+        sampleDataSpecs[index] = dataSpec;
+        sampleBytes[index] = activeBytes[slot];
+        sampleTtfbNs[index] = activeFirstByteNs[slot] - activeRequestNs[slot];
+        sampleTransferNs[index] = endNs - activeFirstByteNs[slot];
+        samplePayloadBytes[index] = activeBytes[slot] - activeFirstReadBytes[slot];
+        sampleCount++;
+        if (estimator != null) {
+            if (sampleTransferNs[index] > 0 && samplePayloadBytes[index] > 0) {
+                estimator.addSample(samplePayloadBytes[index], sampleTransferNs[index] / 1000);
+            } else {
+                estimator.addSample(sampleBytes[index], (sampleTtfbNs[index] + sampleTransferNs[index]) / 1000);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of samples added, including those no longer retained. A caller can compare
+     * it with an earlier value to tell whether a transfer completed since.
+     */
+    public synchronized long getSampleCount() {
+        return sampleCount;
+    }
+
+    /**
+     * Returns the size of the latest transfer in bytes, or 0 if there is none.
+     */
+    public synchronized long getLastBytes() {
+        return sampleCount == 0 ? 0 : sampleBytes[latestIndex()];
+    }
+
+    /**
+     * Returns the time to first byte of the latest transfer in milliseconds, or 0 if there is none.
+     */
+    public synchronized double getLastTtfbMs() {
+        return sampleCount == 0 ? 0 : sampleTtfbNs[latestIndex()] / 1000000.0;
+    }
+
+    /**
+     * Returns the duration of the latest transfer from its first byte in milliseconds, or 0 if
+     * there is none.
+     */
+    public synchronized double getLastTransferMs() {
+        return sampleCount == 0 ? 0 : sampleTransferNs[latestIndex()] / 1000000.0;
+    }
+
+    /**
+     * Returns the throughput of the latest transfer in bytes per second, or 0 if there is none.
+     */
+    public synchronized double getLastThroughputBytesPerS() {
+        return sampleCount == 0 ? 0 : throughputBytesPerS(latestIndex());
+    }
+
+    /**
+     * Returns the throughput of the latest retained transfer of a {@link DataSpec}, in bytes per
+     * second. Transfers match if they read the same position of the same URI.
+     *
+     * @param dataSpec The data spec reported for a load.
+     * @return The throughput, or 0 if no retained transfer matches.
+     */
+    public synchronized double getThroughputBytesPerS(DataSpec dataSpec) {
+        int index = findSample(dataSpec);
+        return index == C.INDEX_UNSET ? 0 : throughputBytesPerS(index);
+    }
+
+    /**
+     * Returns the time to first byte of the latest retained transfer of a {@link DataSpec}, in
+     * milliseconds.
+     *
+     * @param dataSpec The data spec reported for a load.
+     * @return The time to first byte, or 0 if no retained transfer matches.
+     */
+    public synchronized double getTtfbMs(DataSpec dataSpec) {
+        int index = findSample(dataSpec);
+        return index == C.INDEX_UNSET ? 0 : sampleTtfbNs[index] / 1000000.0;
+    }
+
+    /**
+     * Copies the throughput of the latest transfers, newest first, in bytes per second.
+     *
+     * @param out Receives up to {@code out.length} throughputs.
+     * @return The number of throughputs copied.
+     */
+    public synchronized int getRecentThroughputs(double[] out) {
+        int count = (int) Math.min(Math.min(sampleCount, capacity), out.length);
+        for (int i = 0; i < count; i++) {
+            out[i] = throughputBytesPerS((int) ((sampleCount - 1 - i) % capacity));
+        }
+        return count;
+    }
+
+    /**
+     * Copies the time to first byte of the latest transfers, newest first, in milliseconds.
+     *
+     * @param out Receives up to {@code out.length} times.
+     * @return The number of times copied.
+     */
+    public synchronized int getRecentTtfbsMs(double[] out) {
+        int count = (int) Math.min(Math.min(sampleCount, capacity), out.length);
+        for (int i = 0; i < count; i++) {
+            out[i] = sampleTtfbNs[(int) ((sampleCount - 1 - i) % capacity)] / 1000000.0;
+        }
+        return count;
+    }
+
+    private int findSample(DataSpec dataSpec) {
+        long retained = Math.min(sampleCount, capacity);
+        for (long i = 0; i < retained; i++) {
+            int index = (int) ((sampleCount - 1 - i) % capacity);
+            DataSpec sampleDataSpec = sampleDataSpecs[index];
+            if (sampleDataSpec != null && sampleDataSpec.position == dataSpec.position
+                    && sampleDataSpec.uri.equals(dataSpec.uri)) {
+                return index;
+            }
+        }
+        return C.INDEX_UNSET;
+    }
+
+    private int latestIndex() {
+        return (int) ((sampleCount - 1) % capacity);
+    }
+
+    private double throughputBytesPerS(int index) {
+        if (sampleTransferNs[index] > 0 && samplePayloadBytes[index] > 0) {
+            return samplePayloadBytes[index] * 1e9 / sampleTransferNs[index];
+        }
+        // A transfer read in one go has no duration after its first byte; include the latency.
+        long totalNs = sampleTtfbNs[index] + sampleTransferNs[index];
+        return totalNs <= 0 ? 0 : sampleBytes[index] * 1e9 / totalNs;
+    }
+
+    private int findSlot(DataSource source) {
+        for (int i = 0; i < MAX_ACTIVE_TRANSFERS; i++) {
+            if (activeSources[i] == source) {
+                return i;
+            }
+        }
+        return C.INDEX_UNSET;
+    }
+}
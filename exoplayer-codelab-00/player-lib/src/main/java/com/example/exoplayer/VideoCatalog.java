@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.exoplayer;
+
+import android.content.Context;
+
+import androidx.annotation.Nullable;
+
+import com.google.android.exoplayer2.Format;
+import com.google.android.exoplayer2.trackselection.TrackSelection;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * The bitrate ladder and chunk count of each known video, read once from the {@code
+ * video_catalog.txt} asset and looked up by content ID.
+ *
+ * <p>Each line of the descriptor is a content ID, the number of chunks a session decides and the
+ * bitrate of each quality in kbps, lowest first, separated by whitespace. Lines starting with
+ * {@code #} are comments. The ladders are the measured average bitrates the Pensieve model was
+ * trained and evaluated with. A video missing from the catalog is played with the ladder announced
+ * by its manifest, see {@link #resolveBitrateLadderKbps}.
+ */
+public final class VideoCatalog {
+
+    /**
+     * The name of the descriptor asset.
+     */
+    public static final String ASSET_NAME = "video_catalog.txt";
+
+    /**
+     * A catalog without videos, in which every ladder comes from the manifest.
+     */
+    public static final VideoCatalog EMPTY =
+            new VideoCatalog(Collections.<String, Entry>emptyMap());
+
+    @Nullable
+    private static VideoCatalog defaultCatalog;
+
+    /**
+     * A video of the catalog.
+     */
+    public static final class Entry {
+
+        /**
+         * The content ID, the name of the video's asset directory.
+         */
+        public final String contentId;
+        /**
+         * The number of chunks a session decides.
+         */
+        public final int chunkCount;
+        /**
+         * The bitrate of each quality in kbps, lowest first.
+         */
+        public final double[] bitrateLadderKbps;
+
+        private Entry(String contentId, int chunkCount, double[] bitrateLadderKbps) {
+            this.contentId = contentId;
+            this.chunkCount = chunkCount;
+            this.bitrateLadderKbps = bitrateLadderKbps;
+        }
+    }
+
+    private final Map<String, Entry> entries;
+
+    /**
+     * Returns the catalog of the app, reading the descriptor asset on the first call. A missing
+     * descriptor yields {@link #EMPTY}; a malformed one is logged and also yields {@link #EMPTY}.
+     *
+     * @param context A context used to open the app assets.
+     */
+    public static synchronized VideoCatalog getDefault(Context context) {
+        if (defaultCatalog == null) {
+            VideoCatalog catalog = EMPTY;
+            try {
+                Reader reader = new InputStreamReader(context.getAssets().open(ASSET_NAME), "UTF-8");
+                try {
+                    catalog = parse(reader);
+                } finally {
+                    reader.close();
+                }
+            } catch (FileNotFoundException e) {
+                // No descriptor: every ladder comes from the manifest.
+            } catch (IOException e) {
+                System.out.println("Could not read video catalog");
+                e.printStackTrace();
+            }
+            defaultCatalog = catalog;
+        }
+        return defaultCatalog;
+    }
+
+    /**
+     * Parses a descriptor.
+     *
+     * @param reader The descriptor. Not closed.
+     * @return The catalog.
+     * @throws IOException If the descriptor could not be read or holds a malformed line.
+     */
+    public static VideoCatalog parse(Reader reader) throws IOException {
+        BufferedReader lines = new BufferedReader(reader);
+        Map<String, Entry> entries = new HashMap<>();
+        String line;
+        int lineNumber = 0;
+        while ((line = lines.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split("\\s+");
+            if (fields.length < 3) {
+                throw new IOException("Malformed catalog line " + lineNumber);
+            }
+            try {
+                double[] bitrateLadderKbps = new double[fields.length - 2];
+                for (int i = 0; i < bitrateLadderKbps.length; i++) {
+                    bitrateLadderKbps[i] = Double.parseDouble(fields[i + 2]);
+                }
+                entries.put(fields[0],
+                        new Entry(fields[0], Integer.parseInt(fields[1]), bitrateLadderKbps));
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed catalog line " + lineNumber, e);
+            }
+        }
+        return new VideoCatalog(entries);
+    }
+
+    private VideoCatalog(Map<String, Entry> entries) {
+        this.entries = entries;
+    }
+
+    /**
+     * Returns the video with the given content ID, or null if it is not in the catalog.
+     */
+    @Nullable
+    public Entry get(String contentId) {
+        return entries.get(contentId);
+    }
+
+    /**
+     * Returns the content IDs of the videos in the catalog, sorted.
+     */
+    public Set<String> getContentIds() {
+        return Collections.unmodifiableSet(new TreeSet<>(entries.keySet()));
+    }
+
+    /**
+     * Returns the number of videos in the catalog.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the bitrate ladder of a selection playing a video: the catalog's ladder if it has one
+     * entry per track, otherwise the one announced by the manifest.
+     *
+     * @param contentId The content ID of the video.
+     * @param selection The selection.
+     * @return The bitrate of each quality in kbps, lowest first.
+     */
+    public double[] getBitrateLadderKbps(String contentId, TrackSelection selection) {
+        Entry entry = get(contentId);
+        return resolveBitrateLadderKbps(entry == null ? null : entry.bitrateLadderKbps, selection);
+    }
+
+    /**
+     * Returns {@code bitrateLadderKbps} if it has one entry per track of {@code selection},
+     * otherwise the ladder announced by the manifest: the {@link Format#bitrate} of each track of the
+     * selection, lowest first. An unknown track bitrate is 0.
+     *
+     * @param bitrateLadderKbps A ladder from the catalog, or null.
+     * @param selection         The selection.
+     * @return The bitrate of each quality in kbps, lowest first.
+     */
+    public static double[] resolveBitrateLadderKbps(
+            @Nullable double[] bitrateLadderKbps, TrackSelection selection) {
+        int length = selection.length();
+        if (bitrateLadderKbps != null && bitrateLadderKbps.length == length) {
+            return bitrateLadderKbps;
+        }
+        double[] manifestLadderKbps = new double[length];
+        for (int i = 0; i < length; i++) {
+            // Selections order their tracks by decreasing bitrate.
+            int bitrate = selection.getFormat(length - i - 1).bitrate;
+            manifestLadderKbps[i] = bitrate == Format.NO_VALUE ? 0 : bitrate / 1000.0;
+        }
+        return manifestLadderKbps;
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.exoplayer;
+
+import android.content.Context;
+
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+
+/**
+ * What the track selections need to know about a video besides its manifest: the bitrate ladder
+ * and number of chunks from the {@link VideoCatalog}, and the size of every chunk. Immutable, so
+ * one instance is shared by every selection playing the video through a {@link
+ * VideoMetadataCache}.
+ */
+public final class VideoMetadata {
+
+    /**
+     * The content ID, the name of the video's asset directory.
+     */
+    public final String contentId;
+    /**
+     * The bitrate of each quality in kbps, lowest first, or null if the video is not in the {@link
+     * VideoCatalog}.
+     */
+    @Nullable
+    public final double[] bitrateLadderKbps;
+    /**
+     * The number of chunks a session decides, or 0 if the video is not in the {@link VideoCatalog}.
+     */
+    public final int chunkCount;
+    /**
+     * The size of every chunk, or null if the video has no chunk size index.
+     */
+    @Nullable
+    public final ChunkSizeIndex chunkSizes;
+
+    /**
+     * Loads the metadata of a video.
+     *
+     * @param context   A context used to open the app assets.
+     * @param contentId The name of the video's asset directory.
+     * @return The metadata. A missing or unreadable chunk size index is logged and left null.
+     */
+    public static VideoMetadata load(Context context, String contentId) {
+        ChunkSizeIndex chunkSizes = null;
+        try {
+            chunkSizes = ChunkSizeIndex.open(context, contentId);
+        } catch (IOException e) {
+            System.out.println("Could not open chunk size index for " + contentId);
+            e.printStackTrace();
+        }
+        VideoCatalog.Entry entry = VideoCatalog.getDefault(context).get(contentId);
+        if (entry == null) {
+            return new VideoMetadata(contentId, null, 0, chunkSizes);
+        }
+        return new VideoMetadata(contentId, entry.bitrateLadderKbps, entry.chunkCount, chunkSizes);
+    }
+
+    /**
+     * @param contentId         The content ID.
+     * @param bitrateLadderKbps The bitrate of each quality in kbps, lowest first, or null.
+     * @param chunkCount        The number of chunks a session decides.
+     * @param chunkSizes        The size of every chunk, or null.
+     */
+    public VideoMetadata(
+            String contentId,
+            @Nullable double[] bitrateLadderKbps,
+            int chunkCount,
+            @Nullable ChunkSizeIndex chunkSizes) {
+        this.contentId = contentId;
+        this.bitrateLadderKbps = bitrateLadderKbps == null ? null : bitrateLadderKbps.clone();
+        this.chunkCount = chunkCount;
+        this.chunkSizes = chunkSizes;
+    }
+
+    /**
+     * Returns the approximate number of bytes the ladder and the chunk size index occupy.
+     */
+    public int getSizeInBytes() {
+        int ladderBytes = bitrateLadderKbps == null ? 0 : 8 * bitrateLadderKbps.length;
+        return ladderBytes + (chunkSizes == null ? 0 : chunkSizes.getSizeInBytes());
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.exoplayer;
+
+import android.content.Context;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded least recently used cache of {@link VideoMetadata}, keyed by content ID.
+ *
+ * <p>The track selector creates a new selection on every track change and re-prepare, and a new
+ * factory is created for every player. Looking the metadata up here instead of loading it makes
+ * creating a selection constant time once a video has been played. {@link #getDefault()} is shared
+ * by the whole process; the cache is thread safe.
+ */
+public final class VideoMetadataCache {
+
+    /**
+     * The default number of videos whose metadata is retained.
+     */
+    public static final int DEFAULT_CAPACITY = 16;
+
+    private static final VideoMetadataCache DEFAULT = new VideoMetadataCache(DEFAULT_CAPACITY);
+
+    private final int capacity;
+    private final LinkedHashMap<String, VideoMetadata> entries;
+
+    private long hitCount;
+    private long missCount;
+    private long evictionCount;
+    private long sizeInBytes;
+
+    /**
+     * Returns the cache shared by the whole process.
+     */
+    public static VideoMetadataCache getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * @param capacity The maximum number of videos whose metadata is retained.
+     */
+    public VideoMetadataCache(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        }
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<>(capacity, 0.75f, /* accessOrder= */ true);
+    }
+
+    /**
+     * Returns the metadata of a video, loading it with {@link VideoMetadata#load} on a miss and
+     * evicting the least recently used video if the cache is full.
+     *
+     * @param context   A context used to open the app assets on a miss.
+     * @param contentId The name of the video's asset directory.
+     * @return The metadata.
+     */
+    public synchronized VideoMetadata get(Context context, String contentId) {
+        VideoMetadata metadata = entries.get(contentId);
+        if (metadata != null) {
+            hitCount++;
+            return metadata;
+        }
+        missCount++;
+        metadata = VideoMetadata.load(context, contentId);
+        put(metadata);
+        return metadata;
+    }
+
+    /**
+     * Caches the metadata of a video, replacing any cached for the same content ID.
+     */
+    public synchronized void put(VideoMetadata metadata) {
+        VideoMetadata previous = entries.put(metadata.contentId, metadata);
+        if (previous != null) {
+            sizeInBytes -= previous.getSizeInBytes();
+        }
+        sizeInBytes += metadata.getSizeInBytes();
+        if (entries.size() > capacity) {
+            Map.Entry<String, VideoMetadata> eldest = entries.entrySet().iterator().next();
+            sizeInBytes -= eldest.getValue().getSizeInBytes();
+            entries.remove(eldest.getKey());
+            evictionCount++;
+        }
+    }
+
+    /**
+     * Returns the number of lookups that found the metadata cached.
+     */
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * Returns the number of lookups that loaded the metadata.
+     */
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * Returns the fraction of lookups that found the metadata cached.
+     */
+    public synchronized double getHitRate() {
+        long lookups = hitCount + missCount;
+        return lookups == 0 ? 0.0 : (double) hitCount / lookups;
+    }
+
+    /**
+     * Returns the number of videos evicted to stay within capacity.
+     */
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * Returns the approximate number of bytes occupied by the cached metadata.
+     */
+    public synchronized long getSizeInBytes() {
+        return sizeInBytes;
+    }
+
+    /**
+     * Returns the number of videos whose metadata is cached.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Forgets all metadata. The hit, miss and eviction counts are kept.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        sizeInBytes = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "size=" + entries.size() + "/" + capacity
+                + " bytes=" + sizeInBytes
+                + " hits=" + hitCount
+                + " misses=" + missCount
+                + " evictions=" + evictionCount
+                + " hitRate=" + getHitRate();
+    }
+}
@@ -0,0 +1,60 @@
+#!/usr/bin/env python3
+"""Builds the binary chunk size index read by ChunkSizeIndex from the
+video_size_<quality> text files of each video in the assets directory.
+
+Layout, all little-endian int32:
+
+    magic 'CHNK', version, quality count, chunk count, then one column of
+    chunk count sizes in bytes per quality, lowest quality first.
+
+Qualities with fewer lines than the longest are padded with zeros.
+
+Usage:
+    build_chunk_size_index.py [assets_dir]
+"""
+
+import os
+import struct
+import sys
+
+ASSETS = os.path.normpath(os.path.join(os.path.dirname(os.path.abspath(__file__)),
+                                      '..', 'player-lib', 'src', 'main', 'assets'))
+MAGIC = 0x4B4E4843  # 'CHNK'
+VERSION = 1
+INDEX_NAME = 'chunk_sizes.bin'
+
+
+def read_sizes(path):
+    with open(path) as f:
+        return [int(token) for token in f.read().split()]
+
+
+def build_index(video_dir):
+    columns = []
+    while os.path.exists(os.path.join(video_dir, 'video_size_%d' % len(columns))):
+        columns.append(read_sizes(os.path.join(video_dir, 'video_size_%d' % len(columns))))
+    if not columns:
+        return None
+    chunk_count = max(len(column) for column in columns)
+    output_path = os.path.join(video_dir, INDEX_NAME)
+    with open(output_path, 'wb') as out:
+        out.write(struct.pack('<iiii', MAGIC, VERSION, len(columns), chunk_count))
+        for column in columns:
+            padded = column + [0] * (chunk_count - len(column))
+            out.write(struct.pack('<%di' % chunk_count, *padded))
+    return output_path, len(columns), chunk_count
+
+
+def main(argv):
+    assets = argv[1] if len(argv) > 1 else ASSETS
+    for name in sorted(os.listdir(assets)):
+        video_dir = os.path.join(assets, name)
+        if not os.path.isdir(video_dir):
+            continue
+        result = build_index(video_dir)
+        if result:
+            print('Wrote %s (%d qualities, %d chunks)' % result)
+
+
+if __name__ == '__main__':
+    main(sys.argv)
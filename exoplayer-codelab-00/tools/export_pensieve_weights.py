@@ -0,0 +1,378 @@
+#!/usr/bin/env python3
+"""Exports the Pensieve actor weights from pretrained_model.tflite into the
+compact binaries read by JavaPensieveModel.
+
+The TFLite flatbuffer is parsed directly, so the script only needs a Python 3
+interpreter. Layers are written in the fixed order JavaPensieveModel expects:
+
+    magic 'PNSV' (int32), version (int32), layer count (int32), then per layer
+    output count (int32), input count (int32), weights [output][input]
+    (float32) and biases [output] (float32), all little-endian.
+
+With --int8 a dynamic-range quantized variant (version 2) is written instead.
+Each layer then holds per-output scales [output] (float32), symmetric int8
+weights [output][input] and float32 biases [output]. Activations stay float.
+
+With --reference the script instead evaluates the whole TFLite graph, operator
+by operator, on seeded random states and writes each state and the graph's
+output. PensieveModelVerifier --reference checks JavaPensieveModel against that
+file on a plain JVM, which also checks the single tap export below.
+
+The tflearn conv_1d layers see each state row as a single position with the
+row values as channels, so with SAME padding only kernel tap 1 of the four
+ever touches the input. Only that tap is exported, which turns each of them
+into a dense layer.
+
+Usage:
+    export_pensieve_weights.py [--int8] [model.tflite] [output.bin]
+    export_pensieve_weights.py --reference [model.tflite] [reference.txt]
+"""
+
+import math
+import os
+import random
+import struct
+import sys
+
+ASSETS = os.path.normpath(os.path.join(os.path.dirname(os.path.abspath(__file__)),
+                                      '..', 'player-lib', 'src', 'main', 'assets'))
+MAGIC = 0x56534E50  # 'PNSV'
+VERSION_FLOAT = 1
+VERSION_INT8 = 2
+
+S_INFO = 6
+S_LEN = 8
+# Upper bound of each state row, as in PensieveModelVerifier.
+ROW_SCALES = [1.0, 6.0, 5.0, 2.0, 3.0, 1.0]
+REFERENCE_STATE_COUNT = 300
+REFERENCE_SEED = 0
+
+# Builtin operator codes and fused activations of the TFLite schema.
+OP_CONCATENATION = 2
+OP_CONV_2D = 3
+OP_FULLY_CONNECTED = 9
+OP_RESHAPE = 22
+OP_SOFTMAX = 25
+OP_STRIDED_SLICE = 45
+ACTIVATION_NONE = 0
+ACTIVATION_RELU = 1
+PADDING_SAME = 0
+
+# (weights tensor, bias tensor, conv kernel tap or None), in engine order.
+LAYERS = [
+    ('actor/FullyConnected/W/transpose', 'actor/FullyConnected/MatMul_bias', None),
+    ('actor/FullyConnected_1/W/transpose', 'actor/FullyConnected_1/MatMul_bias', None),
+    ('actor/Conv1D/W', 'actor/Conv1D/Conv2D_bias', 1),
+    ('actor/Conv1D_1/W', 'actor/Conv1D_1/Conv2D_bias', 1),
+    ('actor/Conv1D_2/W', 'actor/Conv1D_2/Conv2D_bias', 1),
+    ('actor/FullyConnected_2/W/transpose', 'actor/FullyConnected_2/MatMul_bias', None),
+    ('actor/FullyConnected_3/W/transpose', 'actor/FullyConnected_3/MatMul_bias', None),
+    ('actor/FullyConnected_4/W/transpose', 'actor/FullyConnected_4/MatMul_bias', None),
+]
+
+
+class FlatBuffer(object):
+    """Just enough of a flatbuffer reader for the TFLite schema."""
+
+    def __init__(self, data):
+        self.data = data
+
+    def u32(self, offset):
+        return struct.unpack_from('<I', self.data, offset)[0]
+
+    def i32(self, offset):
+        return struct.unpack_from('<i', self.data, offset)[0]
+
+    def table(self, offset):
+        vtable = offset - self.i32(offset)
+        vtable_size = struct.unpack_from('<H', self.data, vtable)[0]
+        fields = [struct.unpack_from('<H', self.data, vtable + 4 + 2 * i)[0]
+                  for i in range((vtable_size - 4) // 2)]
+        return offset, fields
+
+    def field(self, table, index):
+        offset, fields = table
+        if index < len(fields) and fields[index]:
+            return offset + fields[index]
+        return None
+
+    def deref(self, offset):
+        return offset + self.u32(offset)
+
+    def vector(self, offset):
+        start = self.deref(offset)
+        return start + 4, self.u32(start)
+
+    def tables(self, offset):
+        start, count = self.vector(offset)
+        return [self.table(self.deref(start + 4 * i)) for i in range(count)]
+
+    def ints(self, offset):
+        start, count = self.vector(offset)
+        return [self.i32(start + 4 * i) for i in range(count)]
+
+    def string(self, offset):
+        start, count = self.vector(offset)
+        return self.data[start:start + count].decode('utf-8')
+
+
+def read_tensors(path):
+    with open(path, 'rb') as f:
+        fb = FlatBuffer(f.read())
+    model = fb.table(fb.deref(0))
+    buffers = fb.tables(fb.field(model, 4))
+    subgraph = fb.tables(fb.field(model, 2))[0]
+    tensors = {}
+    for tensor in fb.tables(fb.field(subgraph, 0)):
+        name = fb.string(fb.field(tensor, 3))
+        shape = fb.ints(fb.field(tensor, 0)) if fb.field(tensor, 0) else []
+        tensor_type = fb.data[fb.field(tensor, 1)] if fb.field(tensor, 1) else 0
+        buffer_index = fb.u32(fb.field(tensor, 2)) if fb.field(tensor, 2) else 0
+        data_field = fb.field(buffers[buffer_index], 0)
+        values = None
+        if data_field is not None and tensor_type == 0:  # FLOAT32
+            start, count = fb.vector(data_field)
+            values = list(struct.unpack_from('<%df' % (count // 4), fb.data, start))
+        tensors[name] = (shape, values)
+    return tensors
+
+
+class Graph(object):
+    """Evaluates the TFLite graph in plain Python, for the operators the Pensieve
+    actor uses. Tensors are (shape, flat row-major values) pairs."""
+
+    def __init__(self, path):
+        with open(path, 'rb') as f:
+            fb = FlatBuffer(f.read())
+        model = fb.table(fb.deref(0))
+        codes = []
+        for code in fb.tables(fb.field(model, 1)):
+            deprecated = fb.field(code, 0)
+            builtin = fb.field(code, 3)
+            codes.append(fb.i32(builtin) if builtin is not None
+                         else struct.unpack_from('<b', fb.data, deprecated)[0])
+        buffers = fb.tables(fb.field(model, 4))
+        subgraph = fb.tables(fb.field(model, 2))[0]
+        self.fb = fb
+        self.shapes = []
+        self.constants = {}
+        for index, tensor in enumerate(fb.tables(fb.field(subgraph, 0))):
+            shape = fb.ints(fb.field(tensor, 0)) if fb.field(tensor, 0) else []
+            tensor_type = fb.data[fb.field(tensor, 1)] if fb.field(tensor, 1) else 0
+            buffer_index = fb.u32(fb.field(tensor, 2)) if fb.field(tensor, 2) else 0
+            data_field = fb.field(buffers[buffer_index], 0)
+            self.shapes.append(shape)
+            if data_field is not None:
+                start, count = fb.vector(data_field)
+                if count:
+                    fmt = '<%df' if tensor_type == 0 else '<%di'  # FLOAT32 or INT32
+                    self.constants[index] = list(
+                        struct.unpack_from(fmt % (count // 4), fb.data, start))
+        self.input = fb.ints(fb.field(subgraph, 1))[0]
+        self.output = fb.ints(fb.field(subgraph, 2))[0]
+        self.operators = []
+        for op in fb.tables(fb.field(subgraph, 3)):
+            opcode = fb.u32(fb.field(op, 0)) if fb.field(op, 0) else 0
+            options = fb.field(op, 4)
+            self.operators.append((codes[opcode], fb.ints(fb.field(op, 1)),
+                                   fb.ints(fb.field(op, 2)),
+                                   fb.table(fb.deref(options)) if options else None))
+
+    def option(self, options, index, fmt, default):
+        field = self.fb.field(options, index) if options else None
+        return default if field is None else struct.unpack_from(fmt, self.fb.data, field)[0]
+
+    def run(self, state):
+        values = dict((i, (self.shapes[i], v)) for i, v in self.constants.items())
+        values[self.input] = (self.shapes[self.input], list(state))
+        for code, inputs, outputs, options in self.operators:
+            args = [values[i] for i in inputs if i >= 0]
+            shape = self.shapes[outputs[0]]
+            if code == OP_STRIDED_SLICE:
+                result = self.strided_slice(args, options)
+            elif code == OP_RESHAPE:
+                result = args[0][1]
+            elif code == OP_FULLY_CONNECTED:
+                result = self.fully_connected(args, options)
+            elif code == OP_CONV_2D:
+                result = self.conv_2d(args, shape, options)
+            elif code == OP_CONCATENATION:
+                result = self.concatenation(args, options)
+            elif code == OP_SOFTMAX:
+                result = softmax(args[0][1], self.option(options, 0, '<f', 1.0))
+            else:
+                raise ValueError('Unsupported operator %d' % code)
+            values[outputs[0]] = (shape, result)
+        return values[self.output][1]
+
+    def strided_slice(self, args, options):
+        (shape, data), (_, begin), (_, end), (_, strides) = args
+        begin_mask = self.option(options, 0, '<i', 0)
+        end_mask = self.option(options, 1, '<i', 0)
+        shrink_axis_mask = self.option(options, 4, '<i', 0)
+        ranges = []
+        for d, size in enumerate(shape):
+            b = 0 if begin_mask & (1 << d) else (begin[d] + size if begin[d] < 0 else begin[d])
+            e = size if end_mask & (1 << d) else (end[d] + size if end[d] < 0 else end[d])
+            if shrink_axis_mask & (1 << d):
+                # A shrunk dimension keeps the single element at begin.
+                b = begin[d] + size if begin[d] < 0 else begin[d]
+                e = b + 1
+            ranges.append(range(b, min(e, size), strides[d]))
+        result = []
+        for index in product(ranges):
+            result.append(data[flat_index(shape, index)])
+        return result
+
+    def fully_connected(self, args, options):
+        (_, data), (weights_shape, weights), (_, bias) = args
+        outputs, inputs = weights_shape
+        result = [bias[o] + sum(weights[o * inputs + i] * data[i] for i in range(inputs))
+                  for o in range(outputs)]
+        return activate(result, self.option(options, 0, '<b', ACTIVATION_NONE))
+
+    def conv_2d(self, args, output_shape, options):
+        (input_shape, data), (filter_shape, weights), (_, bias) = args
+        _, height, width, channels = input_shape
+        outputs, kernel_height, kernel_width, _ = filter_shape
+        _, output_height, output_width, _ = output_shape
+        stride_w = self.option(options, 1, '<i', 1)
+        stride_h = self.option(options, 2, '<i', 1)
+        pad_top = pad_left = 0
+        if self.option(options, 0, '<b', PADDING_SAME) == PADDING_SAME:
+            pad_top = max((output_height - 1) * stride_h + kernel_height - height, 0) // 2
+            pad_left = max((output_width - 1) * stride_w + kernel_width - width, 0) // 2
+        result = []
+        for y in range(output_height):
+            for x in range(output_width):
+                for o in range(outputs):
+                    total = bias[o]
+                    for ky in range(kernel_height):
+                        for kx in range(kernel_width):
+                            iy = y * stride_h + ky - pad_top
+                            ix = x * stride_w + kx - pad_left
+                            if 0 <= iy < height and 0 <= ix < width:
+                                for c in range(channels):
+                                    total += (weights[flat_index(filter_shape, (o, ky, kx, c))]
+                                              * data[flat_index(input_shape, (0, iy, ix, c))])
+                    result.append(total)
+        return activate(result, self.option(options, 3, '<b', ACTIVATION_NONE))
+
+    def concatenation(self, args, options):
+        axis = self.option(options, 0, '<i', 0)
+        rank = len(args[0][0])
+        if axis < 0:
+            axis += rank
+        # Only the batch dimension, of size 1, precedes the axis in this graph.
+        assert all(size == 1 for size in args[0][0][:axis])
+        result = []
+        for _, data in args:
+            result.extend(data)
+        return activate(result, self.option(options, 1, '<b', ACTIVATION_NONE))
+
+
+def product(ranges):
+    if not ranges:
+        yield ()
+        return
+    for first in ranges[0]:
+        for rest in product(ranges[1:]):
+            yield (first,) + rest
+
+
+def flat_index(shape, index):
+    flat = 0
+    for size, i in zip(shape, index):
+        flat = flat * size + i
+    return flat
+
+
+def activate(values, activation):
+    if activation == ACTIVATION_RELU:
+        return [max(v, 0.0) for v in values]
+    if activation != ACTIVATION_NONE:
+        raise ValueError('Unsupported activation %d' % activation)
+    return values
+
+
+def softmax(values, beta):
+    largest = max(values)
+    exps = [math.exp(beta * (v - largest)) for v in values]
+    total = sum(exps)
+    return [e / total for e in exps]
+
+
+def write_reference(model_path, output_path):
+    graph = Graph(model_path)
+    generator = random.Random(REFERENCE_SEED)
+    with open(output_path, 'w') as out:
+        for _ in range(REFERENCE_STATE_COUNT):
+            state = [generator.random() * ROW_SCALES[row]
+                     for row in range(S_INFO) for _ in range(S_LEN)]
+            # Round through float32 so the Java side reads back the exact input.
+            state = [struct.unpack('<f', struct.pack('<f', v))[0] for v in state]
+            out.write('State:\n')
+            for row in range(S_INFO):
+                out.write('\t'.join(repr(v) for v in state[row * S_LEN:(row + 1) * S_LEN]) + '\n')
+            out.write('Output:\n')
+            out.write('\t'.join(repr(v) for v in graph.run(state)) + '\n')
+    print('Wrote %d reference states to %s' % (REFERENCE_STATE_COUNT, output_path))
+
+
+def layer_weights(tensors, weights_name, bias_name, tap):
+    shape, weights = tensors[weights_name]
+    _, bias = tensors[bias_name]
+    if tap is None:
+        outputs, inputs = shape
+        return outputs, inputs, weights, bias
+    # Conv2D filter layout is [output][kernel height][kernel width][input].
+    outputs, kernel_height, kernel_width, inputs = shape
+    assert kernel_width == 1
+    selected = []
+    for o in range(outputs):
+        start = (o * kernel_height + tap) * inputs
+        selected.extend(weights[start:start + inputs])
+    return outputs, inputs, selected, bias
+
+
+def quantize_rows(outputs, inputs, weights):
+    scales = []
+    quantized = []
+    for o in range(outputs):
+        row = weights[o * inputs:(o + 1) * inputs]
+        scale = max(abs(w) for w in row) / 127.0 or 1.0
+        scales.append(scale)
+        quantized.extend(max(-127, min(127, int(round(w / scale)))) for w in row)
+    return scales, quantized
+
+
+def main(argv):
+    int8 = '--int8' in argv
+    reference = '--reference' in argv
+    args = [arg for arg in argv[1:] if arg not in ('--int8', '--reference')]
+    if reference:
+        write_reference(args[0] if len(args) > 0 else os.path.join(ASSETS, 'pretrained_model.tflite'),
+                        args[1] if len(args) > 1 else 'pensieve_reference.txt')
+        return
+    default_output = 'pensieve_actor_int8.bin' if int8 else 'pensieve_actor.bin'
+    model_path = args[0] if len(args) > 0 else os.path.join(ASSETS, 'pretrained_model.tflite')
+    output_path = args[1] if len(args) > 1 else os.path.join(ASSETS, default_output)
+    tensors = read_tensors(model_path)
+    with open(output_path, 'wb') as out:
+        out.write(struct.pack('<iii', MAGIC, VERSION_INT8 if int8 else VERSION_FLOAT, len(LAYERS)))
+        for weights_name, bias_name, tap in LAYERS:
+            outputs, inputs, weights, bias = layer_weights(tensors, weights_name, bias_name, tap)
+            assert len(weights) == outputs * inputs and len(bias) == outputs
+            out.write(struct.pack('<ii', outputs, inputs))
+            if int8:
+                scales, quantized = quantize_rows(outputs, inputs, weights)
+                out.write(struct.pack('<%df' % len(scales), *scales))
+                out.write(struct.pack('<%db' % len(quantized), *quantized))
+            else:
+                out.write(struct.pack('<%df' % len(weights), *weights))
+            out.write(struct.pack('<%df' % len(bias), *bias))
+    print('Wrote %s (%d bytes)' % (output_path, os.path.getsize(output_path)))
+
+
+if __name__ == '__main__':
+    main(sys.argv)